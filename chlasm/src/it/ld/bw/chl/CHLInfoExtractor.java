@@ -71,8 +71,7 @@ public class CHLInfoExtractor {
 		DataSection dataSection = chl.getDataSection();
 		out.println("Data offset: "+getOffset(dataSection));
 		//Data length
-		byte[] data = dataSection.getData();
-		out.println("Data length: "+data.length);
+		out.println("Data length: "+dataSection.getDataLength());
 		//Code offset
 		Code code = chl.getCode();
 		out.println("Code offset: "+getOffset(code));
@@ -22,6 +22,7 @@ import java.io.InputStreamReader;
 import java.util.HashSet;
 import java.util.Set;
 
+import it.ld.bw.chl.exceptions.InvalidChlError;
 import it.ld.bw.chl.exceptions.ParseError;
 import it.ld.bw.chl.exceptions.ParseException;
 import it.ld.bw.chl.lang.ASMCompiler;
@@ -30,6 +31,7 @@ import it.ld.bw.chl.lang.CHLCompiler;
 import it.ld.bw.chl.lang.Project;
 import it.ld.bw.chl.lang.Syntax;
 import it.ld.bw.chl.model.CHLFile;
+import it.ld.bw.chl.model.CHLSnapshotCache;
 import it.ld.bw.chl.model.Code;
 import it.ld.bw.chl.model.NativeFunction;
 import it.ld.utils.CmdLine;
@@ -37,18 +39,26 @@ import it.ld.utils.CmdLine;
 public class Main {
 	private static boolean verbose = false;
 	private static boolean trace = false;
+	private static CHLSnapshotCache snapshotCache = null;
 	
 	public static void main(String[] args) {
 		boolean printJavaStackTrace = true;
 		try {
 			CmdLine cmd = new CmdLine(args);
 			printJavaStackTrace = cmd.getArgFlag("-jst");
+			CHLCompiler.stackTraceEnabled = printJavaStackTrace;
 			verbose = cmd.getArgFlag("-v");
 			if (cmd.getArgFlag("-trace")) {
 				trace = true;
 				CHLFile.traceEnabled = true;
 				Code.traceEnabled = true;
 			}
+			if (cmd.getArgFlag("-nommap")) {
+				CHLFile.mappedReadEnabled = false;
+			}
+			if (cmd.getArgFlag("-packed")) {
+				Code.packedEnabled = true;
+			}
 			if (cmd.getArgFlag("-chlasm")) {
 				chlToAsm(cmd);
 			} else if (cmd.getArgFlag("-asmchl")) {
@@ -85,6 +95,10 @@ public class Main {
 				System.out.println(e2.getMessage());
 			}
 			System.exit(1);
+		} catch (InvalidChlError e) {
+			//Thrown by lazily read files when the code is decoded
+			e.getException().printStackTrace();
+			System.exit(1);
 		} catch (Exception e) {
 			e.printStackTrace();
 			System.exit(1);
@@ -104,13 +118,18 @@ public class Main {
 		}
 		writer.setPrintSourceLinenoEnabled(cmd.getArgFlag("-prlno"));
 		writer.setPrintBinInfoEnabled(cmd.getArgFlag("-prbin"));
+		Integer threads = cmd.getArgInt("-threads");
+		if (threads != null) writer.setThreads(threads);
 		File srcPath = cmd.getArgFile("-prsrc");
 		//
 		System.out.println("Loading compiled CHL...");
 		CHLFile chl = new CHLFile();
-		chl.read(inp);
-		chl.checkCodeCoverage(System.out);
-		chl.validate(System.out);
+		if (cmd.getArgFlag("-stream")) {
+			chl.readStreaming(inp);
+		} else {
+			chl.read(inp);
+		}
+		chl.validate(System.out, true);
 		System.out.println("Writing ASM sources...");
 		if (srcPath != null) {
 			writer.setSourcePath(srcPath.toPath());
@@ -141,6 +160,9 @@ public class Main {
 			project = Project.load(prj);
 		}
 		File out = mandatory(cmd.getArgFile("-o"), "-o");
+		Integer threads = cmd.getArgInt("-threads");
+		if (threads != null) compiler.setThreads(threads);
+		compiler.setConstantsDatabase(cmd.getArgFile("-constdb"));
 		//
 		System.out.println("Parsing ASM sources...");
 		CHLFile chl = compiler.compile(project);
@@ -157,6 +179,12 @@ public class Main {
 		File out = mandatory(cmd.getArgFile("-o"), "-o");
 		File outAsm = cmd.getArgFile("-oasm");
 		compiler.setSharedStringsEnabled(!cmd.getArgFlag("-noshr"));
+		compiler.setParseTreeEnabled(false);
+		Integer threads = cmd.getArgInt("-threads");
+		if (threads != null) compiler.setThreads(threads);
+		compiler.setObjectDir(cmd.getArgFile("-objdir"));
+		compiler.setCacheDir(cmd.getArgFile("-buildcache"));
+		compiler.setConstantsDatabase(cmd.getArgFile("-constdb"));
 		//
 		CHLFile chl = compiler.compile(project);
 		System.out.println("Writing compiled CHL...");
@@ -177,10 +205,10 @@ public class Main {
 	
 	private static void chlinfo(CmdLine cmd) throws Exception {
 		File f1 = mandatory(cmd.getArgFile("-i"), "-i");
+		initSnapshotCache(cmd);
 		//
 		System.out.println("Loading "+f1.getName()+"...");
-		CHLFile chl1 = new CHLFile();
-		chl1.read(f1);
+		CHLFile chl1 = load(f1);
 		CHLInfoExtractor extractor = new CHLInfoExtractor();
 		extractor.printInfo(chl1);
 	}
@@ -191,13 +219,12 @@ public class Main {
 		boolean strict = cmd.getArgFlag("-strict");
 		Set<String> scripts = new HashSet<>(cmd.getArgVals("-s"));
 		if (scripts.isEmpty()) scripts = null;
+		initSnapshotCache(cmd);
 		//
 		System.out.println("Loading "+f1.getName()+"...");
-		CHLFile chl1 = new CHLFile();
-		chl1.read(f1);
+		CHLFile chl1 = load(f1);
 		System.out.println("Loading "+f2.getName()+"...");
-		CHLFile chl2 = new CHLFile();
-		chl2.read(f2);
+		CHLFile chl2 = load(f2);
 		System.out.println("Comparing...");
 		CHLComparator comparator = new CHLComparator();
 		comparator.setStrict(strict);
@@ -206,14 +233,36 @@ public class Main {
 	
 	private static void printInstructionReference(CmdLine cmd) throws Exception {
 		File inp = mandatory(cmd.getArgFile("-i"), "-i");
+		initSnapshotCache(cmd);
 		//
 		System.out.println("Loading compiled CHL...");
-		CHLFile chl = new CHLFile();
-		chl.read(inp);
+		CHLFile chl = load(inp);
 		System.out.println("Done.");
 		chl.printInstructionReference(System.out);
 	}
 	
+	/**Enables the snapshot cache for the read-only commands, if the cache folder has been specified.*/
+	private static void initSnapshotCache(CmdLine cmd) throws IOException {
+		File cacheDir = cmd.getArgFile("-cache");
+		if (cacheDir != null) {
+			snapshotCache = new CHLSnapshotCache(cacheDir);
+		}
+	}
+	
+	/**Loads a CHL file for read-only queries, through the snapshot cache if enabled.
+	 * @param file
+	 * @return
+	 * @throws Exception
+	 */
+	private static CHLFile load(File file) throws Exception {
+		if (snapshotCache != null) {
+			return snapshotCache.load(file);
+		}
+		CHLFile chl = new CHLFile();
+		chl.readLazy(file);
+		return chl;
+	}
+	
 	private static void printInfo(CmdLine cmd) {
 		String arg = mandatory(cmd.getArgVal("-info"), "-info");
 		if ("keywords".equals(arg)) {
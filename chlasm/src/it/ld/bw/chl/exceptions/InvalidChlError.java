@@ -0,0 +1,19 @@
+package it.ld.bw.chl.exceptions;
+
+/**Unchecked wrapper of an {@link InvalidChlException}, thrown where checked exceptions are not allowed,
+ * such as when instructions are decoded on demand by a list.
+ */
+public class InvalidChlError extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+	
+	public InvalidChlError(InvalidChlException cause) {
+		super(cause.getMessage(), cause);
+	}
+	
+	/**Returns the wrapped exception.
+	 * @return
+	 */
+	public InvalidChlException getException() {
+		return (InvalidChlException) getCause();
+	}
+}
@@ -6,4 +6,8 @@ public class InvalidChlException extends Exception {
 	public InvalidChlException(String msg) {
 		super(msg);
 	}
+	
+	public InvalidChlException(String msg, Throwable cause) {
+		super(msg, cause);
+	}
 }
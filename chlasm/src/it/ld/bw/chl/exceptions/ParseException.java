@@ -46,7 +46,21 @@ public class ParseException extends Exception {
 		this.col = col;
 	}
 	
-	private static String makeMsg(String msg, File file, int lineno, int col) {
+	/**Creates an exception whose message is provided by the subclass through getMessage().
+	 * @param parent the cause, may be null
+	 * @param file
+	 * @param lineno
+	 * @param col
+	 * @param writableStackTrace whether the stack trace should be filled in
+	 */
+	protected ParseException(Exception parent, File file, int lineno, int col, boolean writableStackTrace) {
+		super(null, parent, false, writableStackTrace);
+		this.file = file;
+		this.lineno = lineno;
+		this.col = col;
+	}
+	
+	protected static String makeMsg(String msg, File file, int lineno, int col) {
 		if (file != null) {
 			return msg + " at " + file.getName() + ":" + lineno + ":" + col;
 		} else {
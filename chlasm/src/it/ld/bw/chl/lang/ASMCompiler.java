@@ -32,6 +32,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
+import it.ld.bw.chl.exceptions.ParseError;
 import it.ld.bw.chl.exceptions.ParseException;
 import it.ld.bw.chl.model.CHLFile;
 import it.ld.bw.chl.model.DataSection;
@@ -51,6 +52,8 @@ public class ASMCompiler implements Compiler {
 	
 	private PrintStream out;
 	private boolean verboseEnabled;
+	private File constantsDatabaseFile = null;
+	private int threads = Runtime.getRuntime().availableProcessors();
 	
 	private final CHLFile chl = new CHLFile();
 	private final List<String> globalVariables;
@@ -61,6 +64,8 @@ public class ASMCompiler implements Compiler {
 	private final DataSection dataSection;
 	private final HashMap<Integer, String> labels = new HashMap<>();
 	private final Map<String, Integer> globalConstants = new HashMap<>();
+	/**The constants of the headers and info files, when loaded from a database. They are overridden by the map.*/
+	private ConstantsDatabase constantsDatabase = null;
 	private final Map<String, Integer> localConstants = new HashMap<>();
 	private final Map<String, Integer> globalMap = new HashMap<>();
 	private final Map<String, Integer> labelMap = new HashMap<>();
@@ -95,6 +100,29 @@ public class ASMCompiler implements Compiler {
 		this.verboseEnabled = verboseEnabled;
 	}
 	
+	public int getThreads() {
+		return threads;
+	}
+	
+	/**Sets the number of threads used to parse the headers and info files in {@link #compile(Project)}.
+	 * @param threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+	
+	public File getConstantsDatabase() {
+		return constantsDatabaseFile;
+	}
+	
+	/**Sets the file where the constants of the headers and info files of a project are precompiled.
+	 * The file is rebuilt when the headers change, otherwise it's memory mapped instead of parsing them.
+	 * @param file the database file, or null to always parse the headers
+	 */
+	public void setConstantsDatabase(File file) {
+		this.constantsDatabaseFile = file;
+	}
+	
 	private void warning(String s) {
 		out.println(s);
 	}
@@ -186,15 +214,31 @@ public class ASMCompiler implements Compiler {
 	
 	public CHLFile compile(Project project) throws IOException, ParseException {
 		globalConstants.putAll(project.constants);
-		for (File file : project.cHeaders) {
-			loadHeader(file);
-		}
-		for (File file : project.infoFiles) {
-			loadInfo(file);
-		}
+		loadHeaders(project.cHeaders, project.infoFiles);
 		return compile(project.sources);
 	}
 	
+	/**Loads the constants of the given headers and info files, from the constants database if set.
+	 * If the database cannot be built or conflicts with the constants already defined, the files are
+	 * parsed as usual, so that the errors are reported in the same way.
+	 */
+	private void loadHeaders(List<File> headers, List<File> infoFiles) throws IOException, ParseException {
+		if (constantsDatabaseFile != null && constantsDatabase == null && !(headers.isEmpty() && infoFiles.isEmpty())) {
+			info("loading "+constantsDatabaseFile.getName()+"...");
+			ConstantsDatabase db = null;
+			try {
+				db = ConstantsDatabase.open(constantsDatabaseFile, headers, infoFiles, threads);
+			} catch (IOException | ParseException | ParseError e) {
+				//The error will be reported below
+			}
+			if (db != null && db.agrees(globalConstants)) {
+				constantsDatabase = db;
+				return;
+			}
+		}
+		ConstantsLoader.load(headers, infoFiles, globalConstants, threads, file -> info("loading "+file.getName()+"..."));
+	}
+	
 	public CHLFile compile(List<File> files) throws IOException, ParseException {
 		for (File file : files) {
 			parse(file);
@@ -541,7 +585,7 @@ public class ASMCompiler implements Compiler {
 			throw new Exception("Expected expression after '='");
 		}
 		if (isValidIdentifier(expr)) {
-			Integer val = globalConstants.get(expr);
+			Integer val = getGlobalConstant(expr);
 			if (val == null) {
 				throw new Exception(expr + " has not been defined previously");
 			}
@@ -555,6 +599,14 @@ public class ASMCompiler implements Compiler {
 		}
 	}
 	
+	private Integer getGlobalConstant(String name) {
+		Integer val = globalConstants.get(name);
+		if (val == null && constantsDatabase != null) {
+			val = constantsDatabase.get(name);
+		}
+		return val;
+	}
+	
 	@SuppressWarnings("unchecked")
 	private <E> E parseImmed(Class<E> type, String s, Map<String, Integer> localConstants) {
 		Object r = parseImmed(s, localConstants);
@@ -570,7 +622,7 @@ public class ASMCompiler implements Compiler {
 				if (val != null) return val;
 			}
 			if (globalConstants != null) {
-				Integer val = globalConstants.get(s);
+				Integer val = getGlobalConstant(s);
 				if (val != null) return val;
 			}
 		}
@@ -16,6 +16,7 @@
 package it.ld.bw.chl.lang;
 
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -24,11 +25,16 @@ import java.io.Writer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import it.ld.bw.chl.exceptions.CompileException;
 import it.ld.bw.chl.exceptions.InvalidScriptIdException;
@@ -38,6 +44,7 @@ import it.ld.bw.chl.model.OPCode;
 import it.ld.bw.chl.model.Script;
 import it.ld.bw.chl.model.CHLFile;
 import it.ld.bw.chl.model.DataSection.Const;
+import it.ld.bw.chl.model.DataSection.ConstIndex;
 import it.ld.bw.chl.model.DataType;
 
 public class ASMWriter {
@@ -51,9 +58,7 @@ public class ASMWriter {
 	private Path sourcePath = null;
 	private boolean printSourceCommentsEnabled = false;
 	private boolean printBinInfoEnabled = false;
-	
-	private String currentSourceFilename;
-	private String[] source;
+	private int threads = Runtime.getRuntime().availableProcessors();
 	
 	private PrintStream out;
 	
@@ -121,12 +126,23 @@ public class ASMWriter {
 		this.printBinInfoEnabled = printBinInfoEnabled;
 	}
 	
+	public int getThreads() {
+		return threads;
+	}
+	
+	/**Sets the number of threads used to write the source files in {@link #write(CHLFile, File)}.
+	 * @param threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+	
 	public void write(CHLFile chl, File outdir) throws IOException, CompileException, InvalidScriptIdException {
 		Path path = outdir.toPath();
-		List<Const> constants = chl.getDataSection().analyze();
-		Map<Integer, Const> constMap = mapConstants(constants);
+		ConstIndex constants = chl.getDataSection().getConstIndex();
 		List<String> sources = chl.getSourceFilenames();
 		Map<Integer, Label> labels = getLabels(chl);
+		int[] externalTargets = labels == null ? getExternalTargets(chl) : null;
 		//
 		out.println("Writing _project.txt");
 		File prjFile = path.resolve("_project.txt").toFile();
@@ -155,73 +171,191 @@ public class ASMWriter {
 			writeAutoStartScripts(chl, str);
 		}
 		//
-		for (String sourceFilename : sources) {
-			File sourceFile = path.resolve(sourceFilename).toFile();
-			out.println("Writing "+sourceFilename);
-			try (Writer str = new BufferedWriter(new FileWriter(sourceFile));) {
-				writeHeader(chl, str);
-				writeScripts(chl, str, sourceFilename, labels, constMap);
+		chl.getScriptsSection().finalizeScripts();	//Required to initialize the last instruction index of each script
+		/* Source files are written concurrently. Messages are collected by each task and printed
+		 * in the original order once the task has completed. Streamed code keeps a single script
+		 * decoded at a time, so in that case the files are written by one thread. */
+		final int nThreads = chl.getCode().isStreamed() ? 1 : Math.min(threads, Math.max(1, sources.size()));
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		try {
+			Map<String, Future<String>> tasks = new HashMap<>();
+			for (String sourceFilename : sources) {
+				if (!tasks.containsKey(sourceFilename)) {
+					File sourceFile = path.resolve(sourceFilename).toFile();
+					tasks.put(sourceFilename, executor.submit(() -> {
+						ByteArrayOutputStream log = new ByteArrayOutputStream();
+						WriteContext ctx = new WriteContext(new PrintStream(log), labels, externalTargets);
+						try (Writer str = new BufferedWriter(new FileWriter(sourceFile));) {
+							writeHeader(chl, str);
+							writeScripts(chl, str, sourceFilename, constants, ctx);
+						}
+						ctx.out.flush();
+						return log.toString();
+					}));
+				}
+			}
+			for (String sourceFilename : sources) {
+				out.println("Writing "+sourceFilename);
+				try {
+					out.print(tasks.get(sourceFilename).get());
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof IOException) throw (IOException) cause;
+					if (cause instanceof CompileException) throw (CompileException) cause;
+					if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+					throw new RuntimeException(cause);
+				}
 			}
+		} finally {
+			executor.shutdownNow();
 		}
 	}
 	
+	/**Writes all the scripts to a single file. Scripts are processed one at a time, and if the file
+	 * has been opened with {@link CHLFile#readStreaming(File)} labels are collected per script, so that
+	 * the memory usage doesn't depend on the size of the code. Only the labels referenced by jumps to
+	 * another script are collected in advance, by address.
+	 * @param chl
+	 * @param file
+	 * @throws IOException
+	 * @throws CompileException
+	 */
 	public void writeMerged(CHLFile chl, File file) throws IOException, CompileException {
-		List<Const> constants = chl.getDataSection().analyze();
-		Map<Integer, Const> constMap = mapConstants(constants);
-		Map<Integer, Label> labels = getLabels(chl);
+		ConstIndex constants = chl.getDataSection().getConstIndex();
 		try (Writer str = new BufferedWriter(new FileWriter(file));) {
 			writeHeader(chl, str);
 			writeData(chl, str, constants);
-			writeScripts(chl, str, labels, constMap);
+			Map<Integer, Label> labels = getLabels(chl);
+			int[] externalTargets = labels == null ? getExternalTargets(chl) : null;
+			writeScripts(chl, str, constants, new WriteContext(out, labels, externalTargets));
 			writeAutoStartScripts(chl, str);
 		}
 	}
 	
+	/**Collects the labels referenced by the jumps of all the scripts. If the code is streamed, labels are
+	 * collected per script instead, to keep the memory usage bounded.
+	 * @param chl
+	 * @return the labels, or null if the code is streamed
+	 */
 	private Map<Integer, Label> getLabels(CHLFile chl) {
+		if (chl.getCode().isStreamed()) {
+			return null;
+		}
 		Map<Integer, Label> labels = new HashMap<>();
-		List<Script> scripts = chl.getScriptsSection().getItems();
+		for (Script script : chl.getScriptsSection().getItems()) {
+			collectLabels(chl, script, labels, null);
+		}
+		return labels;
+	}
+	
+	/**Collects the labels referenced by the jumps in the given script, plus the labels defined in the
+	 * script and referenced by other scripts.
+	 * @param chl
+	 * @param script
+	 * @param externalTargets the sorted addresses referenced by jumps to another script
+	 * @return
+	 */
+	private Map<Integer, Label> getLabels(CHLFile chl, Script script, int[] externalTargets) {
+		Map<Integer, Label> labels = new HashMap<>();
+		collectLabels(chl, script, labels, externalTargets);
+		//Labels referenced only by other scripts
+		int i = Arrays.binarySearch(externalTargets, script.getInstructionAddress());
+		if (i < 0) i = -i - 1;
+		for (; i < externalTargets.length && externalTargets[i] <= script.getLastInstructionAddress(); i++) {
+			labels.computeIfAbsent(externalTargets[i], ip -> new Label(getExternalLabelName(chl, ip), false));
+		}
+		return labels;
+	}
+	
+	/**Returns the addresses referenced by jumps to another script, which must be known before the scripts
+	 * containing them are written. This is a quick pass over the code, which keeps nothing but the addresses,
+	 * so it can be done on streamed code.
+	 * @param chl
+	 * @return the sorted addresses
+	 */
+	private int[] getExternalTargets(CHLFile chl) {
+		chl.getScriptsSection().finalizeScripts();	//Required to initialize the last instruction index of each script
 		List<Instruction> instructions = chl.getCode().getItems();
-		for (Script script : scripts) {
-			int labelCount = 0;
-			String scriptName = script.getName();
-			int ip = script.getInstructionAddress();
-			ListIterator<Instruction> it = instructions.listIterator(ip);
+		int[] targets = new int[16];
+		int n = 0;
+		for (Script script : chl.getScriptsSection().getItems()) {
+			final int first = script.getInstructionAddress();
+			final int last = script.getLastInstructionAddress();
+			ListIterator<Instruction> it = instructions.listIterator(first);
 			while (it.hasNext()) {
 				Instruction instr = it.next();
-				if (instr.opcode.isIP) {
-					Label label = labels.get(instr.intVal);
-					if (label == null) {
-						String pfx = "lbl";
-						if (instr.opcode == OPCode.EXCEPT) {
-							pfx = "exception_handler";
-						} else {
-							if (instr.isForward()) {
-								pfx = "skip";	//for: if, elsif, while
-							} else {
-								pfx = "loop";	//for: loop, end while
-							}
-						}
-						String name = scriptName + "_" + pfx + "_" + labelCount;
-						label = new Label(name, instr.intVal > ip);
-						labels.put(instr.intVal, label);
-						labelCount++;
+				if (instr.opcode.isIP && (instr.intVal < first || instr.intVal > last)) {
+					if (n == targets.length) {
+						targets = Arrays.copyOf(targets, n * 2);
 					}
+					targets[n++] = instr.intVal;
 				}
 				if (instr.opcode == OPCode.END) {
 					break;
 				}
-				ip++;
 			}
 		}
-		return labels;
+		Arrays.sort(targets, 0, n);
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			if (count == 0 || targets[i] != targets[count - 1]) {
+				targets[count++] = targets[i];
+			}
+		}
+		return Arrays.copyOf(targets, count);
 	}
 	
-	private Map<Integer, Const> mapConstants(List<Const> constants) {
-		Map<Integer, Const> constMap = new HashMap<Integer, Const>();
-		for (Const c : constants) {
-			constMap.put(c.offset, c);
+	/**Returns the name of a label referenced by jumps from another script. The name depends only on
+	 * the address, so that it's the same in all the scripts.
+	 * @param chl
+	 * @param ip
+	 * @return
+	 */
+	private static String getExternalLabelName(CHLFile chl, int ip) {
+		Script target = chl.getScriptsSection().getScriptFromInstruction(ip);
+		if (target == null) {
+			return "lbl_" + ip;
+		}
+		return target.getName() + "_lbl_" + (ip - target.getInstructionAddress());
+	}
+	
+	private void collectLabels(CHLFile chl, Script script, Map<Integer, Label> labels, int[] externalTargets) {
+		List<Instruction> instructions = chl.getCode().getItems();
+		int labelCount = 0;
+		String scriptName = script.getName();
+		int ip = script.getInstructionAddress();
+		ListIterator<Instruction> it = instructions.listIterator(ip);
+		while (it.hasNext()) {
+			Instruction instr = it.next();
+			if (instr.opcode.isIP) {
+				Label label = labels.get(instr.intVal);
+				if (label == null && externalTargets != null && Arrays.binarySearch(externalTargets, instr.intVal) >= 0) {
+					label = new Label(getExternalLabelName(chl, instr.intVal), instr.intVal > ip);
+					labels.put(instr.intVal, label);
+				} else if (label == null) {
+					String pfx = "lbl";
+					if (instr.opcode == OPCode.EXCEPT) {
+						pfx = "exception_handler";
+					} else {
+						if (instr.isForward()) {
+							pfx = "skip";	//for: if, elsif, while
+						} else {
+							pfx = "loop";	//for: loop, end while
+						}
+					}
+					String name = scriptName + "_" + pfx + "_" + labelCount;
+					label = new Label(name, instr.intVal > ip);
+					labels.put(instr.intVal, label);
+					labelCount++;
+				}
+			}
+			if (instr.opcode == OPCode.END) {
+				break;
+			}
+			ip++;
 		}
-		return constMap;
 	}
 	
 	private void writeHeader(CHLFile chl, Writer str) throws IOException {
@@ -229,16 +363,16 @@ public class ASMWriter {
 		str.write("\r\n");
 	}
 	
-	private void writeData(CHLFile chl, Writer str, List<Const> constants) throws IOException {
+	private void writeData(CHLFile chl, Writer str, ConstIndex constants) throws IOException {
 		str.write(".DATA\r\n");
 		if (printBinInfoEnabled) str.write(String.format("//offset: 0x%1$08X\r\n", chl.getDataSection().getOffset()));
-		for (Const c : constants) {
-			str.write(c.getDeclaration() + "\r\n");
+		for (int i = 0; i < constants.size(); i++) {
+			str.write(constants.get(i).getDeclaration() + "\r\n");
 		}
 		str.write("\r\n");
 	}
 	
-	private void writeScripts(CHLFile chl, Writer str, Map<Integer, Label> labels, Map<Integer, Const> constMap) throws IOException, CompileException {
+	private void writeScripts(CHLFile chl, Writer str, ConstIndex constants, WriteContext ctx) throws IOException, CompileException {
 		if (printBinInfoEnabled) str.write(String.format("//offset: 0x%1$08X\r\n", chl.getScriptsSection().getOffset()));
 		chl.getScriptsSection().finalizeScripts();	//Required to initialize the last instruction index of each script
 		int firstGlobal = 0;
@@ -260,14 +394,13 @@ public class ASMWriter {
 				
 				prevSourceFilename = script.getSourceFilename();
 			}
-			writeScript(chl, str, script, labels, constMap);
+			writeScript(chl, str, script, constants, ctx);
 			str.write("\r\n");
 		}
 		str.write("\r\n");
 	}
 	
-	private void writeScripts(CHLFile chl, Writer str, String sourceFilename, Map<Integer, Label> labels, Map<Integer, Const> constMap) throws IOException, CompileException {
-		chl.getScriptsSection().finalizeScripts();	//Required to initialize the last instruction index of each script
+	private void writeScripts(CHLFile chl, Writer str, String sourceFilename, ConstIndex constants, WriteContext ctx) throws IOException, CompileException {
 		int firstGlobal = 0;
 		Script script = null;
 		ListIterator<Script> it = chl.getScriptsSection().getItems().listIterator();
@@ -292,15 +425,17 @@ public class ASMWriter {
 			if (!script.getSourceFilename().equals(sourceFilename)) {
 				break;
 			}
-			writeScript(chl, str, script, labels, constMap);
+			writeScript(chl, str, script, constants, ctx);
 			str.write("\r\n");
 		}
 	}
 	
-	private void writeScript(CHLFile chl, Writer str, Script script, Map<Integer, Label> labels, Map<Integer, Const> constMap) throws IOException, CompileException {
+	private void writeScript(CHLFile chl, Writer str, Script script, ConstIndex constants, WriteContext ctx) throws IOException, CompileException {
 		if (printSourceLineEnabled) {
-			setSourceFile(script.getSourceFilename());
+			setSourceFile(ctx, script.getSourceFilename());
 		}
+		final String[] source = ctx.source;
+		Map<Integer, Label> labels = ctx.labels != null ? ctx.labels : getLabels(chl, script, ctx.externalTargets);
 		Stack<String> comments = new Stack<>();
 		List<Instruction> instructions = chl.getCode().getItems();
 		final int firstInstruction = script.getInstructionAddress();
@@ -403,8 +538,9 @@ public class ASMWriter {
 				}
 				str.write("\t" + instr.toString(chl, script, labels));
 				boolean isConstRef = instr.opcode == OPCode.PUSH && instr.flags == 0 && instr.dataType == DataType.INT;
-				if (printDataHintEnabled && isConstRef && instr.intVal > 0 && constMap.containsKey(instr.intVal)) {
-					str.write("\t//" + constMap.get(instr.intVal));
+				Const c = printDataHintEnabled && isConstRef && instr.intVal > 0 ? constants.find(instr.intVal) : null;
+				if (c != null) {
+					str.write("\t//" + c);
 				} else if (printNativeInfoEnabled && instr.opcode == OPCode.SYS) {
 					NativeFunction f = NativeFunction.fromCode(instr.intVal);
 					str.write("\t//" + f.getInfoString());
@@ -433,7 +569,7 @@ public class ASMWriter {
 			}
 		} while (it.hasNext() && index <= script.getLastInstructionAddress());
 		if (instrAfterEnd > 0) {
-			out.println(instrAfterEnd + " instructions found after end of script " + script.getName());
+			ctx.out.println(instrAfterEnd + " instructions found after end of script " + script.getName());
 		}
 	}
 	
@@ -452,17 +588,17 @@ public class ASMWriter {
 		str.write("\r\n");
 	}
 	
-	private void setSourceFile(String sourceFilename) {
-		if (!sourceFilename.equals(currentSourceFilename)) {
+	private void setSourceFile(WriteContext ctx, String sourceFilename) {
+		if (!sourceFilename.equals(ctx.currentSourceFilename)) {
 			Path file = sourcePath.resolve(sourceFilename);
 			try {
 				List<String> lines = Files.readAllLines(file, SRC_CHARSET);
-				source = lines.toArray(new String[0]);
+				ctx.source = lines.toArray(new String[0]);
 			} catch (IOException e) {
-				source = null;
-				out.println("WARNING: failed to read source file '" + sourceFilename + "': " + e);
+				ctx.source = null;
+				ctx.out.println("WARNING: failed to read source file '" + sourceFilename + "': " + e);
 			}
-			currentSourceFilename = sourceFilename;
+			ctx.currentSourceFilename = sourceFilename;
 		}
 	}
 	
@@ -474,6 +610,23 @@ public class ASMWriter {
 	}
 	
 	
+	/**The state of a single writing task.*/
+	private static class WriteContext {
+		public final PrintStream out;
+		/**The labels of all the scripts, or null if they are collected per script.*/
+		public final Map<Integer, Label> labels;
+		/**The addresses referenced by jumps to another script, used when labels are collected per script.*/
+		public final int[] externalTargets;
+		public String currentSourceFilename;
+		public String[] source;
+		
+		public WriteContext(PrintStream out, Map<Integer, Label> labels, int[] externalTargets) {
+			this.out = out;
+			this.labels = labels;
+			this.externalTargets = externalTargets;
+		}
+	}
+	
 	private static class Label {
 		public final String name;
 		/**Tells whether this label is referenced by a previous instruction or not.*/
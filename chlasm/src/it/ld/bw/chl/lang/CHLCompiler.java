@@ -15,6 +15,7 @@
  */
 package it.ld.bw.chl.lang;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -22,13 +23,19 @@ import java.io.PrintStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import it.ld.bw.chl.exceptions.ParseError;
 import it.ld.bw.chl.exceptions.ParseException;
@@ -46,29 +53,71 @@ import static it.ld.bw.chl.model.NativeFunction.*;
 //TODO add in camera/dialogue block check for statements that require it
 
 public class CHLCompiler implements Compiler {
+	/**If enabled, the errors raised while parsing keep the stack trace of the point where they have
+	 * been raised. This is disabled by default since many errors are raised and discarded while trying
+	 * the alternatives of the syntax.*/
+	public static boolean stackTraceEnabled = false;
+	
 	private static final String DEFAULT_SOUNDBANK_NAME = "AUDIO_SFX_BANK_TYPE_IN_GAME";
 	private static final String DEFAULT_SUBTYPE_NAME = "SCRIPT_FIND_TYPE_ANY";
 	
 	private static final Charset ASCII = Charset.forName("US-ASCII");
 	private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
 	private static final int MAX_BUFFER_SIZE = 2 * 1024 * 1024;
+	/**Nesting depth of the backtracking attempts from which their outcome is remembered. Attempts at a
+	 * shallow depth are rarely repeated, and their content is remembered by the nested attempts anyway.*/
+	private static final int MEMO_MIN_DEPTH = 1;
 	
 	private static final int VA_MAX = 29;
 	
+	/**Nodes that are built outside of any backtracking, so their children can be dropped when the
+	 * parse tree isn't needed.*/
+	private static final boolean[] ELIDABLE = new boolean[Syntax.getSymbolCount()];
+	
+	/**Symbols accepted first by the backtracking parse functions, apart from the keywords dispatched to
+	 * the parsers registered for expressions and conditions, indexed by the constants of {@link ParseMemo}.
+	 * Attempts are discarded according to the FIRST sets computed from the syntax, so every branch added
+	 * to those functions must be listed here: the list is checked against the syntax when this class is
+	 * loaded, so that a branch which isn't described by the syntax fails early instead of being skipped.
+	 * 
+	 * The parser still tries the alternatives one by one and reverts the failed ones: the FIRST sets only
+	 * skip the attempts that can't succeed. Prediction tables generated from the syntax, which would
+	 * choose the alternative without trying it, are not implemented yet.
+	 */
+	private static final String[][] FIRST_ACCEPTED = {
+		/*EXPRESSION*/	{"NUMBER", "CHAR", "IDENTIFIER"},
+		/*CONDITION*/	{"SPIRIT_TYPE", "OBJECT", "COORD_EXPR", "CONST_EXPR", "EXPRESSION"},
+		/*CONST_EXPR*/	{"CONST_EXPR", "-", "constant", "int", "get", "state", "va_arg", "(", "CHAR", "IDENTIFIER", "NUMBER"},
+		/*COORD_EXPR*/	{"COORD_EXPR", "[", "camera", "stored", "hand", "facing", "computer", "last", "get", "arse",
+						 "belly", "destination", "player", "-", "(", "EXPRESSION"}
+	};
+	
+	static {
+		for (String name : new String[] {"FILE", "DEFINE", "GLOBAL_VAR_DECL", "GLOBAL_CONST_DECL", "SCRIPT", "LOCAL_DECL", "STATEMENTS", "STATEMENT"}) {
+			ELIDABLE[Syntax.getSymbol(name).id] = true;
+		}
+		checkFirstAccepted();
+	}
+	
 	private File file;
 	private String sourceFilename;
-	private LinkedList<SymbolInstance> symbols;
-	private ListIterator<SymbolInstance> it;
+	private SymbolCursor it;
 	private int line;
 	private int col;
 	
 	private boolean optimizeAssignmentEnabled = false;
 	private boolean ignoreMissingScriptsEnabled = false;
 	private boolean sharedStringsEnabled = true;
+	private boolean parseTreeEnabled = true;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private File objectDir = null;
+	private File cacheDir = null;
+	private File constantsDatabaseFile = null;
 	
 	private PrintStream out;
 	private boolean verboseEnabled;
 	
+	private final CHLLexer lexer = new CHLLexer();	//Shared by all files, so that names are interned once
 	private final CHLFile chl = new CHLFile();
 	private Script currentScript;
 	private final List<Instruction> instructions;
@@ -76,13 +125,15 @@ public class CHLCompiler implements Compiler {
 	private LinkedHashMap<String, Integer> strings = new LinkedHashMap<>();
 	private ByteBuffer dataBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
 	private Map<String, Integer> constants = new HashMap<>();
+	/**The constants of the headers and info files, when loaded from a database. They are overridden by the map.*/
+	private ConstantsDatabase constantsDatabase = null;
 	private LinkedHashMap<String, Var> localMap = new LinkedHashMap<>();
 	private Map<String, Integer> localConst = new HashMap<>();
 	private LinkedHashMap<String, Var> globalMap = new LinkedHashMap<>();
 	private Map<String, Script> scriptDefinitions = new HashMap<>();
 	private Map<String, ScriptInfo> scriptsInfo = new HashMap<>();
 	private LinkedHashMap<String, ScriptToResolve> autoruns = new LinkedHashMap<>();
-	private List<ScriptToResolve> calls = new LinkedList<>();
+	private List<ScriptToResolve> calls = new ArrayList<>();
 	private String challengeName;
 	private Integer challengeId;
 	private int scriptId = 1;
@@ -95,7 +146,32 @@ public class CHLCompiler implements Compiler {
 	
 	private ParseException lastParseException = null;
 	
-	private List<Integer> strptrInstructions = new LinkedList<>();	//TODO use to compile to intermediate obj file
+	/**Outcomes of the attempts of the backtracking parse functions within the current statement.*/
+	private final ParseMemo memo = new ParseMemo();
+	/**State of the backtracking attempts in progress, indexed by their nesting depth.*/
+	private MemoAttempt[] attempts = new MemoAttempt[0];
+	private int attemptDepth = 0;
+	/**The node put back in place by the last outcome replayed by {@link #beginAttempt(int)}.*/
+	private SymbolInstance lastReplayed = null;
+	/**Incremented by every change that a failed attempt doesn't undo, such as storing a string.*/
+	private int sideEffects = 0;
+	/**Incremented whenever the current line and column may have changed.*/
+	private int positionUpdates = 0;
+	
+	/**Parsers of statements, expressions and conditions indexed by the id of their leading keyword.*/
+	private final KeywordParser[] statementParsers = new KeywordParser[Syntax.getSymbolCount()];
+	private final KeywordParser[] expressionParsers = new KeywordParser[Syntax.getSymbolCount()];
+	private final KeywordParser[] conditionParsers = new KeywordParser[Syntax.getSymbolCount()];
+	
+	/**Addresses of the instructions that push a pointer to the data section.*/
+	private List<Integer> strptrInstructions = new ArrayList<>();
+	/**The object being recorded for the current file, if any.*/
+	private CHLObject object = null;
+	/**Headers and info files whose loading has been deferred until a source file must be parsed.*/
+	private final List<File> pendingHeaders = new ArrayList<>();
+	private final List<File> pendingInfoFiles = new ArrayList<>();
+	/**Constants defined by the objects linked before the headers are loaded, which must override them.*/
+	private final LinkedHashMap<String, Integer> linkedConstants = new LinkedHashMap<>();
 	
 	public CHLCompiler() {
 		this(System.out);
@@ -106,6 +182,7 @@ public class CHLCompiler implements Compiler {
 		dataBuffer.order(ByteOrder.LITTLE_ENDIAN);
 		chl.getHeader().setVersion(Header.BW1);
 		instructions = chl.getCode().getItems();
+		registerParsers();
 		/* This will help the disassembler when guessing string values, because it increases the pointer
 		 * of the first string (low values are too common and would lead to a lot of bad guessing) */
 		//storeStringData("Compiled with CHL Compiler developed by Daniele Lombardi");
@@ -120,10 +197,18 @@ public class CHLCompiler implements Compiler {
 	}
 	
 	private void warning(String s) {
+		sideEffects++;
+		if (object != null) {
+			object.messages.add(new CHLObject.Message(false, s));
+		}
 		out.println(s);
 	}
 	
 	private void notice(String s) {
+		sideEffects++;
+		if (object != null) {
+			object.messages.add(new CHLObject.Message(true, s));
+		}
 		if (verboseEnabled) {
 			out.println(s);
 		}
@@ -159,6 +244,69 @@ public class CHLCompiler implements Compiler {
 		this.sharedStringsEnabled = sharedStringsEnabled;
 	}
 	
+	public boolean isParseTreeEnabled() {
+		return parseTreeEnabled;
+	}
+	
+	/**When disabled, statements and the nodes above them are reduced without keeping their children.
+	 * The code generation doesn't need the tree, so this saves memory on large sources.
+	 * @param parseTreeEnabled
+	 */
+	public void setParseTreeEnabled(boolean parseTreeEnabled) {
+		this.parseTreeEnabled = parseTreeEnabled;
+	}
+	
+	public int getThreads() {
+		return threads;
+	}
+	
+	/**Sets the number of threads used to read the source files in {@link #compile(List)}, and to
+	 * parse the headers and info files in {@link #compile(Project)}.
+	 * @param threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+	
+	public File getObjectDir() {
+		return objectDir;
+	}
+	
+	/**Sets the folder where the object files are stored by {@link #compile(List)}. When set, a source
+	 * file which hasn't changed since the last compilation is linked from its object file instead of
+	 * being parsed again, as long as the files before it export the same declarations.
+	 * @param objectDir the folder, or null to disable object files
+	 */
+	public void setObjectDir(File objectDir) {
+		this.objectDir = objectDir;
+	}
+	
+	public File getCacheDir() {
+		return cacheDir;
+	}
+	
+	/**Sets the folder of the build cache used by {@link #compile(List)}. The cache holds the objects
+	 * of every source content and environment compiled so far, so it can be shared by different
+	 * projects and working copies. When all the files are found in the cache, the headers and info
+	 * files of a project are not loaded at all.
+	 * @param cacheDir the folder, or null to disable the cache
+	 */
+	public void setCacheDir(File cacheDir) {
+		this.cacheDir = cacheDir;
+	}
+	
+	public File getConstantsDatabase() {
+		return constantsDatabaseFile;
+	}
+	
+	/**Sets the file where the constants of the headers and info files of a project are precompiled.
+	 * The file is rebuilt when the headers change, otherwise it's memory mapped instead of parsing them.
+	 * @param file the database file, or null to always parse the headers
+	 */
+	public void setConstantsDatabase(File file) {
+		this.constantsDatabaseFile = file;
+	}
+	
 	public void setFirstScriptId(int id) throws IllegalStateException {
 		if (!chl.getScriptsSection().getItems().isEmpty()) {
 			throw new IllegalStateException("Some scripts have already been parsed");
@@ -230,13 +378,13 @@ public class CHLCompiler implements Compiler {
 		return chl;
 	}
 	
-	private void convertToNodes(List<Token> tokens) throws ParseException {
+	private static List<SymbolInstance> convertToNodes(List<Token> tokens, File file) throws ParseException {
 		TokenType prevType = TokenType.EOL;
-		symbols = new LinkedList<>();
+		List<SymbolInstance> symbols = new ArrayList<>(tokens.size() / 2);
 		for (Token token : tokens) {
 			if (token.type.important) {
 				if (token.type != TokenType.EOL || prevType != TokenType.EOL) {
-					symbols.add(toSymbol(token));
+					symbols.add(toSymbol(token, file));
 					prevType = token.type;
 				}
 			}
@@ -245,6 +393,7 @@ public class CHLCompiler implements Compiler {
 			symbols.add(new SymbolInstance(Syntax.getSymbol("EOL"), new Token(0, 0, TokenType.EOL)));
 		}
 		symbols.add(SymbolInstance.EOF);
+		return symbols;
 	}
 	
 	public void loadHeader(File headerFile) throws FileNotFoundException, IOException, ParseException {
@@ -259,31 +408,371 @@ public class CHLCompiler implements Compiler {
 		parser.parse(infoFile, constants);
 	}
 	
+	/**Loads the constants of the given headers and info files, from the constants database if set.
+	 * If the database cannot be built or conflicts with the constants already defined, the files are
+	 * parsed as usual, so that the errors are reported in the same way.
+	 */
+	private void loadHeaders(List<File> headers, List<File> infoFiles) throws IOException, ParseException {
+		if (constantsDatabaseFile != null && constantsDatabase == null && !(headers.isEmpty() && infoFiles.isEmpty())) {
+			info("loading "+constantsDatabaseFile.getName()+"...");
+			ConstantsDatabase db = null;
+			try {
+				db = ConstantsDatabase.open(constantsDatabaseFile, headers, infoFiles, threads);
+			} catch (IOException | ParseException | ParseError e) {
+				//The error will be reported below
+			}
+			if (db != null && db.agrees(constants)) {
+				constantsDatabase = db;
+				return;
+			}
+		}
+		ConstantsLoader.load(headers, infoFiles, constants, threads, file -> info("loading "+file.getName()+"..."));
+	}
+	
 	public CHLFile compile(Project project) throws IOException, ParseException {
 		constants.putAll(project.constants);
-		for (File file : project.cHeaders) {
-			loadHeader(file);
-		}
-		for (File file : project.infoFiles) {
-			loadInfo(file);
+		if (objectDir != null || cacheDir != null) {
+			//The constants are only needed to parse the files, which may all be linked from their objects
+			pendingHeaders.addAll(project.cHeaders);
+			pendingInfoFiles.addAll(project.infoFiles);
+		} else {
+			loadHeaders(project.cHeaders, project.infoFiles);
 		}
 		return compile(project.sources);
 	}
 	
+	private boolean hasPendingHeaders() {
+		return !pendingHeaders.isEmpty() || !pendingInfoFiles.isEmpty();
+	}
+	
+	private void loadPendingHeaders() throws IOException, ParseException {
+		loadHeaders(pendingHeaders, pendingInfoFiles);
+		pendingHeaders.clear();
+		pendingInfoFiles.clear();
+		constants.putAll(linkedConstants);
+		linkedConstants.clear();
+	}
+	
 	public CHLFile compile(List<File> files) throws IOException, ParseException {
-		for (File file : files) {
-			parse(file);
+		/* The files are read and converted to symbols concurrently, a few files ahead of the parser.
+		 * Parsing updates the state shared by all the files, so it's done one file at a time in the
+		 * original order. The warnings of the lexer are collected by each task and printed when the
+		 * file is parsed. When object files are enabled, the tasks also load the object files, and
+		 * the files whose object has been compiled in the same environment are linked instead. */
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, files.size())));
+		try {
+			List<Future<SourceSymbols>> tasks = new ArrayList<>(files.size());
+			for (File file : files) {
+				tasks.add(null);
+			}
+			final int ahead = threads + 1;
+			for (int i = 0; i < files.size() && i < ahead; i++) {
+				tasks.set(i, submitRead(executor, files.get(i)));
+			}
+			final boolean objects = objectDir != null || cacheDir != null;
+			byte[] environment = objects ? getInitialEnvironment() : null;
+			for (int i = 0; i < files.size(); i++) {
+				if (i + ahead < files.size()) {
+					tasks.set(i + ahead, submitRead(executor, files.get(i + ahead)));
+				}
+				final File file = files.get(i);
+				try {
+					this.file = file;
+					sourceFilename = file.getName();
+					if (!objects) {
+						info("compiling "+sourceFilename+"...");
+						SourceSymbols source = getResult(tasks.get(i));
+						tasks.set(i, null);
+						out.print(source.log);
+						parseSymbols(source.symbols);
+					} else {
+						SourceSymbols source = getResult(tasks.get(i));
+						tasks.set(i, null);
+						CHLObject obj = findObject(source, environment);
+						if (obj != null) {
+							info("linking "+sourceFilename+"...");
+							link(obj);
+						} else {
+							info("compiling "+sourceFilename+"...");
+							loadPendingHeaders();
+							if (source.symbols == null) {
+								//No valid object has been found, so the file must be read and parsed
+								final int tabSize = lexer.getTabSize();
+								SourceSymbols read = getResult(executor.submit(() -> readSource(file, tabSize, null, null)));
+								source = new SourceSymbols(read.symbols, read.log, source.hash, null);
+							}
+							obj = compileObject(source, environment);
+							if (objectDir != null) {
+								saveObject(obj, CHLObject.getObjectFile(objectDir, file));
+							}
+							if (cacheDir != null) {
+								saveObject(obj, CHLObject.getCacheFile(cacheDir, obj.sourceHash, obj.sourcePath, environment));
+							}
+						}
+						environment = CHLObject.chain(environment, obj.getExportData());
+					}
+				} finally {
+					this.file = null;
+					sourceFilename = null;
+				}
+			}
+		} finally {
+			executor.shutdownNow();
 		}
 		seal();
 		return getCHLFile();
 	}
 	
+	private Future<SourceSymbols> submitRead(ExecutorService executor, File file) {
+		final int tabSize = lexer.getTabSize();
+		final File objectDir = this.objectDir;
+		final File cacheDir = this.cacheDir;
+		return executor.submit(() -> readSource(file, tabSize, objectDir, cacheDir));
+	}
+	
+	/**Reads a source file and converts it to symbols. If an object folder is given, the object of
+	 * the file is loaded instead, unless it doesn't exist or the file has changed. If the build cache
+	 * holds some objects of the file content, the file isn't read, since an object will likely be used.*/
+	private static SourceSymbols readSource(File file, int tabSize, File objectDir, File cacheDir) throws SourceException {
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		PrintStream logStream = new PrintStream(log);
+		try {
+			byte[] hash = null;
+			if (objectDir != null || cacheDir != null) {
+				hash = CHLObject.hash(file);
+				CHLObject obj = objectDir != null ? CHLObject.load(CHLObject.getObjectFile(objectDir, file), hash) : null;
+				if (obj != null || (cacheDir != null && CHLObject.getCacheDir(cacheDir, hash).isDirectory())) {
+					return new SourceSymbols(null, "", hash, obj);
+				}
+			}
+			CHLLexer lexer = new CHLLexer();
+			lexer.setTabSize(tabSize);
+			lexer.setOut(logStream);
+			List<Token> tokens = lexer.tokenize(file);
+			return new SourceSymbols(convertToNodes(tokens, file), log.toString(), hash, null);
+		} catch (IOException | ParseException e) {
+			logStream.flush();
+			throw new SourceException(e, log.toString());
+		}
+	}
+	
+	/**Returns a valid object of the current file, either from the object folder or from the build cache.
+	 * @param source
+	 * @param environment
+	 * @return the object, or null if the file must be parsed
+	 */
+	private CHLObject findObject(SourceSymbols source, byte[] environment) {
+		final String path = file.getPath();
+		CHLObject obj = source.object;
+		if (obj != null && obj.sourcePath.equals(path) && Arrays.equals(obj.environment, environment)) {
+			return obj;
+		}
+		if (cacheDir != null) {
+			obj = CHLObject.load(CHLObject.getCacheFile(cacheDir, source.hash, path, environment), source.hash);
+			if (obj != null && obj.sourcePath.equals(path) && Arrays.equals(obj.environment, environment)) {
+				return obj;
+			}
+		}
+		return null;
+	}
+	
+	private static void saveObject(CHLObject obj, File objectFile) throws IOException {
+		try {
+			obj.save(objectFile);
+		} catch (Exception e) {
+			throw new IOException("Failed to write object file "+objectFile, e);
+		}
+	}
+	
+	/**Returns the environment of the first file, which depends on the options and on the state of
+	 * the compiler before parsing any file (e.g. the constants loaded from the headers). Headers and
+	 * info files which haven't been loaded yet are identified by their name and content.*/
+	private byte[] getInitialEnvironment() throws IOException {
+		CHLObject.Exports state = new CHLObject.Exports();
+		for (Map.Entry<String, Integer> entry : new TreeMap<>(constants).entrySet()) {
+			state.addConstant(entry.getKey(), entry.getValue());
+		}
+		state.globals.addAll(globalMap.values());
+		state.definitions.addAll(new TreeMap<>(scriptDefinitions).values());
+		new TreeMap<>(scriptsInfo).forEach(state::addInfo);
+		for (ScriptToResolve autorun : autoruns.values()) {
+			state.autoruns.add(new CHLObject.Call(autorun.line, -1, autorun.name, 0));
+		}
+		state.intMath = intMath;
+		state.noYield = noYield;
+		byte[] options = new byte[] {(byte) (sharedStringsEnabled ? 1 : 0), (byte) (optimizeAssignmentEnabled ? 1 : 0),
+				(byte) lexer.getTabSize()};
+		byte[] environment = CHLObject.chain(options, state.toBytes());
+		for (File file : pendingHeaders) {
+			environment = CHLObject.chain(environment, ("header " + file.getName()).getBytes(ASCII));
+			environment = CHLObject.chain(environment, CHLObject.hash(file));
+		}
+		for (File file : pendingInfoFiles) {
+			environment = CHLObject.chain(environment, ("info " + file.getName()).getBytes(ASCII));
+			environment = CHLObject.chain(environment, CHLObject.hash(file));
+		}
+		return environment;
+	}
+	
+	/**Parses the symbols of the current file and records the changes to the compiler state into an object.
+	 * @param source
+	 * @param environment
+	 * @return
+	 * @throws ParseException
+	 */
+	private CHLObject compileObject(SourceSymbols source, byte[] environment) throws ParseException {
+		final List<Script> scripts = chl.getScriptsSection().getItems();
+		final List<String> globals = chl.getGlobalVariables().getNames();
+		final int base = getIp();
+		final int firstScript = scripts.size();
+		final int firstGlobal = globals.size();
+		final int firstCall = calls.size();
+		final int firstAutorun = autoruns.size();
+		final int firstStrptr = strptrInstructions.size();
+		final CHLObject obj = new CHLObject(source.hash, file.getPath(), environment);
+		obj.lexerLog = source.log;
+		out.print(source.log);
+		object = obj;
+		try {
+			parseSymbols(source.symbols);
+		} finally {
+			object = null;
+		}
+		//Instructions
+		for (int ip = base; ip < instructions.size(); ip++) {
+			Instruction instr = CHLObject.copyOf(instructions.get(ip));
+			if (instr.opcode.isIP) {
+				instr.intVal -= base;
+				obj.relocations.add(new CHLObject.Relocation(CHLObject.RELOC_IP, ip - base));
+			}
+			obj.code.add(instr);
+		}
+		for (int ip : strptrInstructions.subList(firstStrptr, strptrInstructions.size())) {
+			Instruction instr = obj.code.get(ip - base);
+			instr.intVal = obj.getStringIndex(instr.intVal);
+			obj.relocations.add(new CHLObject.Relocation(CHLObject.RELOC_STRING, ip - base));
+		}
+		for (ScriptToResolve call : calls.subList(firstCall, calls.size())) {
+			//The instruction may have been discarded by a failed attempt, but the call is still checked
+			boolean inCode = call.ip >= base && call.ip < instructions.size() && instructions.get(call.ip) == call.instr;
+			obj.calls.add(new CHLObject.Call(call.line, inCode ? call.ip - base : -1, call.name, call.argc));
+		}
+		//Scripts
+		for (Script script : scripts.subList(firstScript, scripts.size())) {
+			Script copy = new Script();
+			copy.setName(script.getName());
+			copy.setSourceFilename(script.getSourceFilename());
+			copy.setScriptType(script.getScriptType());
+			copy.setGlobalCount(script.getGlobalCount());
+			copy.setVariables(new ArrayList<>(script.getVariables()));
+			copy.setInstructionAddress(script.getInstructionAddress() - base);
+			copy.setParameterCount(script.getParameterCount());
+			obj.scripts.add(copy);
+		}
+		//Exports (constants, definitions and script info have been recorded while parsing)
+		for (String name : globals.subList(firstGlobal, globals.size())) {
+			obj.exports.globals.add(globalMap.get(name));
+		}
+		Iterator<ScriptToResolve> autorunsIt = autoruns.values().iterator();
+		for (int i = 0; autorunsIt.hasNext(); i++) {
+			ScriptToResolve autorun = autorunsIt.next();
+			if (i >= firstAutorun) {
+				obj.exports.autoruns.add(new CHLObject.Call(autorun.line, -1, autorun.name, 0));
+			}
+		}
+		obj.exports.intMath = intMath;
+		obj.exports.noYield = noYield;
+		return obj;
+	}
+	
+	/**Adds the content of an object to the CHL file, as if the source file had been parsed.
+	 * @param obj
+	 * @throws ParseException
+	 */
+	private void link(CHLObject obj) throws ParseException {
+		out.print(obj.lexerLog);
+		for (CHLObject.Message message : obj.messages) {
+			if (message.notice) {
+				notice(message.text);
+			} else {
+				warning(message.text);
+			}
+		}
+		//Exports
+		CHLObject.Exports exports = obj.exports;
+		Map<String, Integer> constants = hasPendingHeaders() ? linkedConstants : this.constants;
+		for (int i = 0; i < exports.constantNames.size(); i++) {
+			constants.put(exports.constantNames.get(i), exports.constantValues.get(i));
+		}
+		for (Var var : exports.globals) {
+			declareGlobalVar(var.name, var.type);
+		}
+		for (Script def : exports.definitions) {
+			scriptDefinitions.put(def.getName(), def);
+		}
+		for (int i = 0; i < exports.infoNames.size(); i++) {
+			scriptsInfo.put(exports.infoNames.get(i), exports.infos.get(i));
+		}
+		for (CHLObject.Call autorun : exports.autoruns) {
+			autoruns.put(autorun.name, new ScriptToResolve(file, autorun.line, -1, null, autorun.name, 0));
+		}
+		intMath = exports.intMath;
+		noYield = exports.noYield;
+		//Data
+		int[] pointers = new int[obj.strings.size()];
+		for (int i = 0; i < pointers.length; i++) {
+			pointers[i] = storeStringData(obj.strings.get(i));
+		}
+		//Code
+		final int base = getIp();
+		instructions.addAll(obj.code);
+		for (CHLObject.Relocation relocation : obj.relocations) {
+			Instruction instr = instructions.get(base + relocation.ip);
+			if (relocation.kind == CHLObject.RELOC_IP) {
+				instr.intVal += base;
+			} else {
+				strptrInstructions.add(base + relocation.ip);
+				instr.intVal = pointers[instr.intVal];
+			}
+		}
+		for (CHLObject.Call call : obj.calls) {
+			if (call.ip >= 0) {
+				calls.add(new ScriptToResolve(file, call.line, base + call.ip, instructions.get(base + call.ip), call.name, call.argc));
+			} else {
+				calls.add(new ScriptToResolve(file, call.line, -1, Instruction.fromKeyword("CALL"), call.name, call.argc));
+			}
+		}
+		for (Script script : obj.scripts) {
+			script.setScriptID(scriptId++);
+			script.setInstructionAddress(base + script.getInstructionAddress());
+			chl.getScriptsSection().getItems().add(script);
+		}
+	}
+	
+	private SourceSymbols getResult(Future<SourceSymbols> task) throws IOException, ParseException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SourceException) {
+				SourceException se = (SourceException) cause;
+				out.print(se.log);
+				if (se.getCause() instanceof IOException) throw (IOException) se.getCause();
+				throw (ParseException) se.getCause();
+			}
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+	
 	public void parse(File file) throws ParseException, IOException {
 		try {
 			this.file = file;
 			sourceFilename = file.getName();
 			info("compiling "+sourceFilename+"...");
-			CHLLexer lexer = new CHLLexer();
 			List<Token> tokens = lexer.tokenize(file);
 			parse(tokens);
 		} finally {
@@ -293,17 +782,26 @@ public class CHLCompiler implements Compiler {
 	}
 	
 	public void parse(List<Token> tokens) throws ParseException, IllegalStateException {
+		parseSymbols(convertToNodes(tokens, file));
+	}
+	
+	private void parseSymbols(List<SymbolInstance> symbols) throws ParseException, IllegalStateException {
 		if (sealed) {
 			throw new IllegalStateException("CHL file already sealed");
 		}
-		convertToNodes(tokens);
 		challengeName = null;
 		challengeId = null;
 		line = 0;
 		col = 0;
 		//
-		it = symbols.listIterator();
-		parseFile();
+		it = new SymbolCursor(symbols);
+		memo.clear();
+		attemptDepth = 0;
+		try {
+			parseFile();
+		} catch (ParseDiagnostic e) {
+			throw ParseDiagnostic.toParseException(e);
+		}
 	}
 	
 	private SymbolInstance parseFile() throws ParseException {
@@ -330,7 +828,7 @@ public class CHLCompiler implements Compiler {
 		}
 		SymbolInstance symbol = next();
 		if (symbol != SymbolInstance.EOF) {
-			throw new ParseException("Unexpected token: "+symbol+". Expected: EOF", file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic(() -> "Unexpected token: "+symbol+". Expected: EOF", file, symbol.token.line, symbol.token.col);
 		}
 		return replace(start, "FILE");
 	}
@@ -352,7 +850,7 @@ public class CHLCompiler implements Compiler {
 	private SymbolInstance parseChallenge() throws ParseException {
 		final int start = it.nextIndex();
 		SymbolInstance symbol = parse("challenge IDENTIFIER EOL")[1];
-		challengeName = symbol.token.value;
+		challengeName = symbol.token.getValue();
 		challengeId = getConstant("CHALLENGE_" + challengeName);
 		if (challengeId == -1) {
 			notice("NOTICE: challenge id "+challengeName+" is dummy, snapshot and highlight statements "
@@ -368,6 +866,7 @@ public class CHLCompiler implements Compiler {
 			int varId = globalMap.size() + 1;	//Global variables are indexed starting from 1
 			var = new Var(name, varId, type, false);
 			globalMap.put(name, var);
+			memo.clear();
 		} else {
 			throw new ParseError("Redeclaration of global var "+name, file, line, col);
 		}
@@ -380,26 +879,31 @@ public class CHLCompiler implements Compiler {
 		if (symbol.is("constant")) {
 			//global constant IDENTIFIER = CONSTANT
 			symbol = parse("constant IDENTIFIER =")[1];
-			String name = symbol.token.value;
+			String name = symbol.token.getValue();
 			symbol = next();
 			int val;
 			if (symbol.is(TokenType.NUMBER) || symbol.is(TokenType.IDENTIFIER)) {
 				val = getConstant(symbol);
 			} else {
-				throw new ParseException("Unexpected token: "+symbol+". Expected: CONSTANT", lastParseException, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: CONSTANT", lastParseException, file, symbol.token.line, symbol.token.col);
 			}
 			accept(TokenType.EOL);
-			Integer oldVal = constants.put(name, val);
+			Integer oldVal = getGlobalConstant(name);
+			constants.put(name, val);
+			if (object != null) {
+				object.exports.addConstant(name, val);
+			}
+			memo.clear();
 			if (oldVal != null && oldVal != val) {
 				warning("WARNING: redefinition of global constant: "+name+" at "+file+":"+symbol.token.line);
 			}
 			return replace(start, "GLOBAL_CONST_DECL");
 		} else {
 			//global [DATATYPE] IDENTIFIER
-			DataType type = getType(symbol.token.value);
+			DataType type = getType(symbol.token.getValue());
 			if (type != null) next();
 			symbol = accept(TokenType.IDENTIFIER);
-			String name = symbol.token.value;
+			String name = symbol.token.getValue();
 			symbol = peek(false);
 			if (symbol.is("=")) {
 				warning("WARNING: global variable initialization is not supported, it will be ignored. "
@@ -428,6 +932,17 @@ public class CHLCompiler implements Compiler {
 			def.setName(name);
 			def.setParameterCount(parameterCount);
 			scriptDefinitions.put(name, def);
+			if (object != null) {
+				object.exports.definitions.add(def);
+			}
+		}
+	}
+	
+	private void putScriptInfo(String name) {
+		ScriptInfo info = new ScriptInfo();
+		scriptsInfo.put(name, info);
+		if (object != null) {
+			object.exports.addInfo(name, info);
 		}
 	}
 	
@@ -439,8 +954,8 @@ public class CHLCompiler implements Compiler {
 		SymbolInstance symbol = parseScriptType();
 		ScriptType type = ScriptType.fromKeyword(symbol.toString());
 		symbol = accept(TokenType.IDENTIFIER);
-		String name = symbol.token.value;
-		scriptsInfo.put(name, new ScriptInfo());
+		String name = symbol.token.getValue();
+		putScriptInfo(name);
 		symbol = peek();
 		int argc = 0;
 		if (symbol.is("(")) {
@@ -455,10 +970,10 @@ public class CHLCompiler implements Compiler {
 		final int start = it.nextIndex();
 		//run script IDENTIFIER
 		SymbolInstance symbol = parse("run script IDENTIFIER EOL")[2];
-		String name = symbol.token.value;
+		String name = symbol.token.getValue();
 		ScriptToResolve toResolve = new ScriptToResolve(file, line, -1, null, name, 0);
 		if (autoruns.put(name, toResolve) != null) {
-			throw new ParseException("Duplicate autorun definition: "+name, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic("Duplicate autorun definition: "+name, file, symbol.token.line, symbol.token.col);
 		}
 		return replace(start, "run script IDENTIFIER EOL");
 	}
@@ -479,8 +994,8 @@ public class CHLCompiler implements Compiler {
 			ScriptType scriptType = ScriptType.fromKeyword(scriptTypeSymbol.toString());
 			script.setScriptType(scriptType);
 			SymbolInstance symbol = accept(TokenType.IDENTIFIER);
-			String name = symbol.token.value;
-			scriptsInfo.put(name, new ScriptInfo());
+			String name = symbol.token.getValue();
+			putScriptInfo(name);
 			script.setName(name);
 			int argc = 0;
 			symbol = peek();
@@ -530,11 +1045,11 @@ public class CHLCompiler implements Compiler {
 				end();
 			} catch (ParseException e) {
 				symbol = peek();
-				throw new ParseException("Unrecognized statement", lastParseException, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unrecognized statement", lastParseException, file, symbol.token.line, symbol.token.col);
 			}
 			symbol = accept(TokenType.IDENTIFIER);
-			if (!symbol.token.value.equals(name)) {
-				throw new ParseException("The script name at \"end script\" must match the one at \"begin script\"", file, symbol.token.line, symbol.token.col);
+			if (!symbol.token.getValue().equals(name)) {
+				throw new ParseDiagnostic("The script name at \"end script\" must match the one at \"begin script\"", file, symbol.token.line, symbol.token.col);
 			}
 			accept(TokenType.EOL);
 			return replace(start, "SCRIPT");
@@ -542,6 +1057,7 @@ public class CHLCompiler implements Compiler {
 			localMap.clear();
 			localConst.clear();
 			intMath = false;
+			memo.clear();
 		}
 	}
 	
@@ -563,7 +1079,7 @@ public class CHLCompiler implements Compiler {
 				accept("script");
 				return replace(start, "temple special script");
 			} else {
-				throw new ParseException("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
 			}
 		} else if (symbol.is("multiplayer")) {
 			parse("help script");
@@ -571,13 +1087,13 @@ public class CHLCompiler implements Compiler {
 		} else if (symbol.is("script")) {
 			return replace(start, "script");
 		} else {
-			throw new ParseException("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
 		}
 	}
 	
 	private boolean isDataType(SymbolInstance symbol) {
 		if (!symbol.is(TokenType.KEYWORD)) return false;
-		return getType(symbol.token.value) != null;
+		return getType(symbol.token.getValue()) != null;
 	}
 	
 	private DataType getType(String name) {
@@ -591,7 +1107,7 @@ public class CHLCompiler implements Compiler {
 	private DataType parseType() {
 		SymbolInstance symbol = peek();
 		if (!symbol.is(TokenType.KEYWORD)) return null;
-		DataType type = getType(symbol.token.value);
+		DataType type = getType(symbol.token.getValue());
 		if (type == null) return null;
 		next();
 		return type;
@@ -616,7 +1132,7 @@ public class CHLCompiler implements Compiler {
 			boolean varargs = parseVarargs();
 			int varargsIndex = varargs ? 0 : -1;
 			symbol = accept(TokenType.IDENTIFIER);
-			String name = symbol.token.value;
+			String name = symbol.token.getValue();
 			if (addToLocalVars) {
 				addLocalVar(name, type, varargs);
 			}
@@ -625,7 +1141,7 @@ public class CHLCompiler implements Compiler {
 			} else {
 				Var var = scriptInfo.vars.get(argc);
 				if (var.type != type || var.varargs != varargs) {
-					throw new ParseException("Argument "+argc+" doesn't match previous definition", file, line, col);
+					throw new ParseDiagnostic("Argument "+argc+" doesn't match previous definition", file, line, col);
 				}
 			}
 			argc++;
@@ -636,12 +1152,12 @@ public class CHLCompiler implements Compiler {
 				varargs = parseVarargs();
 				if (varargs) {
 					if (varargsIndex >= 0) {
-						throw new ParseException("Only one variadic argument is allowed", file, line, col);
+						throw new ParseDiagnostic("Only one variadic argument is allowed", file, line, col);
 					}
 					varargsIndex = argc;
 				}
 				symbol = accept(TokenType.IDENTIFIER);
-				name = symbol.token.value;
+				name = symbol.token.getValue();
 				if (addToLocalVars) {
 					addLocalVar(name, type, varargs);
 				}
@@ -650,7 +1166,7 @@ public class CHLCompiler implements Compiler {
 				} else {
 					Var var = scriptInfo.vars.get(argc);
 					if (var.type != type || var.varargs != varargs) {
-						throw new ParseException("Argument "+argc+" doesn't match previous definition", file, line, col);
+						throw new ParseDiagnostic("Argument "+argc+" doesn't match previous definition", file, line, col);
 					}
 				}
 				argc++;
@@ -659,7 +1175,7 @@ public class CHLCompiler implements Compiler {
 			if (varargsIndex >= 0) {
 				scriptInfo.varargs = true;
 				if (!scriptInfo.checkArgc()) {
-					throw new ParseException("Variadic argument must be preceded by 'int argc'", file, line, col);
+					throw new ParseDiagnostic("Variadic argument must be preceded by 'int argc'", file, line, col);
 				}
 				//Required to force the copy the whole stack from the caller to the callee
 				if (addToLocalVars) {
@@ -685,7 +1201,7 @@ public class CHLCompiler implements Compiler {
 			argc++;
 			while (true) {
 				if (symbol == SymbolInstance.EOF) {
-					throw new ParseException("Unexpected end of file", file, line, col);
+					throw new ParseDiagnostic("Unexpected end of file", file, line, col);
 				}
 				if (depth == 0) {
 					if (symbol.is(",")) {
@@ -696,10 +1212,12 @@ public class CHLCompiler implements Compiler {
 						it.remove();
 						symbol = next();
 						if (!symbol.is(TokenType.STRING)) {
-							throw new ParseException("Expected: STRING", file, line, col);
+							throw new ParseDiagnostic("Expected: STRING", file, line, col);
 						}
 						it.remove();
 						argc--;
+						sideEffects++;
+						memo.clear();
 						char[] chars = symbol.token.stringVal().toCharArray();
 						if (chars.length > 0) {
 							int packed = 0;
@@ -710,17 +1228,17 @@ public class CHLCompiler implements Compiler {
 								n += 7;
 								if (n == 28) {
 									if (i > 3) {
-										it.add(toSymbol(new Token(line, col, TokenType.KEYWORD, ",")));
+										it.add(toSymbol(new Token(line, col, TokenType.KEYWORD, ","), file));
 									}
-									it.add(toSymbol(new Token(line, col, TokenType.NUMBER, String.valueOf(packed))));
+									it.add(toSymbol(new Token(line, col, TokenType.NUMBER, String.valueOf(packed)), file));
 									packed = 0;
 									n = 0;
 									argc++;
 								}
 							}
 							if (n > 0) {
-								it.add(toSymbol(new Token(line, col, TokenType.KEYWORD, ",")));
-								it.add(toSymbol(new Token(line, col, TokenType.NUMBER, String.valueOf(packed))));
+								it.add(toSymbol(new Token(line, col, TokenType.KEYWORD, ","), file));
+								it.add(toSymbol(new Token(line, col, TokenType.NUMBER, String.valueOf(packed)), file));
 								argc++;
 							}
 						}
@@ -728,19 +1246,21 @@ public class CHLCompiler implements Compiler {
 						it.remove();
 						symbol = next();
 						if (!symbol.is(TokenType.STRING)) {
-							throw new ParseException("Expected: STRING", file, line, col);
+							throw new ParseDiagnostic("Expected: STRING", file, line, col);
 						}
 						it.remove();
 						argc--;
+						sideEffects++;
+						memo.clear();
 						char[] chars = symbol.token.stringVal().toCharArray();
 						if (chars.length > 0) {
 							int c = (int)chars[0];
-							it.add(toSymbol(new Token(line, col, TokenType.NUMBER, String.valueOf(c))));
+							it.add(toSymbol(new Token(line, col, TokenType.NUMBER, String.valueOf(c)), file));
 							argc++;
 							for (int i = 1; i < chars.length; i++) {
 								c = (int)chars[i];
-								it.add(toSymbol(new Token(line, col, TokenType.KEYWORD, ",")));
-								it.add(toSymbol(new Token(line, col, TokenType.NUMBER, String.valueOf(c))));
+								it.add(toSymbol(new Token(line, col, TokenType.KEYWORD, ","), file));
+								it.add(toSymbol(new Token(line, col, TokenType.NUMBER, String.valueOf(c)), file));
 								argc++;
 							}
 						}
@@ -761,14 +1281,14 @@ public class CHLCompiler implements Compiler {
 		final int start = it.nextIndex();
 		final ScriptInfo scriptInfo = scriptsInfo.get(scriptName);
 		if (scriptInfo == null) {
-			throw new ParseException("Script "+scriptName+" not found", file, line, col);
+			throw new ParseDiagnostic("Script "+scriptName+" not found", file, line, col);
 		}
 		int parametersCount = 0;
 		int vargc = 0;
 		if (scriptInfo.varargs) {
 			parametersCount = countParameters();
 			if (parametersCount > VA_MAX - 1) {
-				throw new ParseException("Max parameters for variadic function is "+(VA_MAX-1), file, line, col);
+				throw new ParseDiagnostic("Max parameters for variadic function is "+(VA_MAX-1), file, line, col);
 			}
 			vargc = parametersCount - (scriptInfo.vars.size() - 2);
 		}
@@ -830,7 +1350,7 @@ public class CHLCompiler implements Compiler {
 			}
 			symbol = peek();
 			//TODO verify the need to handle CONDITION
-			throw new ParseException("Expected: EXPRESSION|OBJECT|CONST_EXPR", lastParseException, file, line, col);
+			throw new ParseDiagnostic("Expected: EXPRESSION|OBJECT|CONST_EXPR", lastParseException, file, line, col);
 		} else if (type == DataType.FLOAT) {
 			return parseExpression(true);
 		} else if (type == DataType.INT) {
@@ -840,7 +1360,7 @@ public class CHLCompiler implements Compiler {
 		} else if (type == DataType.BOOLEAN) {
 			return parseCondition(true);
 		} else {
-			throw new ParseException("Unsupported argument type: "+type.keyword, file, line, col);
+			throw new ParseDiagnostic("Unsupported argument type: "+type.keyword, file, line, col);
 		}
 	}
 	
@@ -856,12 +1376,13 @@ public class CHLCompiler implements Compiler {
 	
 	private void addLocalVar(String name, DataType type, boolean varargs) throws ParseException {
 		if (localMap.containsKey(name)) {
-			throw new ParseException("Duplicate local variable: "+name, file, line, col);
+			throw new ParseDiagnostic("Duplicate local variable: "+name, file, line, col);
 		}
 		List<String> scriptVars = currentScript.getVariables();
 		scriptVars.add(name);
 		int id = currentScript.getGlobalCount() + scriptVars.size();
 		localMap.put(name, new Var(name, id, type, varargs));
+		memo.clear();
 	}
 	
 	private SymbolInstance parseLocal() throws ParseException {
@@ -869,14 +1390,14 @@ public class CHLCompiler implements Compiler {
 		SymbolInstance symbol = next();
 		if (symbol.is(TokenType.IDENTIFIER)) {
 			//IDENTIFIER = EXPRESSION
-			String var = symbol.token.value;
+			String var = symbol.token.getValue();
 			accept("=");
 			symbol = parseExpression(false);
 			if (symbol == null) {
 				symbol = parseObject(false);
 				if (symbol == null) {
 					symbol = peek();
-					throw new ParseException("Expected: EXPRESSION|OBJECT", lastParseException, file, symbol.token.line, symbol.token.col);
+					throw new ParseDiagnostic("Expected: EXPRESSION|OBJECT", lastParseException, file, symbol.token.line, symbol.token.col);
 				}
 			}
 			accept(TokenType.EOL);
@@ -886,23 +1407,24 @@ public class CHLCompiler implements Compiler {
 		} else if (symbol.is("constant")) {
 			//constant IDENTIFIER = CONSTANT
 			parse("IDENTIFIER =");
-			String constant = symbol.token.value;
+			String constant = symbol.token.getValue();
 			if (localConst.containsKey(constant)) {
-				throw new ParseException("Duplicate constant: "+constant, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Duplicate constant: "+constant, file, symbol.token.line, symbol.token.col);
 			}
 			symbol = next();
 			if (symbol.is(TokenType.NUMBER) || symbol.is(TokenType.IDENTIFIER)) {
 				int val = getConstant(symbol);
 				localConst.put(constant, val);
+				memo.clear();
 			} else {
-				throw new ParseException("Unexpected token: "+symbol+". Expected: CONSTANT", lastParseException, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: CONSTANT", lastParseException, file, symbol.token.line, symbol.token.col);
 			}
 			accept(TokenType.EOL);
 			return replace(start, "CONST_DECL");
 		} else if (symbol.is("int")) {
 			//int IDENTIFIER = CONST_EXPR
 			symbol = accept(TokenType.IDENTIFIER);
-			String var = symbol.token.value;
+			String var = symbol.token.getValue();
 			accept("=");
 			symbol = parseConstExpr(true);
 			accept(TokenType.EOL);
@@ -912,7 +1434,7 @@ public class CHLCompiler implements Compiler {
 		} else if (symbol.is("float")) {
 			//float IDENTIFIER = CONST_EXPR
 			symbol = accept(TokenType.IDENTIFIER);
-			String var = symbol.token.value;
+			String var = symbol.token.getValue();
 			accept("=");
 			symbol = parseExpression(true);
 			accept(TokenType.EOL);
@@ -922,7 +1444,7 @@ public class CHLCompiler implements Compiler {
 		} else if (symbol.is("object")) {
 			//object IDENTIFIER = CONST_EXPR
 			symbol = accept(TokenType.IDENTIFIER);
-			String var = symbol.token.value;
+			String var = symbol.token.getValue();
 			accept("=");
 			symbol = parseObject(true);
 			accept(TokenType.EOL);
@@ -930,7 +1452,7 @@ public class CHLCompiler implements Compiler {
 			popi(var);
 			return replace(start, "LOCAL_DECL");
 		} else {
-			throw new ParseException("Unexpected token: "+symbol+". Expected: IDENTIFIER|constant|DATATYPE", lastParseException, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: IDENTIFIER|constant|DATATYPE", lastParseException, file, symbol.token.line, symbol.token.col);
 		}
 	}
 	
@@ -951,111 +1473,16 @@ public class CHLCompiler implements Compiler {
 			parseStatementAnnotation();
 			symbol = peek();
 		}
+		memo.clear();
 		//
-		if (symbol.is("challenge")) {
-			return parseChallenge();
-		} else if (symbol.is("remove")) {
-			return parseRemove();
-		} else if (symbol.is("add")) {
-			return parseAdd();
-		} else if (symbol.is("move")) {
-			return parseMove();
-		} else if (symbol.is("set")) {
-			return parseSet();
-		} else if (symbol.is("delete")) {
-			return parseDelete();
-		} else if (symbol.is("release")) {
-			return parseRelease();
-		} else if (symbol.is("enable") || symbol.is("disable")) {
-			return parseEnableDisable();
-		} else if (symbol.is("open") || symbol.is("close")) {
-			return parseOpenClose();
-		} else if (symbol.is("teach")) {
-			return parseTeach();
-		} else if (symbol.is("force")) {
-			return parseForce();
-		} else if (symbol.is("initialise")) {
-			return parseInitialise();
-		} else if (symbol.is("clear")) {
-			return parseClear();
-		} else if (symbol.is("attach")) {
-			return parseAttach();
-		} else if (symbol.is("toggle")) {
-			return parseToggle();
-		} else if (symbol.is("detach")) {
-			return parseDetach();
-		} else if (symbol.is("swap")) {
-			return parseSwap();
-		} else if (symbol.is("queue")) {
-			return parseQueue();
-		} else if (symbol.is("pause") || symbol.is("unpause")) {
-			return parsePauseUnpause();
-		} else if (symbol.is("load")) {
-			return parseLoad();
-		} else if (symbol.is("save")) {
-			return parseSave();
-		} else if (symbol.is("stop")) {
-			return parseStop();
-		} else if (symbol.is("start")) {
-			return parseStart();
-		} else if (symbol.is("disband")) {
-			return parseDisband();
-		} else if (symbol.is("populate")) {
-			return parsePopulate();
-		} else if (symbol.is("affect")) {
-			return parseAffect();
-		} else if (symbol.is("snapshot")) {
-			return parseSnapshot();
-		} else if (symbol.is("update")) {
-			return parseUpdate();
-		} else if (symbol.is("build")) {
-			return parseBuild();
-		} else if (symbol.is("run")) {
-			return parseRun();
-		} else if (symbol.is("wait")) {
-			return parseWait();
-		} else if (symbol.is("enter") || symbol.is("exit")) {
-			return parseEnterExit();
-		} else if (symbol.is("restart")) {
-			return parseRestart();
-		} else if (symbol.is("state")) {
-			return parseState();
-		} else if (symbol.is("make")) {
-			return parseMake();
-		} else if (symbol.is("eject")) {
-			return parseEject();
-		} else if (symbol.is("send")) {
-			return parseSend();
-		} else if (symbol.is("say")) {
-			return parseSay();
-		} else if (symbol.is("draw")) {
-			return parseDraw();
-		} else if (symbol.is("fade")) {
-			return parseFade();
-		} else if (symbol.is("store")) {
-			return parseStore();
-		} else if (symbol.is("restore")) {
-			return parseRestore();
-		} else if (symbol.is("reset")) {
-			return parseReset();
-		} else if (symbol.is("camera")) {
-			return parseStatementCamera();
-		} else if (symbol.is("shake")) {
-			return parseShake();
-		} else if (symbol.is("if")) {
-			return parseIf();
-		} else if (symbol.is("while")) {
-			return parseWhile();
-		} else if (symbol.is("begin")) {
-			return parseBegin();
-		} else if (symbol.is("int")) {
-			accept("int");
-			return parseIntAssignment();
+		final KeywordParser parser = getParser(statementParsers, symbol);
+		if (parser != null) {
+			return parser.parse();
 		} else if (symbol.is(TokenType.IDENTIFIER)) {
 			if (checkAhead("ANY play")) {
 				return parseObjectPlay();
 			} else {
-				Var var = getVar(symbol.token.value);
+				Var var = getVar(symbol.token.getValue());
 				if (var != null && var.type == DataType.INT) {
 					return parseIntAssignment();
 				} else {
@@ -1065,10 +1492,161 @@ public class CHLCompiler implements Compiler {
 		} else if (symbol.is(TokenType.ANNOTATION)) {
 			return parseStandaloneAnnotation();
 		}
-		lastParseException = new ParseException("Unexpected token: "+symbol+". Expected STATEMENT", lastParseException, file, line, col);
+		lastParseException = new ParseDiagnostic("Unexpected token: "+symbol+". Expected STATEMENT", lastParseException, file, line, col);
 		return null;
 	}
 	
+	private void registerParsers() {
+		register(statementParsers, this::parseChallenge, "challenge");
+		register(statementParsers, this::parseRemove, "remove");
+		register(statementParsers, this::parseAdd, "add");
+		register(statementParsers, this::parseMove, "move");
+		register(statementParsers, this::parseSet, "set");
+		register(statementParsers, this::parseDelete, "delete");
+		register(statementParsers, this::parseRelease, "release");
+		register(statementParsers, this::parseEnableDisable, "enable", "disable");
+		register(statementParsers, this::parseOpenClose, "open", "close");
+		register(statementParsers, this::parseTeach, "teach");
+		register(statementParsers, this::parseForce, "force");
+		register(statementParsers, this::parseInitialise, "initialise");
+		register(statementParsers, this::parseClear, "clear");
+		register(statementParsers, this::parseAttach, "attach");
+		register(statementParsers, this::parseToggle, "toggle");
+		register(statementParsers, this::parseDetach, "detach");
+		register(statementParsers, this::parseSwap, "swap");
+		register(statementParsers, this::parseQueue, "queue");
+		register(statementParsers, this::parsePauseUnpause, "pause", "unpause");
+		register(statementParsers, this::parseLoad, "load");
+		register(statementParsers, this::parseSave, "save");
+		register(statementParsers, this::parseStop, "stop");
+		register(statementParsers, this::parseStart, "start");
+		register(statementParsers, this::parseDisband, "disband");
+		register(statementParsers, this::parsePopulate, "populate");
+		register(statementParsers, this::parseAffect, "affect");
+		register(statementParsers, this::parseSnapshot, "snapshot");
+		register(statementParsers, this::parseUpdate, "update");
+		register(statementParsers, this::parseBuild, "build");
+		register(statementParsers, this::parseRun, "run");
+		register(statementParsers, this::parseWait, "wait");
+		register(statementParsers, this::parseEnterExit, "enter", "exit");
+		register(statementParsers, this::parseRestart, "restart");
+		register(statementParsers, this::parseState, "state");
+		register(statementParsers, this::parseMake, "make");
+		register(statementParsers, this::parseEject, "eject");
+		register(statementParsers, this::parseSend, "send");
+		register(statementParsers, this::parseSay, "say");
+		register(statementParsers, this::parseDraw, "draw");
+		register(statementParsers, this::parseFade, "fade");
+		register(statementParsers, this::parseStore, "store");
+		register(statementParsers, this::parseRestore, "restore");
+		register(statementParsers, this::parseReset, "reset");
+		register(statementParsers, this::parseStatementCamera, "camera");
+		register(statementParsers, this::parseShake, "shake");
+		register(statementParsers, this::parseIf, "if");
+		register(statementParsers, this::parseWhile, "while");
+		register(statementParsers, this::parseBegin, "begin");
+		register(statementParsers, () -> {
+			accept("int");
+			return parseIntAssignment();
+		}, "int");
+		//
+		register(expressionParsers, Syntax.getSymbol("EXPRESSION"), this::parseExpressionRemove, "remove");
+		register(expressionParsers, Syntax.getSymbol("EXPRESSION"), this::parseExpressionAdd, "add");
+		register(expressionParsers, Syntax.getSymbol("EXPRESSION"), this::parseExpressionAlignment, "alignment");
+		register(expressionParsers, Syntax.getSymbol("EXPRESSION"), this::parseExpressionInfluence, "raw", "influence");
+		register(expressionParsers, Syntax.getSymbol("EXPRESSION"), this::parseExpressionGet, "get");
+		register(expressionParsers, Syntax.getSymbol("EXPRESSION"), this::parseExpressionLand, "land");
+		register(expressionParsers, Syntax.getSymbol("EXPRESSION"), this::parseExpressionTime, "time");
+		register(expressionParsers, Syntax.getSymbol("EXPRESSION"), this::parseExpressionNumber, "number");
+		register(expressionParsers, Syntax.getSymbol("EXPRESSION"), this::parseExpressionSize, "size");
+		register(expressionParsers, Syntax.getSymbol("EXPRESSION"), this::parseExpressionAdult, "adult");
+		register(expressionParsers, Syntax.getSymbol("EXPRESSION"), this::parseExpressionCapacity, "capacity");
+		register(expressionParsers, Syntax.getSymbol("EXPRESSION"), this::parseExpressionPoisoned, "poisoned");
+		register(expressionParsers, Syntax.getSymbol("EXPRESSION"), this::parseExpressionSquare, "square");
+		register(expressionParsers, Syntax.getSymbol("EXPRESSION"), this::parseExpressionNegation, "-");
+		register(expressionParsers, Syntax.getSymbol("EXPRESSION"), this::parseExpressionVariable, "variable");
+		register(expressionParsers, Syntax.getSymbol("EXPRESSION"), this::parseExpressionVaArg, "va_arg");
+		register(expressionParsers, Syntax.getSymbol("EXPRESSION"), this::parseExpressionParenthesis, "(");
+		//
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionKey, "key");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionInside, "inside");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionWithin, "within");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionHand, "hand");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionJc, "jc");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionFire, "fire");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionSpell, "spell");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionCamera, "camera");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionWidescreen, "widescreen");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionFade, "fade");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionDialogue, "dialogue");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionComputer, "computer");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionPlayer, "player");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionCreature, "creature");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionGet, "get");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionRead, "read");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionHelp, "help");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionImmersion, "immersion");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionSound, "sound");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionMusic, "music");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionNot, "not");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionSay, "say");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionCan, "can");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionIs, "is");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionCurrent, "current");
+		register(conditionParsers, Syntax.getSymbol("CONDITION"), this::parseConditionParenthesis, "(");
+	}
+	
+	private static void register(KeywordParser[] parsers, KeywordParser parser, String... keywords) {
+		for (String keyword : keywords) {
+			parsers[Syntax.getSymbol(keyword).id] = parser;
+		}
+	}
+	
+	/**Registers a parser of a nonterminal whose attempts are discarded when {@link Syntax#canStart(Symbol, Symbol)}
+	 * tells that it can't start with the next symbol. The keywords must be in the FIRST set of the
+	 * nonterminal according to the syntax, otherwise the parser would never be reached.
+	 */
+	private static void register(KeywordParser[] parsers, Symbol target, KeywordParser parser, String... keywords) {
+		for (String keyword : keywords) {
+			checkCanStart(target, Syntax.getSymbol(keyword));
+		}
+		register(parsers, parser, keywords);
+	}
+	
+	/**Checks that the symbols accepted first by the branches listed in {@link #FIRST_ACCEPTED} pass
+	 * {@link Syntax#canStart(Symbol, Symbol)}. When a nonterminal is accepted first, all the symbols
+	 * which can start it are checked too.
+	 */
+	private static void checkFirstAccepted() {
+		for (int i = 0; i < FIRST_ACCEPTED.length; i++) {
+			Symbol target = ParseMemo.SYMBOLS[i];
+			for (String keyword : FIRST_ACCEPTED[i]) {
+				Symbol symbol = Syntax.getSymbol(keyword);
+				if (symbol == null) {
+					throw new IllegalStateException("Unknown symbol \""+keyword+"\" accepted first by "+target.keyword);
+				}
+				checkCanStart(target, symbol);
+				if (symbol.first != null) {
+					for (int id = symbol.first.nextSetBit(0); id >= 0; id = symbol.first.nextSetBit(id + 1)) {
+						checkCanStart(target, Syntax.getSymbol(id));
+					}
+				}
+			}
+		}
+	}
+	
+	private static void checkCanStart(Symbol target, Symbol symbol) {
+		if (!Syntax.canStart(target, symbol)) {
+			throw new IllegalStateException("According to the syntax "+target.keyword+" can't start with "
+					+symbol.keyword+", which is accepted by the parser");
+		}
+	}
+	
+	private static KeywordParser getParser(KeywordParser[] parsers, SymbolInstance symbol) {
+		final int id = symbol.getKeywordId();
+		return id >= 0 ? parsers[id] : null;
+	}
+	
 	private SymbolInstance parseStatementAnnotation() throws ParseException {
 		final int start = it.nextIndex();
 		SymbolInstance symbol = accept(TokenType.ANNOTATION);
@@ -1077,7 +1655,7 @@ public class CHLCompiler implements Compiler {
 			noYield = true;
 			return replace(start, "ANNOTATION");
 		}
-		throw new ParseException("Unexpected annotation: "+annotation, file, symbol.token.line, symbol.token.col);
+		throw new ParseDiagnostic("Unexpected annotation: "+annotation, file, symbol.token.line, symbol.token.col);
 	}
 	
 	private SymbolInstance parseStandaloneAnnotation() throws ParseException {
@@ -1086,19 +1664,21 @@ public class CHLCompiler implements Compiler {
 		String annotation = symbol.toString().trim();
 		if ("//@intmath(on)".equals(annotation)) {
 			intMath = true;
+			memo.clear();
 			return replace(start, "ANNOTATION");
 		} else if ("//@intmath(off)".equals(annotation)) {
 			intMath = false;
+			memo.clear();
 			return replace(start, "ANNOTATION");
 		}
-		throw new ParseException("Unknown annotation: "+annotation, file, symbol.token.line, symbol.token.col);
+		throw new ParseDiagnostic("Unknown annotation: "+annotation, file, symbol.token.line, symbol.token.col);
 	}
 	
 	private SymbolInstance parseObjectPlay() throws ParseException {
 		final int start = it.nextIndex();
 		//OBJECT play CONST_EXPR [loop EXPRESSION]
 		SymbolInstance symbol = accept(TokenType.IDENTIFIER);
-		String var = symbol.token.value;
+		String var = symbol.token.getValue();
 		pushf(var);
 		pusho(var);
 		parse("play CONST_EXPR [loop EXPRESSION] EOL", 1);
@@ -1147,7 +1727,7 @@ public class CHLCompiler implements Compiler {
 				sys(ADD_SPOT_VISUAL_TARGET_OBJECT);
 				return replace(start, "STATEMENT");
 			} else {
-				throw new ParseException("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
 			}
 		}
 	}
@@ -1207,7 +1787,7 @@ public class CHLCompiler implements Compiler {
 					sys(FOCUS_FOLLOW);
 					return replace(start, "STATEMENT");
 				} else {
-					throw new ParseException("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
+					throw new ParseDiagnostic("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
 				}
 			} else if (symbol.is("to")) {
 				accept("to");
@@ -1220,7 +1800,7 @@ public class CHLCompiler implements Compiler {
 				} else {
 					//move camera to CONSTANT time EXPRESSION
 					symbol = accept(TokenType.IDENTIFIER);
-					String camEnum = challengeName + symbol.token.value;
+					String camEnum = challengeName + symbol.token.getValue();
 					int constVal = getConstant(camEnum);
 					pushi(constVal);
 					sys(CONVERT_CAMERA_FOCUS);
@@ -1233,7 +1813,7 @@ public class CHLCompiler implements Compiler {
 					return replace(start, "STATEMENT");
 				}
 			} else {
-				throw new ParseException("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
 			}
 		} else {
 			parse("OBJECT position to COORD_EXPR [radius EXPRESSION] EOL");
@@ -1286,7 +1866,7 @@ public class CHLCompiler implements Compiler {
 				sys(SET_COMPUTER_PLAYER_ATTITUDE);
 				return replace(start, "STATEMENT");
 			} else {
-				throw new ParseException("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
 			}
 		} else if (symbol.is("game")) {
 			accept("game");
@@ -1311,7 +1891,7 @@ public class CHLCompiler implements Compiler {
 				sys2(SET_GAMESPEED);
 				return replace(start, "STATEMENT");
 			} else {
-				throw new ParseException("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
 			}
 		} else if (symbol.is("interaction")) {
 			parse("interaction CONST_EXPR EOL");
@@ -1332,7 +1912,7 @@ public class CHLCompiler implements Compiler {
 				sys(SET_FADE_IN);
 				return replace(start, "STATEMENT");
 			} else {
-				throw new ParseException("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
 			}
 		} else if (symbol.is("bookmark")) {
 			parse("bookmark EXPRESSION to COORD_EXPR EOL");
@@ -1413,7 +1993,7 @@ public class CHLCompiler implements Compiler {
 						return replace(start, "STATEMENT");
 					}
 				} else {
-					throw new ParseException("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
+					throw new ParseDiagnostic("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
 				}
 			} else if (symbol.is("to")) {
 				accept("to");
@@ -1426,7 +2006,7 @@ public class CHLCompiler implements Compiler {
 				} else {
 					//set camera to CONSTANT
 					symbol = parse("IDENTIFIER EOL")[0];
-					String camEnum = challengeName + symbol.token.value;
+					String camEnum = challengeName + symbol.token.getValue();
 					int constVal = getConstant(camEnum);
 					pushi(constVal);
 					sys(CONVERT_CAMERA_FOCUS);
@@ -1447,7 +2027,7 @@ public class CHLCompiler implements Compiler {
 				sys(CAMERA_PROPERTIES);
 				return replace(start, "STATEMENT");
 			} else {
-				throw new ParseException("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
 			}
 		} else if (symbol.is("dual")) {
 			parse("dual camera to OBJECT OBJECT EOL");
@@ -1482,7 +2062,7 @@ public class CHLCompiler implements Compiler {
 						sys(SET_FOCUS_ON_OBJECT);
 						return replace(start, "STATEMENT");
 					} else {
-						throw new ParseException("Unexpected token: "+symbol+". Expected: to|on", lastParseException, file, symbol.token.line, symbol.token.col);
+						throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: to|on", lastParseException, file, symbol.token.line, symbol.token.col);
 					}
 				} else if (symbol.is("anim")) {
 					parse("anim CONST_EXPR EOL");
@@ -1523,7 +2103,7 @@ public class CHLCompiler implements Compiler {
 						sys(CHANGE_LIGHTNING_PROPERTIES);
 						return replace(start, "STATEMENT");
 					} else {
-						throw new ParseException("Unexpected token: "+symbol+". Expected: inner|town|degrees|time|clouds|sheetmin", lastParseException, file, symbol.token.line, symbol.token.col);
+						throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: inner|town|degrees|time|clouds|sheetmin", lastParseException, file, symbol.token.line, symbol.token.col);
 					}
 				} else if (symbol.is("text")) {
 					parse("text property text CONST_EXPR category CONST_EXPR EOL");
@@ -1563,7 +2143,7 @@ public class CHLCompiler implements Compiler {
 				} else if (symbol.is("forward") || symbol.is("reverse")) {
 					//set OBJECT forward|reverse walk path CONST_EXPR from EXPRESSION to EXPRESSION
 					symbol = parse("forward|reverse walk path IDENTIFIER")[3];
-					String pathEnum = challengeName + symbol.token.value;
+					String pathEnum = challengeName + symbol.token.getValue();
 					int constVal = getConstant(pathEnum);
 					pushi(constVal);
 					parse("from EXPRESSION to EXPRESSION EOL");
@@ -1652,7 +2232,7 @@ public class CHLCompiler implements Compiler {
 						sys(SET_OBJECT_FADE_IN);
 						return replace(start, "STATEMENT");
 					} else {
-						throw new ParseException("Unexpected token: "+symbol+". Expected: start|in", lastParseException, file, symbol.token.line, symbol.token.col);
+						throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: start|in", lastParseException, file, symbol.token.line, symbol.token.col);
 					}
 				} else if (symbol.is("belief")) {
 					parse("belief scale EXPRESSION EOL");
@@ -1673,7 +2253,7 @@ public class CHLCompiler implements Compiler {
 						sys(SET_PLAYER_BELIEF);
 						return replace(start, "STATEMENT");
 					} else {
-						throw new ParseException("Unexpected token: "+symbol+". Expected: relative|belief", lastParseException, file, symbol.token.line, symbol.token.col);
+						throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: relative|belief", lastParseException, file, symbol.token.line, symbol.token.col);
 					}
 				} else if (symbol.is("building")) {
 					parse("building properties CONST_EXPR size EXPRESSION [destroys when placed] EOL");
@@ -1705,7 +2285,7 @@ public class CHLCompiler implements Compiler {
 					return replace(start, "STATEMENT");
 				} else {
 					symbol = peek();
-					throw new ParseException("Expected: EXPRESSION|OBJECT", lastParseException, file, symbol.token.line, symbol.token.col);
+					throw new ParseDiagnostic("Expected: EXPRESSION|OBJECT", lastParseException, file, symbol.token.line, symbol.token.col);
 				}
 			}
 		}
@@ -1723,7 +2303,7 @@ public class CHLCompiler implements Compiler {
 		} else {
 			//delete OBJECT [with fade]
 			symbol = parse("VARIABLE")[0];
-			String var = symbol.token.value;
+			String var = symbol.token.getValue();
 			symbol = peek();
 			if (symbol.is("with")) {
 				accept("with");
@@ -1738,7 +2318,7 @@ public class CHLCompiler implements Compiler {
 					parse("temple explode");
 					pushi(3);
 				} else {
-					throw new ParseException("Unexpected token: "+symbol+". Expected: fade|explosion|temple", lastParseException, file, symbol.token.line, symbol.token.col);
+					throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: fade|explosion|temple", lastParseException, file, symbol.token.line, symbol.token.col);
 				}
 			} else {
 				pushi(0);
@@ -1794,7 +2374,7 @@ public class CHLCompiler implements Compiler {
 				sys(SET_DRAW_LEASH);
 				return replace(start, "STATEMENT");
 			} else {
-				throw new ParseException("Unexpected token: "+symbol+". Expected: on|draw", lastParseException, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: on|draw", lastParseException, file, symbol.token.line, symbol.token.col);
 			}
 		} else if (symbol.is("player")) {
 			parse("player EXPRESSION");
@@ -1811,7 +2391,7 @@ public class CHLCompiler implements Compiler {
 				sys(SET_VIRTUAL_INFLUENCE);
 				return replace(start, "STATEMENT");
 			} else {
-				throw new ParseException("Unexpected token: "+symbol+". Expected: wind|virtual", lastParseException, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: wind|virtual", lastParseException, file, symbol.token.line, symbol.token.col);
 			}
 		} else if (symbol.is("fight")) {
 			parse("fight exit EOL");
@@ -1847,7 +2427,7 @@ public class CHLCompiler implements Compiler {
 				sys(SET_CREATURE_IN_TEMPLE);
 				return replace(start, "STATEMENT");
 			} else {
-				throw new ParseException("Unexpected token: "+symbol+". Expected: sound|in", lastParseException, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: sound|in", lastParseException, file, symbol.token.line, symbol.token.col);
 			}
 		} else if (symbol.is("sound")) {
 			parse("sound effects EOL");
@@ -1866,10 +2446,10 @@ public class CHLCompiler implements Compiler {
 				//TODO: enable|disable spell CONST_EXPR for player EXPRESSION
 				parse("for player EXPRESSION EOL");
 				//NOTICE: it looks like this statement was not present in BW1
-				throw new ParseException("Statement not implemented", file, line, col);
+				throw new ParseDiagnostic("Statement not implemented", file, line, col);
 				//return replace(start, "STATEMENT");
 			} else {
-				throw new ParseException("Unexpected token: "+symbol+". Expected: in|for", lastParseException, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: in|for", lastParseException, file, symbol.token.line, symbol.token.col);
 			}
 		} else if (symbol.is("angle")) {
 			parse("angle sound EOL");
@@ -1910,7 +2490,7 @@ public class CHLCompiler implements Compiler {
 				sys(PAUSE_UNPAUSE_STORM_CREATION_IN_CLIMATE_SYSTEM);
 				return replace(start, "STATEMENT");
 			} else {
-				throw new ParseException("Unexpected token: "+symbol+". Expected: weather|create", lastParseException, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: weather|create", lastParseException, file, symbol.token.line, symbol.token.col);
 			}
 		} else if (symbol.is("music")) {
 			parse("music on OBJECT EOL");
@@ -1997,7 +2577,7 @@ public class CHLCompiler implements Compiler {
 						sys(CREATURE_AUTOSCALE);
 						return replace(start, "STATEMENT");
 					} else {
-						throw new ParseException("Unexpected token: "+symbol+". Expected: fighting|scale", lastParseException, file, symbol.token.line, symbol.token.col);
+						throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: fighting|scale", lastParseException, file, symbol.token.line, symbol.token.col);
 					}
 				} else if (symbol.is("only")) {
 					parse("only for scripts EOL");
@@ -2060,7 +2640,7 @@ public class CHLCompiler implements Compiler {
 					sys(SET_AFFECTED_BY_WIND);
 					return replace(start, "STATEMENT");
 				} else {
-					throw new ParseException("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
+					throw new ParseDiagnostic("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
 				}
 			} else {
 				symbol = parseConstExpr(false);
@@ -2071,7 +2651,7 @@ public class CHLCompiler implements Compiler {
 					return replace(start, "STATEMENT");
 				} else {
 					symbol = peek();
-					throw new ParseException("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
+					throw new ParseDiagnostic("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
 				}
 			}
 		}
@@ -2172,7 +2752,7 @@ public class CHLCompiler implements Compiler {
 				sys(CLEAR_CLICKED_POSITION);
 				return replace(start, "STATEMENT");
 			} else {
-				throw new ParseException("Unexpected token: "+symbol+". Expected: object|position", lastParseException, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: object|position", lastParseException, file, symbol.token.line, symbol.token.col);
 			}
 		} else if (symbol.is("hit")) {
 			parse("hit object EOL");
@@ -2195,7 +2775,7 @@ public class CHLCompiler implements Compiler {
 			sys(CLEAR_CLIPPING_WINDOW);
 			return replace(start, "STATEMENT");
 		} else {
-			throw new ParseException("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
 		}
 	}
 	
@@ -2258,7 +2838,7 @@ public class CHLCompiler implements Compiler {
 					return replace(start, "STATEMENT");
 				}
 			} else {
-				throw new ParseException("Unexpected token: "+symbol+". Expected: leash|to", lastParseException, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: leash|to", lastParseException, file, symbol.token.line, symbol.token.col);
 			}
 		}
 	}
@@ -2338,7 +2918,7 @@ public class CHLCompiler implements Compiler {
 				popo();	//returns the removed object
 				return replace(start, "STATEMENT");
 			} else {
-				throw new ParseException("Unexpected token: "+symbol+". Expected: leash|in|from", lastParseException, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: leash|in|from", lastParseException, file, symbol.token.line, symbol.token.col);
 			}
 		}
 	}
@@ -2379,7 +2959,7 @@ public class CHLCompiler implements Compiler {
 				sys(SET_CREATURE_QUEUE_FIGHT_SPELL);
 				return replace(start, "STATEMENT");
 			} else {
-				throw new ParseException("Unexpected token: "+symbol+". Expected: move|step|spell", lastParseException, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: move|step|spell", lastParseException, file, symbol.token.line, symbol.token.col);
 			}
 		}
 	}
@@ -2417,7 +2997,7 @@ public class CHLCompiler implements Compiler {
 			sys(LOAD_CREATURE);
 			return replace(start, "STATEMENT");
 		} else {
-			throw new ParseException("Unexpected token: "+symbol+". Expected: computer|map|my_creature|creature", lastParseException, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic(() -> "Unexpected token: "+symbol+". Expected: computer|map|my_creature|creature", lastParseException, file, symbol.token.line, symbol.token.col);
 		}
 	}
 	
@@ -2436,7 +3016,7 @@ public class CHLCompiler implements Compiler {
 			sys(SAVE_GAME_IN_SLOT);
 			return replace(start, "STATEMENT");
 		} else {
-			throw new ParseException("Unexpected token: "+symbol+". Expected: computer|game", lastParseException, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic(() -> "Unexpected token: "+symbol+". Expected: computer|game", lastParseException, file, symbol.token.line, symbol.token.col);
 		}
 	}
 	
@@ -2472,7 +3052,7 @@ public class CHLCompiler implements Compiler {
 				sys(STOP_ALL_IMMERSION);
 				return replace(start, "STATEMENT");
 			} else {
-				throw new ParseException("Unexpected token: "+symbol+". Expected: games|scripts|immersion", lastParseException, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: games|scripts|immersion", lastParseException, file, symbol.token.line, symbol.token.col);
 			}
 		} else if (symbol.is("script")) {
 			parse("script STRING EOL");
@@ -2529,7 +3109,7 @@ public class CHLCompiler implements Compiler {
 				sys(STOP_LOOKING);
 				return replace(start, "STATEMENT");
 			} else {
-				throw new ParseException("Unexpected token: "+symbol+". Expected: pointing|looking", lastParseException, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: pointing|looking", lastParseException, file, symbol.token.line, symbol.token.col);
 			}
 		}
 	}
@@ -2597,7 +3177,7 @@ public class CHLCompiler implements Compiler {
 				sys(VORTEX_FADE_OUT);
 				return replace(start, "STATEMENT");
 			} else {
-				throw new ParseException("Unexpected token: "+symbol+". Expected: with|fade", lastParseException, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: with|fade", lastParseException, file, symbol.token.line, symbol.token.col);
 			}
 		}
 	}
@@ -2630,7 +3210,7 @@ public class CHLCompiler implements Compiler {
 		parse("affect alignment by EXPRESSION EOL");
 		//TODO: affect alignment by EXPRESSION
 		//NOTICE: most likely not supported in BW1
-		throw new ParseException("Statement not implemented", file, line, col);
+		throw new ParseDiagnostic("Statement not implemented", file, line, col);
 		//return replace(start, "STATEMENT");
 	}
 	
@@ -2641,8 +3221,9 @@ public class CHLCompiler implements Compiler {
 		sys(GET_CAMERA_POSITION);
 		sys(GET_CAMERA_FOCUS);
 		SymbolInstance script = parse("[success EXPRESSION] [alignment EXPRESSION] CONST_EXPR IDENTIFIER")[5];
-		String scriptName = script.token.value;
+		String scriptName = script.token.getValue();
 		int strptr = storeStringData(scriptName);
+		sideEffects++;
 		strptrInstructions.add(getIp());
 		pushi(strptr);
 		int argc = 0;
@@ -2672,9 +3253,10 @@ public class CHLCompiler implements Compiler {
 		} else {
 			//update snapshot [success EXPRESSION] [alignment EXPRESSION] CONST_EXPR SCRIPT[(PARAMETERS)]
 			SymbolInstance script = parse("[success EXPRESSION] [alignment EXPRESSION] CONST_EXPR IDENTIFIER")[5];
-			String scriptName = script.token.value;
+			String scriptName = script.token.getValue();
 			int strptr = storeStringData(scriptName);
-			strptrInstructions.add(getIp());
+			sideEffects++;
+		strptrInstructions.add(getIp());
 			pushi(strptr);
 			int argc = 0;
 			symbol = peek();
@@ -2703,7 +3285,7 @@ public class CHLCompiler implements Compiler {
 		SymbolInstance symbol = peek();
 		if (symbol.is("script")) {
 			SymbolInstance script = parse("script IDENTIFIER")[1];
-			String scriptName = script.token.value;
+			String scriptName = script.token.getValue();
 			symbol = peek();
 			int argc = 0;
 			if (symbol.is("(")) {
@@ -2720,7 +3302,7 @@ public class CHLCompiler implements Compiler {
 			return replace(start, "STATEMENT");
 		} else if (symbol.is("background")) {
 			SymbolInstance script = parse("background script IDENTIFIER")[2];
-			String scriptName = script.token.value;
+			String scriptName = script.token.getValue();
 			symbol = peek();
 			int argc = 0;
 			if (symbol.is("(")) {
@@ -2781,7 +3363,7 @@ public class CHLCompiler implements Compiler {
 		final int start = it.nextIndex();
 		//state OBJECT CONST_EXPR [position COORD_EXPR] [float EXPRESSION] [ulong EXPRESSION, EXPRESSION]
 		SymbolInstance symbol = parse("state VARIABLE CONST_EXPR")[1];
-		String object = symbol.token.value;
+		String object = symbol.token.getValue();
 		if (peek().is("position")) {
 			accept("position");
 			pushiVar(object);
@@ -2827,7 +3409,7 @@ public class CHLCompiler implements Compiler {
 					sys(SPIRIT_POINT_POS);
 					return replace(start, "STATEMENT");
 				} else {
-					throw new ParseException("Unexpected token: "+symbol+". Expected: to|at", lastParseException, file, symbol.token.line, symbol.token.col);
+					throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: to|at", lastParseException, file, symbol.token.line, symbol.token.col);
 				}
 			} else if (symbol.is("play")) {
 				parse("play across EXPRESSION down EXPRESSION CONST_EXPR [speed EXPRESSION] EOL", 1f);
@@ -2861,7 +3443,7 @@ public class CHLCompiler implements Compiler {
 						return replace(start, "STATEMENT");
 					} else {
 						symbol = peek();
-						throw new ParseException("Expected: OBJECT|COORD_EXPR", lastParseException, file, symbol.token.line, symbol.token.col);
+						throw new ParseDiagnostic("Expected: OBJECT|COORD_EXPR", lastParseException, file, symbol.token.line, symbol.token.col);
 					}
 				}
 			} else if (symbol.is("appear")) {
@@ -2875,7 +3457,7 @@ public class CHLCompiler implements Compiler {
 				sys(SPIRIT_DISAPPEAR);
 				return replace(start, "STATEMENT");
 			} else {
-				throw new ParseException("Unexpected token: "+symbol+". Expected: point|play|cling|fly|look|appear", lastParseException, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: point|play|cling|fly|look|appear", lastParseException, file, symbol.token.line, symbol.token.col);
 			}
 		} else {
 			parse("OBJECT dance CONST_EXPR around COORD_EXPR time EXPRESSION EOL");
@@ -3019,7 +3601,7 @@ public class CHLCompiler implements Compiler {
 			sys(FADE_FINISHED);
 			return replace(start, "STATEMENT");
 		} else {
-			throw new ParseException("Unexpected token: "+symbol+". Expected: all|ready", lastParseException, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic(() -> "Unexpected token: "+symbol+". Expected: all|ready", lastParseException, file, symbol.token.line, symbol.token.col);
 		}
 	}
 	
@@ -3060,13 +3642,13 @@ public class CHLCompiler implements Compiler {
 		} else if (symbol.is("path")) {
 			//camera path CONSTANT
 			symbol = parse("path IDENTIFIER EOL")[1];
-			String pathEnum = challengeName + symbol.token.value;
+			String pathEnum = challengeName + symbol.token.getValue();
 			int constVal = getConstant(pathEnum);
 			pushi(constVal);
 			sys(RUN_CAMERA_PATH);
 			return replace(start, "STATEMENT");
 		} else {
-			throw new ParseException("Unexpected token: "+symbol+". Expected: follow|path", lastParseException, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: follow|path", lastParseException, file, symbol.token.line, symbol.token.col);
 		}
 	}
 	
@@ -3085,7 +3667,7 @@ public class CHLCompiler implements Compiler {
 		if (symbol.is("of")) {
 			SymbolInstance[] symbols = parse("CONSTANT of VARIABLE");
 			int constant = getConstant(symbols[0]);
-			String var = symbols[2].token.value;
+			String var = symbols[2].token.getValue();
 			pushi(constant);
 			pushf(var);
 			sys2(GET_PROPERTY);
@@ -3110,21 +3692,21 @@ public class CHLCompiler implements Compiler {
 				//CONSTANT of OBJECT /= EXPRESSION
 				divf();
 			} else {
-				throw new ParseException("Unexpected token: "+symbol+". Expected: =|+=|-=|*=|/=", lastParseException, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: =|+=|-=|*=|/=", lastParseException, file, symbol.token.line, symbol.token.col);
 			}
 			sys2(SET_PROPERTY);
 			return replace(start, "STATEMENT");
 		} else if (symbol.is("=")) {
 			//IDENTIFIER = EXPRESSION
 			symbol = parse("VARIABLE =")[0];
-			String var = symbol.token.value;
+			String var = symbol.token.getValue();
 			popi();
 			symbol = parseExpression(false);
 			if (symbol == null) {
 				symbol = parseObject(false);
 				if (symbol == null) {
 					symbol = peek();
-					throw new ParseException("Expected: EXPRESSION|OBJECT", lastParseException, file, symbol.token.line, symbol.token.col);
+					throw new ParseDiagnostic("Expected: EXPRESSION|OBJECT", lastParseException, file, symbol.token.line, symbol.token.col);
 				}
 			}
 			accept(TokenType.EOL);
@@ -3133,35 +3715,35 @@ public class CHLCompiler implements Compiler {
 		} else if (symbol.is("+=")) {
 			//VARIABLE += EXPRESSION
 			symbol = parse("VARIABLE += EXPRESSION EOL")[0];
-			String var = symbol.token.value;
+			String var = symbol.token.getValue();
 			addf();
 			popf(var);
 			return replace(start, "STATEMENT");
 		} else if (symbol.is("-=")) {
 			//VARIABLE -= EXPRESSION
 			symbol = parse("VARIABLE -= EXPRESSION EOL")[0];
-			String var = symbol.token.value;
+			String var = symbol.token.getValue();
 			subf();
 			popf(var);
 			return replace(start, "STATEMENT");
 		} else if (symbol.is("*=")) {
 			//VARIABLE *= EXPRESSION
 			symbol = parse("VARIABLE *= EXPRESSION EOL")[0];
-			String var = symbol.token.value;
+			String var = symbol.token.getValue();
 			mulf();
 			popf(var);
 			return replace(start, "STATEMENT");
 		} else if (symbol.is("/=")) {
 			//VARIABLE /= EXPRESSION
 			symbol = parse("VARIABLE /= EXPRESSION EOL")[0];
-			String var = symbol.token.value;
+			String var = symbol.token.getValue();
 			divf();
 			popf(var);
 			return replace(start, "STATEMENT");
 		} else if (symbol.is("++")) {
 			//VARIABLE++
 			symbol = parse("VARIABLE ++ EOL")[0];
-			String var = symbol.token.value;
+			String var = symbol.token.getValue();
 			pushf(1);
 			addf();
 			popf(var);
@@ -3169,28 +3751,28 @@ public class CHLCompiler implements Compiler {
 		} else if (symbol.is("--")) {
 			//VARIABLE--
 			symbol = parse("VARIABLE -- EOL")[0];
-			String var = symbol.token.value;
+			String var = symbol.token.getValue();
 			pushf(1);
 			subf();
 			popf(var);
 			return replace(start, "STATEMENT");
-		} else if ("elseif".equals(symbol0.token.value)) {
-			throw new ParseException("Parse error. Maybe you intended 'elsif'?", lastParseException, file, symbol0.token.line, symbol0.token.col);
+		} else if ("elseif".equals(symbol0.token.getValue())) {
+			throw new ParseDiagnostic("Parse error. Maybe you intended 'elsif'?", lastParseException, file, symbol0.token.line, symbol0.token.col);
 		} else {
-			throw new ParseException("Unexpected token: "+symbol+". Expected: =|+=|-=|*=|/=|++|--", lastParseException, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: =|+=|-=|*=|/=|++|--", lastParseException, file, symbol.token.line, symbol.token.col);
 		}
 	}
 	
 	private SymbolInstance parseIntAssignment() throws ParseException {
 		final int start = it.nextIndex();
 		if (!this.intMath) {
-			throw new ParseException("Integer arithmetic is not enabled", file, this.line, this.col);
+			throw new ParseDiagnostic("Integer arithmetic is not enabled", file, this.line, this.col);
 		}
 		SymbolInstance symbol = peek(1);
 		if (symbol.is("=")) {
 			//int VARIABLE = CONST_EXPR
 			symbol = parse("INTVAR =")[0];
-			String var = symbol.token.value;
+			String var = symbol.token.getValue();
 			popi();
 			symbol = parseConstExpr(true);
 			accept(TokenType.EOL);
@@ -3199,35 +3781,35 @@ public class CHLCompiler implements Compiler {
 		} else if (symbol.is("+=")) {
 			//int VARIABLE += EXPRESSION
 			symbol = parse("INTVAR += CONST_EXPR EOL")[0];
-			String var = symbol.token.value;
+			String var = symbol.token.getValue();
 			addi();
 			popi(var);
 			return replace(start, "STATEMENT");
 		} else if (symbol.is("-=")) {
 			//int VARIABLE -= EXPRESSION
 			symbol = parse("INTVAR -= CONST_EXPR EOL")[0];
-			String var = symbol.token.value;
+			String var = symbol.token.getValue();
 			subi();
 			popi(var);
 			return replace(start, "STATEMENT");
 		} else if (symbol.is("*=")) {
 			//int VARIABLE *= EXPRESSION
 			symbol = parse("INTVAR *= CONST_EXPR EOL")[0];
-			String var = symbol.token.value;
+			String var = symbol.token.getValue();
 			muli();
 			popi(var);
 			return replace(start, "STATEMENT");
 		} else if (symbol.is("/=")) {
 			//int VARIABLE /= EXPRESSION
 			symbol = parse("INTVAR /= CONST_EXPR EOL")[0];
-			String var = symbol.token.value;
+			String var = symbol.token.getValue();
 			divi();
 			popi(var);
 			return replace(start, "STATEMENT");
 		} else if (symbol.is("++")) {
 			//int VARIABLE++
 			symbol = parse("INTVAR ++ EOL")[0];
-			String var = symbol.token.value;
+			String var = symbol.token.getValue();
 			pushi(1);
 			addi();
 			popi(var);
@@ -3235,13 +3817,13 @@ public class CHLCompiler implements Compiler {
 		} else if (symbol.is("--")) {
 			//int VARIABLE--
 			symbol = parse("INTVAR -- EOL")[0];
-			String var = symbol.token.value;
+			String var = symbol.token.getValue();
 			pushi(1);
 			subi();
 			popi(var);
 			return replace(start, "STATEMENT");
 		} else {
-			throw new ParseException("Unexpected token: "+symbol+". Expected: =|+=|-=|*=|/=|++|--", lastParseException, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: =|+=|-=|*=|/=|++|--", lastParseException, file, symbol.token.line, symbol.token.col);
 		}
 	}
 	
@@ -3359,7 +3941,7 @@ public class CHLCompiler implements Compiler {
 				inDialogueBlock = false;
 				return replace(start, "KNOWN_DIALOGUE");
 			} else {
-				throw new ParseException("Unexpected token: "+symbol+". Expected: dialogue|cinema", lastParseException, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: dialogue|cinema", lastParseException, file, symbol.token.line, symbol.token.col);
 			}
 		} else if (symbol.is("cinema")) {
 			//begin cinema STATEMENTS end cinema
@@ -3459,7 +4041,7 @@ public class CHLCompiler implements Compiler {
 			sys(RELEASE_DUAL_CAMERA);
 			return replace(start, "begin dual camera");
 		} else {
-			throw new ParseException("Unexpected token: "+symbol+". Expected: loop|cinema|camera|dialogue|known|dual", lastParseException, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: loop|cinema|camera|dialogue|known|dual", lastParseException, file, symbol.token.line, symbol.token.col);
 		}
 	}
 	
@@ -3512,804 +4094,666 @@ public class CHLCompiler implements Compiler {
 			jmps_EndExcept.add(jmp_EndExcept);
 			return replace(start, "UNTIL");
 		} else {
-			throw new ParseException("Unexpected token: "+symbol+". Expected: when|until", lastParseException, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic(() -> "Unexpected token: "+symbol+". Expected: when|until", lastParseException, file, symbol.token.line, symbol.token.col);
 		}
 	}
 	
 	private SymbolInstance parseExpression(boolean fail) throws ParseException {
 		final int start = it.nextIndex();
 		SymbolInstance symbol = peek();
-		SymbolInstance newSym = parseExpression1();
-		while (newSym != null && newSym != symbol) {
-			symbol = newSym;
-			prev();
-			newSym = parseExpression1();
-		}
-		seek(start);
-		symbol = peek();
 		if ("EXPRESSION".equals(symbol.symbol.keyword)) {
 			next();
-			return symbol;
+		} else {
+			symbol = parseExpression1();
 		}
+		if (symbol != null && "EXPRESSION".equals(symbol.symbol.keyword)) {
+			return parseExpressionOperators(start, symbol);
+		}
+		seek(start);
+		symbol = peek();
 		if (fail) {
 			if (lastParseException != null) throw lastParseException;
 			symbol = peek();
-			throw new ParseException("Expected: EXPRESSION", lastParseException, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic("Expected: EXPRESSION", lastParseException, file, symbol.token.line, symbol.token.col);
 		} else {
 			seek(start);
 			return null;
 		}
 	}
 	
-	private SymbolInstance parseExpression1() throws ParseException {
-		final int start = it.nextIndex();
-		final int startIp = getIp();
-		final SymbolInstance startPreserve = peek();
-		try {
-			SymbolInstance symbol = peek();
-			if ("EXPRESSION".equals(symbol.symbol.keyword)) {
-				next();
-				SymbolInstance operator = next();
+	/**Parses the binary operators that follow the EXPRESSION at the given index, in a single pass.
+	 * Each operand is parsed once and the result replaces the left operand. Multiplicative operators
+	 * take the next operand, while an additive operator followed by a multiplicative one takes the rest
+	 * of the expression, so a - b * c - d is grouped as a - (b * c - d) like the original compiler does.
+	 * @param start the index of the left operand
+	 * @param left the left operand, the cursor must be right after it
+	 * @return the resulting EXPRESSION, with the cursor right after it
+	 * @throws ParseException
+	 */
+	private SymbolInstance parseExpressionOperators(final int start, SymbolInstance left) throws ParseException {
+		while (true) {
+			final SymbolInstance operator = next();
+			if (operator.is("*") || operator.is("/") || operator.is("%")) {
+				if (parseExpression1() == null) {
+					lastParseException = new ParseDiagnostic("Expected: EXPRESSION", lastParseException, file, line, col);
+					break;
+				}
 				if (operator.is("*")) {
-					symbol = parseExpression1();
-					if (symbol == null) {
-						throw new ParseException("Expected: EXPRESSION", lastParseException, file, line, col);
-					}
 					//EXPRESSION * EXPRESSION
 					mulf();
-					return replace(start, "EXPRESSION");
 				} else if (operator.is("/")) {
-					symbol = parseExpression1();
-					if (symbol == null) {
-						throw new ParseException("Expected: EXPRESSION", lastParseException, file, line, col);
-					}
 					//EXPRESSION / EXPRESSION
 					divf();
-					return replace(start, "EXPRESSION");
-				} else if (operator.is("%")) {
-					symbol = parseExpression1();
-					if (symbol == null) {
-						throw new ParseException("Expected: EXPRESSION", lastParseException, file, line, col);
-					}
+				} else {
 					//EXPRESSION % EXPRESSION
 					modf();
-					return replace(start, "EXPRESSION");
-				} else if (operator.is("+") || operator.is("-")) {
-					//parseExpression(true);	<- good, but doesn't match the original compiler behavior
-					//> alternate method
-					symbol = parseExpression1();
-					if (symbol == null) {
-						symbol = peek();
-						throw new ParseException("Expected: EXPRESSION", lastParseException, file, line, col);
-					}
-					symbol = peek();
-					if (symbol.is("*") || symbol.is("/") || symbol.is("%")) {
-						prev();
-						parseExpression(true);
-					}
-					//< alternate method
-					if (operator.is("+")) {
-						//EXPRESSION + EXPRESSION
-						addf();
-					} else {
-						//EXPRESSION - EXPRESSION
-						subf();
-					}
-					return replace(start, "EXPRESSION");
+				}
+			} else if (operator.is("+") || operator.is("-")) {
+				//parseExpression(true);	<- good, but doesn't match the original compiler behavior
+				//> alternate method
+				if (parseExpression1() == null) {
+					peek();
+					lastParseException = new ParseDiagnostic("Expected: EXPRESSION", lastParseException, file, line, col);
+					break;
+				}
+				SymbolInstance symbol = peek();
+				if (symbol.is("*") || symbol.is("/") || symbol.is("%")) {
+					prev();
+					parseExpression(true);
+				}
+				//< alternate method
+				if (operator.is("+")) {
+					//EXPRESSION + EXPRESSION
+					addf();
 				} else {
-					seek(start);
-					return peek();
+					//EXPRESSION - EXPRESSION
+					subf();
 				}
-			} else if (symbol.is("remove")) {
-				parse("remove resource CONST_EXPR EXPRESSION from OBJECT");
-				//remove resource CONST_EXPR EXPRESSION from OBJECT
-				sys(REMOVE_RESOURCE);
-				return replace(start, "STATEMENT");
-			} else if (symbol.is("add")) {
-				parse("add resource CONST_EXPR EXPRESSION to OBJECT");
-				//add resource CONST_EXPR EXPRESSION to OBJECT
-				sys(ADD_RESOURCE);
-				return replace(start, "STATEMENT");
-			} else if (symbol.is("alignment")) {
-				parse("alignment of player");
-				//alignment of player
-				pushi(0);
-				sys2(GET_ALIGNMENT);
+			} else {
+				break;
+			}
+			left = replace(start, "EXPRESSION");
+		}
+		seek(start + 1);
+		return left;
+	}
+	
+	private SymbolInstance parseExpression1() throws ParseException {
+		final MemoAttempt attempt = beginAttempt(ParseMemo.EXPRESSION);
+		if (attempt == null) return lastReplayed;
+		try {
+			return endAttempt(attempt, doParseExpression1());
+		} catch (ParseException e) {
+			throw failAttempt(attempt, e);
+		}
+	}
+	
+	private SymbolInstance doParseExpression1() throws ParseException {
+		final int start = it.nextIndex();
+		final int startIp = getIp();
+		final SymbolInstance startPreserve = peek();
+		try {
+			SymbolInstance symbol = peek();
+			final KeywordParser parser = getParser(expressionParsers, symbol);
+			if (parser != null) {
+				SymbolInstance r = parser.parse();
+				if (r != null) return r;
+			} else if (symbol.is(TokenType.NUMBER)) {
+				symbol = accept(TokenType.NUMBER);
+				float val = symbol.token.floatVal();
+				//NUMBER
+				pushf(val);
 				return replace(start, "EXPRESSION");
-			} else if (symbol.is("raw") || symbol.is("influence")) {
-				//[raw] influence at COORD_EXPR
-				pushf(1);	//fixed player
-				parse("[raw] influence at COORD_EXPR");
-				sys(GET_INFLUENCE);
+			} else if (symbol.is(TokenType.CHAR)) {
+				symbol = accept(TokenType.CHAR);
+				float val = symbol.token.intVal();
+				//CHAR
+				pushf(val);
 				return replace(start, "EXPRESSION");
-			} else if (symbol.is("get")) {
-				accept("get");
+			} else if (symbol.is(TokenType.IDENTIFIER)) {
+				SymbolInstance id1 = accept(TokenType.IDENTIFIER);
 				symbol = peek();
-				if (symbol.is("player")) {
-					parse("player EXPRESSION");
-					symbol = peek();
-					if (symbol.is("raw") || symbol.is("influence")) {
-						parse("[raw] influence at COORD_EXPR");
-						//get player EXPRESSION [raw] influence at COORD_EXPR
-						sys(GET_INFLUENCE);
-						return replace(start, "EXPRESSION");
-					} else if (symbol.is("town")) {
-						parse("town total");
-						//get player EXPRESSION town total
-						sys(GET_PLAYER_TOWN_TOTAL);
-						return replace(start, "EXPRESSION");
-					} else if (symbol.is("time")) {
-						parse("time since last spell cast");
-						//get player EXPRESSION time since last spell cast
-						sys(PLAYER_SPELL_CAST_TIME);
-						return replace(start, "EXPRESSION");
-					} else if (symbol.is("ally")) {
-						parse("ally percentage with player EXPRESSION");
-						//get player EXPRESSION ally percentage with player EXPRESSION
-						sys(GET_PLAYER_ALLY);
-						return replace(start, "EXPRESSION");
+				if (symbol.is("of")) {
+					SymbolInstance id2 = parse("of IDENTIFIER")[1];
+					//[get] CONSTANT of OBJECT
+					int property = getConstant(id1.token.getValue());
+					String object = id2.token.getValue();
+					pushi(property);
+					pushf(object);
+					sys(GET_PROPERTY);
+					return replace(start, "EXPRESSION");
+				} else {
+					//IDENTIFIER
+					String name = id1.token.getValue();
+					Var var = getVar(name);
+					if (var != null) {
+						if (var.type == null || var.type == DataType.FLOAT) {
+							pushf(name);
+						} else if (var.type == DataType.INT) {
+							pushiVar(name);
+							castf();
+						} else {
+							throw new ParseDiagnostic("Expected EXPRESSION, but variable "+name+" is "+var.type.keyword, file, line, col);
+						}
+						return replace(start, "EXPRESSION");
 					}
+				}
+			}
+		} catch (ParseException e) {
+			lastParseException = e;
+		}
+		revert(start, startIp, startPreserve);
+		//seek(start);
+		return null;
+	}
+	
+	private SymbolInstance parseExpressionRemove() throws ParseException {
+		final int start = it.nextIndex();
+		parse("remove resource CONST_EXPR EXPRESSION from OBJECT");
+		//remove resource CONST_EXPR EXPRESSION from OBJECT
+		sys(REMOVE_RESOURCE);
+		return replace(start, "STATEMENT");
+	}
+	
+	private SymbolInstance parseExpressionAdd() throws ParseException {
+		final int start = it.nextIndex();
+		parse("add resource CONST_EXPR EXPRESSION to OBJECT");
+		//add resource CONST_EXPR EXPRESSION to OBJECT
+		sys(ADD_RESOURCE);
+		return replace(start, "STATEMENT");
+	}
+	
+	private SymbolInstance parseExpressionAlignment() throws ParseException {
+		final int start = it.nextIndex();
+		parse("alignment of player");
+		//alignment of player
+		pushi(0);
+		sys2(GET_ALIGNMENT);
+		return replace(start, "EXPRESSION");
+	}
+	
+	private SymbolInstance parseExpressionInfluence() throws ParseException {
+		final int start = it.nextIndex();
+		//[raw] influence at COORD_EXPR
+		pushf(1);	//fixed player
+		parse("[raw] influence at COORD_EXPR");
+		sys(GET_INFLUENCE);
+		return replace(start, "EXPRESSION");
+	}
+	
+	private SymbolInstance parseExpressionGet() throws ParseException {
+		final int start = it.nextIndex();
+		accept("get");
+		SymbolInstance symbol = peek();
+		if (symbol.is("player")) {
+			parse("player EXPRESSION");
+			symbol = peek();
+			if (symbol.is("raw") || symbol.is("influence")) {
+				parse("[raw] influence at COORD_EXPR");
+				//get player EXPRESSION [raw] influence at COORD_EXPR
+				sys(GET_INFLUENCE);
+				return replace(start, "EXPRESSION");
+			} else if (symbol.is("town")) {
+				parse("town total");
+				//get player EXPRESSION town total
+				sys(GET_PLAYER_TOWN_TOTAL);
+				return replace(start, "EXPRESSION");
+			} else if (symbol.is("time")) {
+				parse("time since last spell cast");
+				//get player EXPRESSION time since last spell cast
+				sys(PLAYER_SPELL_CAST_TIME);
+				return replace(start, "EXPRESSION");
+			} else if (symbol.is("ally")) {
+				parse("ally percentage with player EXPRESSION");
+				//get player EXPRESSION ally percentage with player EXPRESSION
+				sys(GET_PLAYER_ALLY);
+				return replace(start, "EXPRESSION");
+			}
+		} else if (symbol.is("time")) {
+			parse("time since");
+			symbol = peek();
+			if (symbol.is("player")) {
+				parse("player EXPRESSION attacked OBJECT");
+				//get time since player EXPRESSION attacked OBJECT
+				sys(GET_TIME_SINCE_OBJECT_ATTACKED);
+				return replace(start, "EXPRESSION");
+			} else {
+				parse("CONSTANT event");
+				//get time since CONSTANT event
+				sys(GET_TIME_SINCE);
+				return replace(start, "EXPRESSION");
+			}
+		} else if (symbol.is("resource")) {
+			parse("resource CONST_EXPR in OBJECT");
+			//get resource CONST_EXPR in OBJECT
+			sys(GET_RESOURCE);
+			return replace(start, "EXPRESSION");
+		} else if (symbol.is("number")) {
+			parse("number of CONST_EXPR for OBJECT");
+			//TODO: get number of CONST_EXPR for OBJECT
+			throw new ParseDiagnostic("Statement not implemented", file, line, col);
+			//return replace(start, "EXPRESSION");
+		} else if (symbol.is("inclusion")) {
+			parse("inclusion distance");
+			//get inclusion distance
+			sys(GET_INCLUSION_DISTANCE);
+			return replace(start, "EXPRESSION");
+		} else if (symbol.is("slowest")) {
+			parse("slowest speed in OBJECT");
+			//get slowest speed in OBJECT
+			sys(GET_SLOWEST_SPEED);
+			return replace(start, "EXPRESSION");
+		} else if (symbol.is("distance")) {
+			parse("distance from COORD_EXPR to COORD_EXPR");
+			//get distance from COORD_EXPR to COORD_EXPR
+			sys(GET_DISTANCE);
+			return replace(start, "EXPRESSION");
+		} else if (symbol.is("mana")) {
+			parse("mana for spell CONST_EXPR");
+			//get mana for spell CONST_EXPR
+			sys(GET_MANA_FOR_SPELL);
+			return replace(start, "EXPRESSION");
+		} else if (symbol.is("building")) {
+			parse("building and villager health total in OBJECT");
+			//get building and villager health total in OBJECT
+			sys(GET_TOWN_AND_VILLAGER_HEALTH_TOTAL);
+			return replace(start, "EXPRESSION");
+		} else if (symbol.is("size")) {
+			parse("size of OBJECT PLAYING_SIDE team");
+			//get size of OBJECT PLAYING_SIDE team
+			sys(GAME_TEAM_SIZE);
+			return replace(start, "EXPRESSION");
+		} else if (symbol.is("worship")) {
+			parse("worship deaths in OBJECT");
+			//get worship deaths in OBJECT
+			sys(GET_TOWN_WORSHIP_DEATHS);
+			return replace(start, "EXPRESSION");
+		} else if (symbol.is("computer")) {
+			parse("computer player EXPRESSION attitude to player EXPRESSION");
+			//get computer player EXPRESSION attitude to player EXPRESSION
+			sys(GET_COMPUTER_PLAYER_ATTITUDE);
+			return replace(start, "EXPRESSION");
+		} else if (symbol.is("moon")) {
+			parse("moon percentage");
+			//get moon percentage
+			sys(GET_MOON_PERCENTAGE);
+			return replace(start, "EXPRESSION");
+		} else if (symbol.is("game")) {
+			parse("game time");
+			//get game time
+			sys(GET_GAME_TIME);
+			return replace(start, "EXPRESSION");
+		} else if (symbol.is("real")) {
+			accept("real");
+			symbol = peek();
+			if (symbol.is("time")) {
+				accept("time");
+				//get real time
+				sys(GET_REAL_TIME);
+				return replace(start, "EXPRESSION");
+			} else if (symbol.is("day")) {
+				accept("day");
+				//TODO: get real day
+				throw new ParseDiagnostic("Statement not implemented", file, line, col);
+				//return replace(start, "EXPRESSION");
+			} else if (symbol.is("weekday")) {
+				accept("weekday");
+				//TODO: get real weekday
+				throw new ParseDiagnostic("Statement not implemented", file, line, col);
+				//return replace(start, "EXPRESSION");
+			} else if (symbol.is("month")) {
+				accept("month");
+				//get real month
+				sys(GET_REAL_MONTH);
+				return replace(start, "EXPRESSION");
+			} else if (symbol.is("year")) {
+				accept("year");
+				//get real year
+				sys(GET_REAL_YEAR);
+				return replace(start, "EXPRESSION");
+			}
+		} else if (checkAhead("CONSTANT of")) {
+			//[get] CONSTANT of OBJECT
+			parse("CONSTANT of OBJECT");
+			sys(GET_PROPERTY);
+			return replace(start, "EXPRESSION");
+		} else {
+			final int checkpoint = it.nextIndex();
+			final int checkpointIp = getIp();
+			SymbolInstance checkpointPreserve = peek();
+			symbol = parseObject(false);
+			if (symbol != null) {
+				symbol = peek();
+				if (symbol.is("music")) {
+					parse("music distance");
+					//get OBJECT music distance
+					sys(GET_MUSIC_OBJ_DISTANCE);
+					return replace(start, "EXPRESSION");
+				} else if (symbol.is("interaction")) {
+					parse("interaction magnitude");
+					//get OBJECT interaction magnitude
+					sys(GET_INTERACTION_MAGNITUDE);
+					return replace(start, "EXPRESSION");
 				} else if (symbol.is("time")) {
-					parse("time since");
+					accept("time");
 					symbol = peek();
-					if (symbol.is("player")) {
-						parse("player EXPRESSION attacked OBJECT");
-						//get time since player EXPRESSION attacked OBJECT
-						sys(GET_TIME_SINCE_OBJECT_ATTACKED);
+					if (symbol.is("remaining")) {
+						accept("remaining");
+						//get OBJECT time remaining
+						sys(GET_TIMER_TIME_REMAINING);
 						return replace(start, "EXPRESSION");
-					} else {
-						parse("CONSTANT event");
-						//get time since CONSTANT event
-						sys(GET_TIME_SINCE);
+					} else if (symbol.is("since")) {
+						parse("since set");
+						//get OBJECT time since set
+						sys(GET_TIMER_TIME_SINCE_SET);
 						return replace(start, "EXPRESSION");
 					}
-				} else if (symbol.is("resource")) {
-					parse("resource CONST_EXPR in OBJECT");
-					//get resource CONST_EXPR in OBJECT
-					sys(GET_RESOURCE);
+				} else if (symbol.is("fight")) {
+					parse("fight queue hits");
+					//get OBJECT fight queue hits
+					sys(CREATURE_FIGHT_QUEUE_HITS);
 					return replace(start, "EXPRESSION");
-				} else if (symbol.is("number")) {
-					parse("number of CONST_EXPR for OBJECT");
-					//TODO: get number of CONST_EXPR for OBJECT
-					throw new ParseException("Statement not implemented", file, line, col);
-					//return replace(start, "EXPRESSION");
-				} else if (symbol.is("inclusion")) {
-					parse("inclusion distance");
-					//get inclusion distance
-					sys(GET_INCLUSION_DISTANCE);
+				} else if (symbol.is("walk")) {
+					parse("walk path percentage");
+					//get OBJECT walk path percentage
+					sys(GET_WALK_PATH_PERCENTAGE);
 					return replace(start, "EXPRESSION");
-				} else if (symbol.is("slowest")) {
-					parse("slowest speed in OBJECT");
-					//get slowest speed in OBJECT
-					sys(GET_SLOWEST_SPEED);
+				} else if (symbol.is("mana")) {
+					parse("mana total");
+					//get OBJECT mana total
+					sys(GET_MANA);
 					return replace(start, "EXPRESSION");
-				} else if (symbol.is("distance")) {
-					parse("distance from COORD_EXPR to COORD_EXPR");
-					//get distance from COORD_EXPR to COORD_EXPR
-					sys(GET_DISTANCE);
+				} else if (symbol.is("played")) {
+					parse("played percentage");
+					//get OBJECT played percentage
+					sys(PLAYED_PERCENTAGE);
 					return replace(start, "EXPRESSION");
-				} else if (symbol.is("mana")) {
-					parse("mana for spell CONST_EXPR");
-					//get mana for spell CONST_EXPR
-					sys(GET_MANA_FOR_SPELL);
+				} else if (symbol.is("belief")) {
+					parse("belief for player EXPRESSION");
+					//get OBJECT belief for player EXPRESSION
+					sys(BELIEF_FOR_PLAYER);
 					return replace(start, "EXPRESSION");
-				} else if (symbol.is("building")) {
-					parse("building and villager health total in OBJECT");
-					//get building and villager health total in OBJECT
-					sys(GET_TOWN_AND_VILLAGER_HEALTH_TOTAL);
+				} else if (symbol.is("help")) {
+					accept("help");
+					//get OBJECT help
+					sys(GET_HELP);
 					return replace(start, "EXPRESSION");
-				} else if (symbol.is("size")) {
-					parse("size of OBJECT PLAYING_SIDE team");
-					//get size of OBJECT PLAYING_SIDE team
-					sys(GAME_TEAM_SIZE);
+				} else if (symbol.is("first")) {
+					parse("first help");
+					//get OBJECT first help
+					sys(GET_FIRST_HELP);
 					return replace(start, "EXPRESSION");
-				} else if (symbol.is("worship")) {
-					parse("worship deaths in OBJECT");
-					//get worship deaths in OBJECT
-					sys(GET_TOWN_WORSHIP_DEATHS);
+				} else if (symbol.is("last")) {
+					parse("last help");
+					//get OBJECT last help
+					sys(GET_LAST_HELP);
 					return replace(start, "EXPRESSION");
-				} else if (symbol.is("computer")) {
-					parse("computer player EXPRESSION attitude to player EXPRESSION");
-					//get computer player EXPRESSION attitude to player EXPRESSION
-					sys(GET_COMPUTER_PLAYER_ATTITUDE);
+				} else if (symbol.is("fade")) {
+					accept("fade");
+					//get OBJECT fade
+					sys(GET_OBJECT_FADE);
 					return replace(start, "EXPRESSION");
-				} else if (symbol.is("moon")) {
-					parse("moon percentage");
-					//get moon percentage
-					sys(GET_MOON_PERCENTAGE);
+				} else if (symbol.is("info")) {
+					parse("info bits");
+					//get OBJECT info bits
+					sys(OBJECT_INFO_BITS);
 					return replace(start, "EXPRESSION");
-				} else if (symbol.is("game")) {
-					parse("game time");
-					//get game time
-					sys(GET_GAME_TIME);
+				} else if (symbol.is("desire")) {
+					parse("desire CONST_EXPR");
+					//get OBJECT desire TOWN_DESIRE_INFO
+					sys(GET_DESIRE);
 					return replace(start, "EXPRESSION");
-				} else if (symbol.is("real")) {
-					accept("real");
-					symbol = peek();
-					if (symbol.is("time")) {
-						accept("time");
-						//get real time
-						sys(GET_REAL_TIME);
-						return replace(start, "EXPRESSION");
-					} else if (symbol.is("day")) {
-						accept("day");
-						//TODO: get real day
-						throw new ParseException("Statement not implemented", file, line, col);
-						//return replace(start, "EXPRESSION");
-					} else if (symbol.is("weekday")) {
-						accept("weekday");
-						//TODO: get real weekday
-						throw new ParseException("Statement not implemented", file, line, col);
-						//return replace(start, "EXPRESSION");
-					} else if (symbol.is("month")) {
-						accept("month");
-						//get real month
-						sys(GET_REAL_MONTH);
-						return replace(start, "EXPRESSION");
-					} else if (symbol.is("year")) {
-						accept("year");
-						//get real year
-						sys(GET_REAL_YEAR);
-						return replace(start, "EXPRESSION");
-					}
-				} else if (checkAhead("CONSTANT of")) {
-					//[get] CONSTANT of OBJECT
-					parse("CONSTANT of OBJECT");
-					sys(GET_PROPERTY);
+				} else if (symbol.is("sacrifice")) {
+					parse("sacrifice total");
+					//get OBJECT sacrifice total
+					sys(GET_SACRIFICE_TOTAL);
 					return replace(start, "EXPRESSION");
-				} else {
-					final int checkpoint = it.nextIndex();
-					final int checkpointIp = getIp();
-					SymbolInstance checkpointPreserve = peek();
-					symbol = parseObject(false);
-					if (symbol != null) {
-						symbol = peek();
-						if (symbol.is("music")) {
-							parse("music distance");
-							//get OBJECT music distance
-							sys(GET_MUSIC_OBJ_DISTANCE);
-							return replace(start, "EXPRESSION");
-						} else if (symbol.is("interaction")) {
-							parse("interaction magnitude");
-							//get OBJECT interaction magnitude
-							sys(GET_INTERACTION_MAGNITUDE);
-							return replace(start, "EXPRESSION");
-						} else if (symbol.is("time")) {
-							accept("time");
-							symbol = peek();
-							if (symbol.is("remaining")) {
-								accept("remaining");
-								//get OBJECT time remaining
-								sys(GET_TIMER_TIME_REMAINING);
-								return replace(start, "EXPRESSION");
-							} else if (symbol.is("since")) {
-								parse("since set");
-								//get OBJECT time since set
-								sys(GET_TIMER_TIME_SINCE_SET);
-								return replace(start, "EXPRESSION");
-							}
-						} else if (symbol.is("fight")) {
-							parse("fight queue hits");
-							//get OBJECT fight queue hits
-							sys(CREATURE_FIGHT_QUEUE_HITS);
-							return replace(start, "EXPRESSION");
-						} else if (symbol.is("walk")) {
-							parse("walk path percentage");
-							//get OBJECT walk path percentage
-							sys(GET_WALK_PATH_PERCENTAGE);
-							return replace(start, "EXPRESSION");
-						} else if (symbol.is("mana")) {
-							parse("mana total");
-							//get OBJECT mana total
-							sys(GET_MANA);
-							return replace(start, "EXPRESSION");
-						} else if (symbol.is("played")) {
-							parse("played percentage");
-							//get OBJECT played percentage
-							sys(PLAYED_PERCENTAGE);
-							return replace(start, "EXPRESSION");
-						} else if (symbol.is("belief")) {
-							parse("belief for player EXPRESSION");
-							//get OBJECT belief for player EXPRESSION
-							sys(BELIEF_FOR_PLAYER);
-							return replace(start, "EXPRESSION");
-						} else if (symbol.is("help")) {
-							accept("help");
-							//get OBJECT help
-							sys(GET_HELP);
-							return replace(start, "EXPRESSION");
-						} else if (symbol.is("first")) {
-							parse("first help");
-							//get OBJECT first help
-							sys(GET_FIRST_HELP);
-							return replace(start, "EXPRESSION");
-						} else if (symbol.is("last")) {
-							parse("last help");
-							//get OBJECT last help
-							sys(GET_LAST_HELP);
-							return replace(start, "EXPRESSION");
-						} else if (symbol.is("fade")) {
-							accept("fade");
-							//get OBJECT fade
-							sys(GET_OBJECT_FADE);
-							return replace(start, "EXPRESSION");
-						} else if (symbol.is("info")) {
-							parse("info bits");
-							//get OBJECT info bits
-							sys(OBJECT_INFO_BITS);
-							return replace(start, "EXPRESSION");
-						} else if (symbol.is("desire")) {
-							parse("desire CONST_EXPR");
-							//get OBJECT desire TOWN_DESIRE_INFO
-							sys(GET_DESIRE);
-							return replace(start, "EXPRESSION");
-						} else if (symbol.is("sacrifice")) {
-							parse("sacrifice total");
-							//get OBJECT sacrifice total
-							sys(GET_SACRIFICE_TOTAL);
-							return replace(start, "EXPRESSION");
-						}
-						revert(checkpoint, checkpointIp, checkpointPreserve);
-					}
-					symbol = parseConstExpr(false);
-					if (symbol != null) {
-						symbol = peek();
-						if (symbol.is("music")) {
-							parse("music distance");
-							//get CONST_EXPR music distance
-							sys(GET_MUSIC_ENUM_DISTANCE);
-							return replace(start, "EXPRESSION");
-						} else if (symbol.is("events")) {
-							parse("events per second");
-							//get CONSTANT events per second
-							sys(GET_EVENTS_PER_SECOND);
-							return replace(start, "EXPRESSION");
-						} else if (symbol.is("total")) {
-							parse("total event|events");
-							//get CONSTANT total event|events
-							sys(GET_TOTAL_EVENTS);
-							return replace(start, "EXPRESSION");
-						}
-						revert(checkpoint, checkpointIp, checkpointPreserve);
-					}
 				}
-			} else if (symbol.is("land")) {
-				parse("land height at COORD_EXPR");
-				//land height at COORD_EXPR
-				sys(GET_LAND_HEIGHT);
-				return replace(start, "EXPRESSION");
-			} else if (symbol.is("time")) {
-				accept("time");
-				//time
-				sys(DLL_GETTIME);
-				return replace(start, "EXPRESSION");
-			} else if (symbol.is("number")) {
-				accept("number");
+				revert(checkpoint, checkpointIp, checkpointPreserve);
+			}
+			symbol = parseConstExpr(false);
+			if (symbol != null) {
 				symbol = peek();
-				if (symbol.is("from")) {
-					parse("from EXPRESSION to EXPRESSION");
-					//number from EXPRESSION to EXPRESSION
-					sys(RANDOM);
+				if (symbol.is("music")) {
+					parse("music distance");
+					//get CONST_EXPR music distance
+					sys(GET_MUSIC_ENUM_DISTANCE);
 					return replace(start, "EXPRESSION");
-				} else if (symbol.is("of")) {
-					accept("of");
-					symbol = peek();
-					if (symbol.is("mouse")) {
-						parse("mouse buttons");
-						//number of mouse buttons
-						sys(NUM_MOUSE_BUTTONS);
-						return replace(start, "EXPRESSION");
-					} else if (symbol.is("times")) {
-						parse("times action CONST_EXPR by OBJECT");
-						//number of times action CONST_EXPR by OBJECT
-						sys(GET_ACTION_COUNT);
-						return replace(start, "EXPRESSION");
-					}
-				}
-			} else if (symbol.is("size")) {
-				parse("size of OBJECT");
-				//size of OBJECT
-				sys(ID_SIZE);
-				return replace(start, "EXPRESSION");
-			} else if (symbol.is("adult")) {
-				accept("adult");
-				symbol = peek();
-				if (symbol.is("size")) {
-					parse("size of OBJECT");
-					//adult size of OBJECT
-					sys(ID_ADULT_SIZE);
+				} else if (symbol.is("events")) {
+					parse("events per second");
+					//get CONSTANT events per second
+					sys(GET_EVENTS_PER_SECOND);
 					return replace(start, "EXPRESSION");
-				} else if (symbol.is("capacity")) {
-					parse("capacity of OBJECT");
-					//adult capacity of OBJECT
-					sys(OBJECT_ADULT_CAPACITY);
+				} else if (symbol.is("total")) {
+					parse("total event|events");
+					//get CONSTANT total event|events
+					sys(GET_TOTAL_EVENTS);
 					return replace(start, "EXPRESSION");
 				}
-			} else if (symbol.is("capacity")) {
-				parse("capacity of OBJECT");
-				//capacity of OBJECT
-				sys(OBJECT_CAPACITY);
-				return replace(start, "EXPRESSION");
-			} else if (symbol.is("poisoned")) {
-				parse("poisoned size of OBJECT");
-				//poisoned size of OBJECT
-				sys(ID_POISONED_SIZE);
-				return replace(start, "EXPRESSION");
-			} else if (symbol.is("square")) {
-				parse("square root EXPRESSION");
-				//square root EXPRESSION
-				sys(SQUARE_ROOT);
-				return replace(start, "EXPRESSION");
-			} else if (symbol.is("-")) {
-				//-EXPRESSION
-				accept("-");
-				parseExpression1();	//<- important for precedence
-				negf();
-				return replace(start, "EXPRESSION");
-			} else if (symbol.is("variable")) {
-				accept("variable");
-				symbol = peek();
-				if (symbol.is(TokenType.STRING)) {
-					//variable STRING
-					parseString();
-				} else {
-					//variable CONST_EXPR
-					parseConstExpr(true);
-				}
-				castf();
-				return replace(start, "EXPRESSION");
-			} else if (symbol.is("va_arg")) {
-				//va_arg
-				accept("va_arg");
-				return replace(start, "EXPRESSION");
-			} else if (symbol.is("(")) {
-				parse("( EXPRESSION )");
-				//(EXPRESSION)
-				return replace(start, "EXPRESSION");
-			} else if (symbol.is(TokenType.NUMBER)) {
-				symbol = accept(TokenType.NUMBER);
-				float val = symbol.token.floatVal();
-				//NUMBER
-				pushf(val);
+				revert(checkpoint, checkpointIp, checkpointPreserve);
+			}
+		}
+		return null;
+	}
+	
+	private SymbolInstance parseExpressionLand() throws ParseException {
+		final int start = it.nextIndex();
+		parse("land height at COORD_EXPR");
+		//land height at COORD_EXPR
+		sys(GET_LAND_HEIGHT);
+		return replace(start, "EXPRESSION");
+	}
+	
+	private SymbolInstance parseExpressionTime() throws ParseException {
+		final int start = it.nextIndex();
+		accept("time");
+		//time
+		sys(DLL_GETTIME);
+		return replace(start, "EXPRESSION");
+	}
+	
+	private SymbolInstance parseExpressionNumber() throws ParseException {
+		final int start = it.nextIndex();
+		accept("number");
+		SymbolInstance symbol = peek();
+		if (symbol.is("from")) {
+			parse("from EXPRESSION to EXPRESSION");
+			//number from EXPRESSION to EXPRESSION
+			sys(RANDOM);
+			return replace(start, "EXPRESSION");
+		} else if (symbol.is("of")) {
+			accept("of");
+			symbol = peek();
+			if (symbol.is("mouse")) {
+				parse("mouse buttons");
+				//number of mouse buttons
+				sys(NUM_MOUSE_BUTTONS);
 				return replace(start, "EXPRESSION");
-			} else if (symbol.is(TokenType.CHAR)) {
-				symbol = accept(TokenType.CHAR);
-				float val = symbol.token.intVal();
-				//CHAR
-				pushf(val);
+			} else if (symbol.is("times")) {
+				parse("times action CONST_EXPR by OBJECT");
+				//number of times action CONST_EXPR by OBJECT
+				sys(GET_ACTION_COUNT);
 				return replace(start, "EXPRESSION");
-			} else if (symbol.is(TokenType.IDENTIFIER)) {
-				SymbolInstance id1 = accept(TokenType.IDENTIFIER);
-				symbol = peek();
-				if (symbol.is("of")) {
-					SymbolInstance id2 = parse("of IDENTIFIER")[1];
-					//[get] CONSTANT of OBJECT
-					int property = getConstant(id1.token.value);
-					String object = id2.token.value;
-					pushi(property);
-					pushf(object);
-					sys(GET_PROPERTY);
-					return replace(start, "EXPRESSION");
-				} else {
-					//IDENTIFIER
-					String name = id1.token.value;
-					Var var = getVar(name);
-					if (var != null) {
-						if (var.type == null || var.type == DataType.FLOAT) {
-							pushf(name);
-						} else if (var.type == DataType.INT) {
-							pushiVar(name);
-							castf();
-						} else {
-							throw new ParseException("Expected EXPRESSION, but variable "+name+" is "+var.type.keyword, file, line, col);
-						}
-						return replace(start, "EXPRESSION");
-					}
-				}
 			}
-		} catch (ParseException e) {
-			lastParseException = e;
 		}
-		revert(start, startIp, startPreserve);
-		//seek(start);
 		return null;
 	}
 	
-	private SymbolInstance parseCondition(boolean fail) throws ParseException {
+	private SymbolInstance parseExpressionSize() throws ParseException {
+		final int start = it.nextIndex();
+		parse("size of OBJECT");
+		//size of OBJECT
+		sys(ID_SIZE);
+		return replace(start, "EXPRESSION");
+	}
+	
+	private SymbolInstance parseExpressionAdult() throws ParseException {
 		final int start = it.nextIndex();
+		accept("adult");
 		SymbolInstance symbol = peek();
-		SymbolInstance newSym = parseCondition1();
-		while (newSym != null && newSym != symbol) {
-			symbol = newSym;
-			prev();
-			newSym = parseCondition1();
+		if (symbol.is("size")) {
+			parse("size of OBJECT");
+			//adult size of OBJECT
+			sys(ID_ADULT_SIZE);
+			return replace(start, "EXPRESSION");
+		} else if (symbol.is("capacity")) {
+			parse("capacity of OBJECT");
+			//adult capacity of OBJECT
+			sys(OBJECT_ADULT_CAPACITY);
+			return replace(start, "EXPRESSION");
 		}
-		seek(start);
-		symbol = peek();
+		return null;
+	}
+	
+	private SymbolInstance parseExpressionCapacity() throws ParseException {
+		final int start = it.nextIndex();
+		parse("capacity of OBJECT");
+		//capacity of OBJECT
+		sys(OBJECT_CAPACITY);
+		return replace(start, "EXPRESSION");
+	}
+	
+	private SymbolInstance parseExpressionPoisoned() throws ParseException {
+		final int start = it.nextIndex();
+		parse("poisoned size of OBJECT");
+		//poisoned size of OBJECT
+		sys(ID_POISONED_SIZE);
+		return replace(start, "EXPRESSION");
+	}
+	
+	private SymbolInstance parseExpressionSquare() throws ParseException {
+		final int start = it.nextIndex();
+		parse("square root EXPRESSION");
+		//square root EXPRESSION
+		sys(SQUARE_ROOT);
+		return replace(start, "EXPRESSION");
+	}
+	
+	private SymbolInstance parseExpressionNegation() throws ParseException {
+		final int start = it.nextIndex();
+		//-EXPRESSION
+		accept("-");
+		parseExpression1();	//<- important for precedence
+		negf();
+		return replace(start, "EXPRESSION");
+	}
+	
+	private SymbolInstance parseExpressionVariable() throws ParseException {
+		final int start = it.nextIndex();
+		accept("variable");
+		SymbolInstance symbol = peek();
+		if (symbol.is(TokenType.STRING)) {
+			//variable STRING
+			parseString();
+		} else {
+			//variable CONST_EXPR
+			parseConstExpr(true);
+		}
+		castf();
+		return replace(start, "EXPRESSION");
+	}
+	
+	private SymbolInstance parseExpressionVaArg() throws ParseException {
+		final int start = it.nextIndex();
+		//va_arg
+		accept("va_arg");
+		return replace(start, "EXPRESSION");
+	}
+	
+	private SymbolInstance parseExpressionParenthesis() throws ParseException {
+		final int start = it.nextIndex();
+		parse("( EXPRESSION )");
+		//(EXPRESSION)
+		return replace(start, "EXPRESSION");
+	}
+	
+	private SymbolInstance parseCondition(boolean fail) throws ParseException {
+		final int start = it.nextIndex();
+		SymbolInstance symbol = peek();
 		if ("CONDITION".equals(symbol.symbol.keyword)) {
 			next();
-			return symbol;
+		} else {
+			symbol = parseCondition1();
 		}
+		if (symbol != null && "CONDITION".equals(symbol.symbol.keyword)) {
+			return parseConditionOperators(start, symbol);
+		}
+		seek(start);
+		symbol = peek();
 		if (fail) {
 			if (lastParseException != null) throw lastParseException;
 			symbol = peek();
-			throw new ParseException("Expected: CONDITION", lastParseException, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic("Expected: CONDITION", lastParseException, file, symbol.token.line, symbol.token.col);
 		} else {
 			seek(start);
 			return null;
 		}
 	}
 	
+	/**Parses the boolean operators that follow the CONDITION at the given index, in a single pass.
+	 * The and operator takes the next operand, while an or followed by an and takes the rest of the
+	 * condition, as in the original compiler.
+	 * @param start the index of the left operand
+	 * @param left the left operand, the cursor must be right after it
+	 * @return the resulting CONDITION, with the cursor right after it
+	 * @throws ParseException
+	 */
+	private SymbolInstance parseConditionOperators(final int start, SymbolInstance left) throws ParseException {
+		while (true) {
+			final SymbolInstance operator = next();
+			if (operator.is("and")) {
+				if (parseCondition1() == null) {
+					peek();
+					lastParseException = new ParseDiagnostic("Expected: CONDITION", lastParseException, file, line, col);
+					break;
+				}
+				//CONDITION and CONDITION
+				and();
+			} else if (operator.is("or")) {
+				//CONDITION or CONDITION
+				//parseCondition(true);	<- good, but doesn't match the original compiler behavior
+				//> alternate method
+				if (parseCondition1() == null) {
+					peek();
+					lastParseException = new ParseDiagnostic("Expected: CONDITION", lastParseException, file, line, col);
+					break;
+				}
+				SymbolInstance symbol = peek();
+				if (symbol.is("and")) {
+					prev();
+					parseCondition(true);
+				}
+				//< alternate method
+				or();
+			} else {
+				break;
+			}
+			left = replace(start, "CONDITION");
+		}
+		seek(start + 1);
+		return left;
+	}
+	
 	private SymbolInstance parseCondition1() throws ParseException {
+		final MemoAttempt attempt = beginAttempt(ParseMemo.CONDITION);
+		if (attempt == null) return lastReplayed;
+		try {
+			return endAttempt(attempt, doParseCondition1());
+		} catch (ParseException e) {
+			throw failAttempt(attempt, e);
+		}
+	}
+	
+	private SymbolInstance doParseCondition1() throws ParseException {
 		final int start = it.nextIndex();
 		final int startIp = getIp();
 		final SymbolInstance startPreserve = peek();
 		try {
 			SymbolInstance symbol = peek();
-			if ("CONDITION".equals(symbol.symbol.keyword)) {
-				next();
-				symbol = next();
-				if (symbol.is("and")) {
-					symbol = parseCondition1();
-					if (symbol == null) {
-						symbol = peek();
-						throw new ParseException("Expected: CONDITION", lastParseException, file, line, col);
-					}
-					//CONDITION and CONDITION
-					and();
-					return replace(start, "CONDITION");
-				} else if (symbol.is("or")) {
-					//CONDITION or CONDITION
-					//parseCondition(true);	<- good, but doesn't match the original compiler behavior
-					//> alternate method
-					symbol = parseCondition1();
-					if (symbol == null) {
-						symbol = peek();
-						throw new ParseException("Expected: CONDITION", lastParseException, file, line, col);
-					}
-					symbol = peek();
-					if (symbol.is("and")) {
-						prev();
-						parseCondition(true);
-					}
-					//< alternate method
-					or();
-					return replace(start, "CONDITION");
-				} else {
-					seek(start);
-					return peek();
-				}
-			} else if (symbol.is("key")) {
-				parse("key CONST_EXPR down");
-				//key CONST_EXPR down
-				sys(KEY_DOWN);
-				return replace(start, "CONDITION");
-			} else if (symbol.is("inside")) {
-				parse("inside temple");
-				//inside temple
-				sys(INSIDE_TEMPLE);
-				return replace(start, "CONDITION");
-			} else if (symbol.is("within")) {
-				parse("within rotation");
-				//within rotation
-				sys(WITHIN_ROTATION);
-				return replace(start, "CONDITION");
-			} else if (symbol.is("hand")) {
-				parse("hand demo");
-				symbol = peek();
-				if (symbol.is("played")) {
-					accept("played");
-					//hand demo played
-					sys(IS_PLAYING_HAND_DEMO);
-					return replace(start, "CONDITION");
-				} else if (symbol.is("trigger")) {
-					accept("trigger");
-					//hand demo trigger
-					sys(HAND_DEMO_TRIGGER);
-					return replace(start, "CONDITION");
-				} else {
-					throw new ParseException("Unexpected token: "+symbol+". Expected: played|trigger", lastParseException, file, symbol.token.line, symbol.token.col);
-				}
-			} else if (symbol.is("jc")) {
-				parse("jc special CONST_EXPR played");
-				//jc special CONST_EXPR played
-				sys(IS_PLAYING_JC_SPECIAL);
-				return replace(start, "CONDITION");
-			} else if (symbol.is("fire")) {
-				parse("fire near COORD_EXPR radius EXPRESSION");
-				//fire near COORD_EXPR radius EXPRESSION
-				sys(IS_FIRE_NEAR);
-				return replace(start, "CONDITION");
-			} else if (symbol.is("spell")) {
-				accept("spell");
-				symbol = peek();
-				if (symbol.is("wind")) {
-					parse("wind near COORD_EXPR radius EXPRESSION");
-					//TODO: spell wind near COORD_EXPR radius EXPRESSION
-					//NOTICE: perhaps IS_WIND_MAGIC_AT_POS, but stack-in doesn't match
-					throw new ParseException("Statement not implemented", file, line, col);
-					//return replace(start, "CONDITION");
-				} else {
-					parse("CONST_EXPR for player EXPRESSION");
-					//spell CONST_EXPR for player EXPRESSION
-					sys(HAS_PLAYER_MAGIC);
-					return replace(start, "CONDITION");
-				}
-			} else if (symbol.is("camera")) {
-				accept("camera");
-				symbol = peek();
-				if (symbol.is("ready")) {
-					accept("ready");
-					//camera ready
-					sys(HAS_CAMERA_ARRIVED);
-					return replace(start, "CONDITION");
-				} else if (symbol.is("not")) {
-					parse("not ready");
-					//camera not ready
-					sys(HAS_CAMERA_ARRIVED);
-					not();
-					return replace(start, "CONDITION");
-				} else {
-					throw new ParseException("Unexpected token: "+symbol+". Expected: ready|not", lastParseException, file, symbol.token.line, symbol.token.col);
-				}
-			} else if (symbol.is("widescreen")) {
-				parse("widescreen ready");
-				//widescreen ready
-				sys(WIDESCREEN_TRANSISTION_FINISHED);
-				return replace(start, "CONDITION");
-			} else if (symbol.is("fade")) {
-				parse("fade ready");
-				//fade ready
-				sys(FADE_FINISHED);
-				return replace(start, "CONDITION");
-			} else if (symbol.is("dialogue")) {
-				accept("dialogue");
-				symbol = peek();
-				if (symbol.is("ready")) {
-					accept("ready");
-					//dialogue ready
-					sys(IS_DIALOGUE_READY);
-					return replace(start, "CONDITION");
-				} else if (symbol.is("not")) {
-					parse("not ready");
-					//dialogue not ready
-					sys(IS_DIALOGUE_READY);
-					not();
-					return replace(start, "CONDITION");
-				} else {
-					throw new ParseException("Unexpected token: "+symbol+". Expected: ready|not", lastParseException, file, symbol.token.line, symbol.token.col);
-				}
-			} else if (symbol.is("computer")) {
-				parse("computer player EXPRESSION ready");
-				//computer player EXPRESSION ready
-				sys(COMPUTER_PLAYER_READY);
-				return replace(start, "CONDITION");
-			} else if (symbol.is("player")) {
-				accept("player");
-				symbol = peek();
-				if (symbol.is("has")) {
-					parse("has mouse wheel");
-					//player has mouse wheel
-					sys(HAS_MOUSE_WHEEL);
-					return replace(start, "CONDITION");
-				} else {
-					parse("EXPRESSION");
-					symbol = peek();
-					if (symbol.is("spell")) {
-						accept("spell");
-						symbol = peek();
-						if (symbol.is("charging")) {
-							accept("charging");
-							//player EXPRESSION spell charging
-							sys(IS_SPELL_CHARGING);
-							return replace(start, "CONDITION");
-						} else {
-							parse("CONST_EXPR charging");
-							//player EXPRESSION spell MAGIC_TYPE charging
-							sys(IS_THAT_SPELL_CHARGING);
-							return replace(start, "CONDITION");
-						}
-					} else if (symbol.is("wind")) {
-						parse("wind resistance");
-						//TODO: player EXPRESSION wind resistance
-						//NOTICE: perhaps GET_PLAYER_WIND_RESISTANCE, but stack-in doesn't match
-						throw new ParseException("Statement not implemented", lastParseException, file, line, col);
-						//return replace(start, "CONDITION");
-					} else {
-						throw new ParseException("Unexpected token: "+symbol+". Expected: spell|wind", lastParseException, file, symbol.token.line, symbol.token.col);
-					}
-				}
-			} else if (symbol.is("creature")) {
-				parse("creature CONST_EXPR is available");
-				//creature CONST_EXPR is available
-				sys(IS_CREATURE_AVAILABLE);
-				return replace(start, "CONDITION");
-			} else if (symbol.is("get")) {
-				parse("get desire of OBJECT is CONST_EXPR");
-				//get desire of OBJECT is CONST_EXPR
-				sys(CREATURE_DESIRE_IS);
-				return replace(start, "CONDITION");
-			} else if (symbol.is("read")) {
-				accept("read");
-				//read
-				sys(TEXT_READ);
-				return replace(start, "CONDITION");
-			} else if (symbol.is("help")) {
-				parse("help system on");
-				//help system on
-				sys(HELP_SYSTEM_ON);
-				return replace(start, "CONDITION");
-			} else if (symbol.is("immersion")) {
-				parse("immersion exists");
-				//immersion exists
-				sys(IMMERSION_EXISTS);
-				return replace(start, "CONDITION");
-			} else if (symbol.is("sound")) {
-				accept("sound");
-				symbol = peek();
-				if (symbol.is("exists")) {
-					accept("exists");
-					//sound exists
-					sys(SOUND_EXISTS);
-					return replace(start, "CONDITION");
-				} else {
-					parseConstExpr(true);
-					symbol = peek();
-					if (symbol.is("playing")) {
-						pushi(DEFAULT_SOUNDBANK_NAME);
-					} else {
-						parseConstExpr(true);
-					}
-					accept("playing");
-					//sound CONST_EXPR [CONST_EXPR] playing
-					sys(GAME_SOUND_PLAYING);
-					return replace(start, "CONDITION");
-				}
-			} else if (symbol.is("music")) {
-				parse("music line EXPRESSION");
-				//music line EXPRESSION
-				sys(LAST_MUSIC_LINE);
-				return replace(start, "CONDITION");
-			} else if (symbol.is("not")) {
-				//not CONDITION
-				accept("not");
-				parseCondition1();	//<- important for precedence
-				not();
-				return replace(start, "CONDITION");
-			} else if (symbol.is("say")) {
-				//say sound CONST_EXPR playing
-				pushb(false);
-				parse("say sound CONST_EXPR playing");
-				sys(SAY_SOUND_EFFECT_PLAYING);
-				return replace(start, "CONDITION");
-			} else if (symbol.is("can")) {
-				parse("can skip");
-				symbol = peek();
-				if (symbol.is("tutorial")) {
-					accept("tutorial");
-					//can skip tutorial
-					sys(CAN_SKIP_TUTORIAL);
-					return replace(start, "CONDITION");
-				} else if (symbol.is("creature")) {
-					parse("creature training");
-					//can skip creature training
-					sys(CAN_SKIP_CREATURE_TRAINING);
-					return replace(start, "CONDITION");
-				}
-			} else if (symbol.is("is")) {
-				parse("is keeping old creature");
-				//is keeping old creature
-				sys(IS_KEEPING_OLD_CREATURE);
-				return replace(start, "CONDITION");
-			} else if (symbol.is("current")) {
-				parse("current profile has creature");
-				//current profile has creature
-				sys(CURRENT_PROFILE_HAS_CREATURE);
-				return replace(start, "CONDITION");
-			} else if (symbol.is("(")) {
-				parse("( CONDITION )");
-				//(CONDITION)
-				return replace(start, "CONDITION");
+			final KeywordParser parser = getParser(conditionParsers, symbol);
+			if (parser != null) {
+				SymbolInstance r = parser.parse();
+				if (r != null) return r;
 			} else if (checkAhead("ANY spirit")) {
 				parse("SPIRIT_TYPE spirit");
 				symbol = peek();
@@ -4414,7 +4858,7 @@ public class CHLCompiler implements Compiler {
 				} else if (symbol.is("music")) {
 					parse("music played");
 					//TODO: OBJECT music played
-					throw new ParseException("Statement not implemented", lastParseException, file, line, col);
+					throw new ParseDiagnostic("Statement not implemented", lastParseException, file, line, col);
 					//return replace(start, "CONDITION");
 				} else if (symbol.is("cast")) {
 					parse("cast by OBJECT");
@@ -4633,51 +5077,361 @@ public class CHLCompiler implements Compiler {
 			SymbolInstance symbol = parseExpression(false);
 			if (symbol != null) {
 				symbol = peek();
-				if (symbol.is("second") || symbol.is("seconds")) {
-					parse("second|seconds");
-					//EXPRESSION second|seconds
-					sleep();
-					return replace(start, "CONDITION");
-				} else if (symbol.is("==")) {
-					parse("== EXPRESSION");
-					//EXPRESSION == EXPRESSION
-					eq();
-					return replace(start, "CONDITION");
-				} else if (symbol.is("!=")) {
-					parse("!= EXPRESSION");
-					//EXPRESSION != EXPRESSION
-					neq();
-					return replace(start, "CONDITION");
-				} else if (symbol.is(">=")) {
-					parse(">= EXPRESSION");
-					//EXPRESSION >= EXPRESSION
-					geq();
-					return replace(start, "CONDITION");
-				} else if (symbol.is("<=")) {
-					parse("<= EXPRESSION");
-					//EXPRESSION <= EXPRESSION
-					leq();
-					return replace(start, "CONDITION");
-				} else if (symbol.is(">")) {
-					parse("> EXPRESSION");
-					//EXPRESSION > EXPRESSION
-					gt();
+				if (symbol.is("second") || symbol.is("seconds")) {
+					parse("second|seconds");
+					//EXPRESSION second|seconds
+					sleep();
+					return replace(start, "CONDITION");
+				} else if (symbol.is("==")) {
+					parse("== EXPRESSION");
+					//EXPRESSION == EXPRESSION
+					eq();
+					return replace(start, "CONDITION");
+				} else if (symbol.is("!=")) {
+					parse("!= EXPRESSION");
+					//EXPRESSION != EXPRESSION
+					neq();
+					return replace(start, "CONDITION");
+				} else if (symbol.is(">=")) {
+					parse(">= EXPRESSION");
+					//EXPRESSION >= EXPRESSION
+					geq();
+					return replace(start, "CONDITION");
+				} else if (symbol.is("<=")) {
+					parse("<= EXPRESSION");
+					//EXPRESSION <= EXPRESSION
+					leq();
+					return replace(start, "CONDITION");
+				} else if (symbol.is(">")) {
+					parse("> EXPRESSION");
+					//EXPRESSION > EXPRESSION
+					gt();
+					return replace(start, "CONDITION");
+				} else if (symbol.is("<")) {
+					parse("< EXPRESSION");
+					//EXPRESSION < EXPRESSION
+					lt();
+					return replace(start, "CONDITION");
+				}
+			}
+		} catch (ParseException e) {
+			lastParseException = e;
+		}
+		revert(start, startIp, startPreserve);
+		//seek(start);
+		return null;
+	}
+	
+	private SymbolInstance parseConditionKey() throws ParseException {
+		final int start = it.nextIndex();
+		parse("key CONST_EXPR down");
+		//key CONST_EXPR down
+		sys(KEY_DOWN);
+		return replace(start, "CONDITION");
+	}
+	
+	private SymbolInstance parseConditionInside() throws ParseException {
+		final int start = it.nextIndex();
+		parse("inside temple");
+		//inside temple
+		sys(INSIDE_TEMPLE);
+		return replace(start, "CONDITION");
+	}
+	
+	private SymbolInstance parseConditionWithin() throws ParseException {
+		final int start = it.nextIndex();
+		parse("within rotation");
+		//within rotation
+		sys(WITHIN_ROTATION);
+		return replace(start, "CONDITION");
+	}
+	
+	private SymbolInstance parseConditionHand() throws ParseException {
+		final int start = it.nextIndex();
+		parse("hand demo");
+		SymbolInstance symbol = peek();
+		if (symbol.is("played")) {
+			accept("played");
+			//hand demo played
+			sys(IS_PLAYING_HAND_DEMO);
+			return replace(start, "CONDITION");
+		} else if (symbol.is("trigger")) {
+			accept("trigger");
+			//hand demo trigger
+			sys(HAND_DEMO_TRIGGER);
+			return replace(start, "CONDITION");
+		} else {
+			throw new ParseDiagnostic(() -> "Unexpected token: "+symbol+". Expected: played|trigger", lastParseException, file, symbol.token.line, symbol.token.col);
+		}
+	}
+	
+	private SymbolInstance parseConditionJc() throws ParseException {
+		final int start = it.nextIndex();
+		parse("jc special CONST_EXPR played");
+		//jc special CONST_EXPR played
+		sys(IS_PLAYING_JC_SPECIAL);
+		return replace(start, "CONDITION");
+	}
+	
+	private SymbolInstance parseConditionFire() throws ParseException {
+		final int start = it.nextIndex();
+		parse("fire near COORD_EXPR radius EXPRESSION");
+		//fire near COORD_EXPR radius EXPRESSION
+		sys(IS_FIRE_NEAR);
+		return replace(start, "CONDITION");
+	}
+	
+	private SymbolInstance parseConditionSpell() throws ParseException {
+		final int start = it.nextIndex();
+		accept("spell");
+		SymbolInstance symbol = peek();
+		if (symbol.is("wind")) {
+			parse("wind near COORD_EXPR radius EXPRESSION");
+			//TODO: spell wind near COORD_EXPR radius EXPRESSION
+			//NOTICE: perhaps IS_WIND_MAGIC_AT_POS, but stack-in doesn't match
+			throw new ParseDiagnostic("Statement not implemented", file, line, col);
+			//return replace(start, "CONDITION");
+		} else {
+			parse("CONST_EXPR for player EXPRESSION");
+			//spell CONST_EXPR for player EXPRESSION
+			sys(HAS_PLAYER_MAGIC);
+			return replace(start, "CONDITION");
+		}
+	}
+	
+	private SymbolInstance parseConditionCamera() throws ParseException {
+		final int start = it.nextIndex();
+		accept("camera");
+		SymbolInstance symbol = peek();
+		if (symbol.is("ready")) {
+			accept("ready");
+			//camera ready
+			sys(HAS_CAMERA_ARRIVED);
+			return replace(start, "CONDITION");
+		} else if (symbol.is("not")) {
+			parse("not ready");
+			//camera not ready
+			sys(HAS_CAMERA_ARRIVED);
+			not();
+			return replace(start, "CONDITION");
+		} else {
+			throw new ParseDiagnostic(() -> "Unexpected token: "+symbol+". Expected: ready|not", lastParseException, file, symbol.token.line, symbol.token.col);
+		}
+	}
+	
+	private SymbolInstance parseConditionWidescreen() throws ParseException {
+		final int start = it.nextIndex();
+		parse("widescreen ready");
+		//widescreen ready
+		sys(WIDESCREEN_TRANSISTION_FINISHED);
+		return replace(start, "CONDITION");
+	}
+	
+	private SymbolInstance parseConditionFade() throws ParseException {
+		final int start = it.nextIndex();
+		parse("fade ready");
+		//fade ready
+		sys(FADE_FINISHED);
+		return replace(start, "CONDITION");
+	}
+	
+	private SymbolInstance parseConditionDialogue() throws ParseException {
+		final int start = it.nextIndex();
+		accept("dialogue");
+		SymbolInstance symbol = peek();
+		if (symbol.is("ready")) {
+			accept("ready");
+			//dialogue ready
+			sys(IS_DIALOGUE_READY);
+			return replace(start, "CONDITION");
+		} else if (symbol.is("not")) {
+			parse("not ready");
+			//dialogue not ready
+			sys(IS_DIALOGUE_READY);
+			not();
+			return replace(start, "CONDITION");
+		} else {
+			throw new ParseDiagnostic(() -> "Unexpected token: "+symbol+". Expected: ready|not", lastParseException, file, symbol.token.line, symbol.token.col);
+		}
+	}
+	
+	private SymbolInstance parseConditionComputer() throws ParseException {
+		final int start = it.nextIndex();
+		parse("computer player EXPRESSION ready");
+		//computer player EXPRESSION ready
+		sys(COMPUTER_PLAYER_READY);
+		return replace(start, "CONDITION");
+	}
+	
+	private SymbolInstance parseConditionPlayer() throws ParseException {
+		final int start = it.nextIndex();
+		accept("player");
+		SymbolInstance symbol = peek();
+		if (symbol.is("has")) {
+			parse("has mouse wheel");
+			//player has mouse wheel
+			sys(HAS_MOUSE_WHEEL);
+			return replace(start, "CONDITION");
+		} else {
+			parse("EXPRESSION");
+			symbol = peek();
+			if (symbol.is("spell")) {
+				accept("spell");
+				symbol = peek();
+				if (symbol.is("charging")) {
+					accept("charging");
+					//player EXPRESSION spell charging
+					sys(IS_SPELL_CHARGING);
 					return replace(start, "CONDITION");
-				} else if (symbol.is("<")) {
-					parse("< EXPRESSION");
-					//EXPRESSION < EXPRESSION
-					lt();
+				} else {
+					parse("CONST_EXPR charging");
+					//player EXPRESSION spell MAGIC_TYPE charging
+					sys(IS_THAT_SPELL_CHARGING);
 					return replace(start, "CONDITION");
 				}
+			} else if (symbol.is("wind")) {
+				parse("wind resistance");
+				//TODO: player EXPRESSION wind resistance
+				//NOTICE: perhaps GET_PLAYER_WIND_RESISTANCE, but stack-in doesn't match
+				throw new ParseDiagnostic("Statement not implemented", lastParseException, file, line, col);
+				//return replace(start, "CONDITION");
+			} else {
+				throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: spell|wind", lastParseException, file, symbol.token.line, symbol.token.col);
 			}
-		} catch (ParseException e) {
-			lastParseException = e;
 		}
-		revert(start, startIp, startPreserve);
-		//seek(start);
+	}
+	
+	private SymbolInstance parseConditionCreature() throws ParseException {
+		final int start = it.nextIndex();
+		parse("creature CONST_EXPR is available");
+		//creature CONST_EXPR is available
+		sys(IS_CREATURE_AVAILABLE);
+		return replace(start, "CONDITION");
+	}
+	
+	private SymbolInstance parseConditionGet() throws ParseException {
+		final int start = it.nextIndex();
+		parse("get desire of OBJECT is CONST_EXPR");
+		//get desire of OBJECT is CONST_EXPR
+		sys(CREATURE_DESIRE_IS);
+		return replace(start, "CONDITION");
+	}
+	
+	private SymbolInstance parseConditionRead() throws ParseException {
+		final int start = it.nextIndex();
+		accept("read");
+		//read
+		sys(TEXT_READ);
+		return replace(start, "CONDITION");
+	}
+	
+	private SymbolInstance parseConditionHelp() throws ParseException {
+		final int start = it.nextIndex();
+		parse("help system on");
+		//help system on
+		sys(HELP_SYSTEM_ON);
+		return replace(start, "CONDITION");
+	}
+	
+	private SymbolInstance parseConditionImmersion() throws ParseException {
+		final int start = it.nextIndex();
+		parse("immersion exists");
+		//immersion exists
+		sys(IMMERSION_EXISTS);
+		return replace(start, "CONDITION");
+	}
+	
+	private SymbolInstance parseConditionSound() throws ParseException {
+		final int start = it.nextIndex();
+		accept("sound");
+		SymbolInstance symbol = peek();
+		if (symbol.is("exists")) {
+			accept("exists");
+			//sound exists
+			sys(SOUND_EXISTS);
+			return replace(start, "CONDITION");
+		} else {
+			parseConstExpr(true);
+			symbol = peek();
+			if (symbol.is("playing")) {
+				pushi(DEFAULT_SOUNDBANK_NAME);
+			} else {
+				parseConstExpr(true);
+			}
+			accept("playing");
+			//sound CONST_EXPR [CONST_EXPR] playing
+			sys(GAME_SOUND_PLAYING);
+			return replace(start, "CONDITION");
+		}
+	}
+	
+	private SymbolInstance parseConditionMusic() throws ParseException {
+		final int start = it.nextIndex();
+		parse("music line EXPRESSION");
+		//music line EXPRESSION
+		sys(LAST_MUSIC_LINE);
+		return replace(start, "CONDITION");
+	}
+	
+	private SymbolInstance parseConditionNot() throws ParseException {
+		final int start = it.nextIndex();
+		//not CONDITION
+		accept("not");
+		parseCondition1();	//<- important for precedence
+		not();
+		return replace(start, "CONDITION");
+	}
+	
+	private SymbolInstance parseConditionSay() throws ParseException {
+		final int start = it.nextIndex();
+		//say sound CONST_EXPR playing
+		pushb(false);
+		parse("say sound CONST_EXPR playing");
+		sys(SAY_SOUND_EFFECT_PLAYING);
+		return replace(start, "CONDITION");
+	}
+	
+	private SymbolInstance parseConditionCan() throws ParseException {
+		final int start = it.nextIndex();
+		parse("can skip");
+		SymbolInstance symbol = peek();
+		if (symbol.is("tutorial")) {
+			accept("tutorial");
+			//can skip tutorial
+			sys(CAN_SKIP_TUTORIAL);
+			return replace(start, "CONDITION");
+		} else if (symbol.is("creature")) {
+			parse("creature training");
+			//can skip creature training
+			sys(CAN_SKIP_CREATURE_TRAINING);
+			return replace(start, "CONDITION");
+		}
 		return null;
 	}
 	
+	private SymbolInstance parseConditionIs() throws ParseException {
+		final int start = it.nextIndex();
+		parse("is keeping old creature");
+		//is keeping old creature
+		sys(IS_KEEPING_OLD_CREATURE);
+		return replace(start, "CONDITION");
+	}
+	
+	private SymbolInstance parseConditionCurrent() throws ParseException {
+		final int start = it.nextIndex();
+		parse("current profile has creature");
+		//current profile has creature
+		sys(CURRENT_PROFILE_HAS_CREATURE);
+		return replace(start, "CONDITION");
+	}
+	
+	private SymbolInstance parseConditionParenthesis() throws ParseException {
+		final int start = it.nextIndex();
+		parse("( CONDITION )");
+		//(CONDITION)
+		return replace(start, "CONDITION");
+	}
+	
 	private SymbolInstance parseObject(boolean fail) throws ParseException {
 		final int start = it.nextIndex();
 		final int startIp = getIp();
@@ -4760,7 +5514,7 @@ public class CHLCompiler implements Compiler {
 					parse("arena at COORD_EXPR radius EXPRESSION");
 					//TODO: get arena at COORD_EXPR radius EXPRESSION
 					//NOTICE: function is GET_ARENA, but it expects one more parameter
-					throw new ParseException("Statement not implemented", lastParseException, file, line, col);
+					throw new ParseDiagnostic("Statement not implemented", lastParseException, file, line, col);
 					//return replace(start, "OBJECT");
 				} else if (symbol.is("hit")) {
 					parse("hit object");
@@ -4791,7 +5545,7 @@ public class CHLCompiler implements Compiler {
 						sys(GET_OBJECT_HAND_IS_OVER);
 						return replace(start, "OBJECT");
 					} else {
-						throw new ParseException("Unexpected token: "+symbol+". Expected: which|held|clicked|hand", lastParseException, file, symbol.token.line, symbol.token.col);
+						throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: which|held|clicked|hand", lastParseException, file, symbol.token.line, symbol.token.col);
 					}
 				} else if (symbol.is("football")) {
 					parse("football pitch in OBJECT");
@@ -4949,7 +5703,7 @@ public class CHLCompiler implements Compiler {
 						sys(INFLUENCE_POSITION);
 						return replace(start, "OBJECT");
 					} else {
-						throw new ParseException("Unexpected token: "+symbol+". Expected: on|at", lastParseException, file, symbol.token.line, symbol.token.col);
+						throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: on|at", lastParseException, file, symbol.token.line, symbol.token.col);
 					}
 				} else if (symbol.is("anti")) {
 					parse("anti influence");
@@ -4969,7 +5723,7 @@ public class CHLCompiler implements Compiler {
 						sys(INFLUENCE_POSITION);
 						return replace(start, "OBJECT");
 					} else {
-						throw new ParseException("Unexpected token: "+symbol+". Expected: on|at", lastParseException, file, symbol.token.line, symbol.token.col);
+						throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: on|at", lastParseException, file, symbol.token.line, symbol.token.col);
 					}
 				} else if (symbol.is("special")) {
 					parse("special effect CONST_EXPR");
@@ -4985,7 +5739,7 @@ public class CHLCompiler implements Compiler {
 						sys(SPECIAL_EFFECT_OBJECT);
 						return replace(start, "OBJECT");
 					} else {
-						throw new ParseException("Unexpected token: "+symbol+". Expected: at|on", lastParseException, file, symbol.token.line, symbol.token.col);
+						throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: at|on", lastParseException, file, symbol.token.line, symbol.token.col);
 					}
 				} else {
 					parseConstExpr(true);
@@ -5018,11 +5772,11 @@ public class CHLCompiler implements Compiler {
 					symbol = parseConstExpr(false);
 					if (symbol != null) {
 						//TODO: marker at CONST_EXPR
-						throw new ParseException("Statement not implemented", lastParseException, file, line, col);
+						throw new ParseDiagnostic("Statement not implemented", lastParseException, file, line, col);
 						//return replace(start, "OBJECT");
 					} else {
 						symbol = peek();
-						throw new ParseException("Expected: COORD_EXPR|CONST_EXPR", lastParseException, file, symbol.token.line, symbol.token.col);
+						throw new ParseDiagnostic("Expected: COORD_EXPR|CONST_EXPR", lastParseException, file, symbol.token.line, symbol.token.col);
 					}
 				}
 			} else if (symbol.is("reward")) {
@@ -5039,7 +5793,7 @@ public class CHLCompiler implements Compiler {
 					sys(CREATE_REWARD_IN_TOWN);
 					return replace(start, "OBJECT");
 				} else {
-					throw new ParseException("Unexpected token: "+symbol+". Expected: at|in", lastParseException, file, symbol.token.line, symbol.token.col);
+					throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: at|in", lastParseException, file, symbol.token.line, symbol.token.col);
 				}
 			} else if (symbol.is("flock")) {
 				parse("flock at COORD_EXPR");
@@ -5065,7 +5819,7 @@ public class CHLCompiler implements Compiler {
 					sys(SPELL_AT_POS);
 					return replace(start, "OBJECT");
 				} else {
-					throw new ParseException("Unexpected token: "+symbol+". Expected: on|at", lastParseException, file, symbol.token.line, symbol.token.col);
+					throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected: on|at", lastParseException, file, symbol.token.line, symbol.token.col);
 				}
 			} else if (symbol.is("attach")) {
 				parse("attach OBJECT to OBJECT [as leader]");
@@ -5079,11 +5833,11 @@ public class CHLCompiler implements Compiler {
 				return replace(start, "OBJECT");
 			} else if (symbol.is(TokenType.IDENTIFIER)) {
 				//VARIABLE
-				String name = symbol.token.value;
+				String name = symbol.token.getValue();
 				Var var = getVar(name);
 				if (var != null) {
 					if (var.type != null && var.type != DataType.OBJECT) {
-						throw new ParseException("Expected OBJECT, but variable "+name+" is "+var.type.keyword, lastParseException, file, line, col);
+						throw new ParseDiagnostic("Expected OBJECT, but variable "+name+" is "+var.type.keyword, lastParseException, file, line, col);
 					}
 					parse("VARIABLE");
 					return replace(start, "OBJECT");
@@ -5101,7 +5855,7 @@ public class CHLCompiler implements Compiler {
 		if (fail) {
 			if (lastParseException != null) throw lastParseException;
 			symbol = peek();
-			throw new ParseException("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
 		} else {
 			revert(start, startIp, startPreserve);
 			return null;
@@ -5128,7 +5882,7 @@ public class CHLCompiler implements Compiler {
 		if (fail) {
 			if (lastParseException != null) throw lastParseException;
 			symbol = peek();
-			throw new ParseException("Expected: CONST_EXPR", file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic("Expected: CONST_EXPR", file, symbol.token.line, symbol.token.col);
 		} else {
 			seek(start);
 			return null;
@@ -5136,6 +5890,16 @@ public class CHLCompiler implements Compiler {
 	}
 	
 	private SymbolInstance parseConstExpr1() throws ParseException {
+		final MemoAttempt attempt = beginAttempt(ParseMemo.CONST_EXPR);
+		if (attempt == null) return lastReplayed;
+		try {
+			return endAttempt(attempt, doParseConstExpr1());
+		} catch (ParseException e) {
+			throw failAttempt(attempt, e);
+		}
+	}
+	
+	private SymbolInstance doParseConstExpr1() throws ParseException {
 		final int start = it.nextIndex();
 		final int startIp = getIp();
 		SymbolInstance startSymbol = peek();
@@ -5147,7 +5911,7 @@ public class CHLCompiler implements Compiler {
 				if (operator.is("*")) {
 					symbol = parseConstExpr1();
 					if (symbol == null) {
-						throw new ParseException("Expected: CONST_EXPR", lastParseException, file, line, col);
+						throw new ParseDiagnostic("Expected: CONST_EXPR", lastParseException, file, line, col);
 					}
 					//CONST_EXPR * CONST_EXPR
 					muli();
@@ -5155,7 +5919,7 @@ public class CHLCompiler implements Compiler {
 				} else if (operator.is("/")) {
 					symbol = parseConstExpr1();
 					if (symbol == null) {
-						throw new ParseException("Expected: CONST_EXPR", lastParseException, file, line, col);
+						throw new ParseDiagnostic("Expected: CONST_EXPR", lastParseException, file, line, col);
 					}
 					//CONST_EXPR / CONST_EXPR
 					divi();
@@ -5163,7 +5927,7 @@ public class CHLCompiler implements Compiler {
 				} else if (operator.is("%")) {
 					symbol = parseConstExpr1();
 					if (symbol == null) {
-						throw new ParseException("Expected: CONST_EXPR", lastParseException, file, line, col);
+						throw new ParseDiagnostic("Expected: CONST_EXPR", lastParseException, file, line, col);
 					}
 					//CONST_EXPR % CONST_EXPR
 					modi();
@@ -5174,7 +5938,7 @@ public class CHLCompiler implements Compiler {
 					symbol = parseConstExpr1();
 					if (symbol == null) {
 						symbol = peek();
-						throw new ParseException("Expected: CONST_EXPR", lastParseException, file, line, col);
+						throw new ParseDiagnostic("Expected: CONST_EXPR", lastParseException, file, line, col);
 					}
 					symbol = peek();
 					if (symbol.is("*") || symbol.is("/") || symbol.is("%")) {
@@ -5216,7 +5980,7 @@ public class CHLCompiler implements Compiler {
 				}
 			} else if (symbol.is("int")) {
 				if (!this.intMath) {
-					throw new ParseException("Integer arithmetic is not enabled", file, symbol.token.line, symbol.token.col);
+					throw new ParseDiagnostic("Integer arithmetic is not enabled", file, symbol.token.line, symbol.token.col);
 				}
 				accept("int");
 				symbol = peek();
@@ -5282,7 +6046,7 @@ public class CHLCompiler implements Compiler {
 							return replace(start, "CONST_EXPR");
 						} else {
 							symbol = peek();
-							throw new ParseException("Expected: OBJECT|CONST_EXPR", lastParseException, file, symbol.token.line, symbol.token.col);
+							throw new ParseDiagnostic("Expected: OBJECT|CONST_EXPR", lastParseException, file, symbol.token.line, symbol.token.col);
 						}
 					}
 				}
@@ -5306,7 +6070,7 @@ public class CHLCompiler implements Compiler {
 				pushi(val);
 				return replace(start, "CONST_EXPR");
 			} else if (symbol.is(TokenType.IDENTIFIER)) {
-				Var var = getVar(symbol.token.value);
+				Var var = getVar(symbol.token.getValue());
 				if (var != null && var.type == DataType.INT) {
 					parse("INTVAR");
 				} else {
@@ -5343,7 +6107,7 @@ public class CHLCompiler implements Compiler {
 		if (fail) {
 			if (lastParseException != null) throw lastParseException;
 			symbol = peek();
-			throw new ParseException("Unexpected token: "+symbol+". Expected COORD_EXPR", file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic("Unexpected token: "+symbol+". Expected COORD_EXPR", file, symbol.token.line, symbol.token.col);
 		} else {
 			seek(start);
 			return null;
@@ -5351,6 +6115,16 @@ public class CHLCompiler implements Compiler {
 	}
 	
 	private SymbolInstance parseCoordExpr1() throws ParseException {
+		final MemoAttempt attempt = beginAttempt(ParseMemo.COORD_EXPR);
+		if (attempt == null) return lastReplayed;
+		try {
+			return endAttempt(attempt, doParseCoordExpr1());
+		} catch (ParseException e) {
+			throw failAttempt(attempt, e);
+		}
+	}
+	
+	private SymbolInstance doParseCoordExpr1() throws ParseException {
 		final int start = it.nextIndex();
 		SymbolInstance symbol = peek();
 		if ("COORD_EXPR".equals(symbol.symbol.keyword)) {
@@ -5359,7 +6133,7 @@ public class CHLCompiler implements Compiler {
 			if (symbol.is("/")) {
 				parseExpression(true);
 				//TODO: COORD_EXPR / EXPRESSION
-				throw new ParseException("Statement not implemented", lastParseException, file, line, col);
+				throw new ParseDiagnostic("Statement not implemented", lastParseException, file, line, col);
 				//return replace(start, "COORD_EXPR");
 			} else if (symbol.is("+") || symbol.is("-")) {
 				parseCoordExpr(true);
@@ -5409,7 +6183,7 @@ public class CHLCompiler implements Compiler {
 					//[EXPRESSION, EXPRESSION]
 					return replace(start, "COORD_EXPR");
 				} else {
-					throw new ParseException("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
+					throw new ParseDiagnostic("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
 				}
 			} catch (ParseException e) {
 				lastParseException = e;
@@ -5431,7 +6205,7 @@ public class CHLCompiler implements Compiler {
 			} else {
 				//camera CONST_EXPR
 				symbol = accept(TokenType.IDENTIFIER);
-				String camEnum = challengeName + symbol.token.value;
+				String camEnum = challengeName + symbol.token.getValue();
 				int constVal = getConstant(camEnum);
 				pushi(constVal);
 				sys(CONVERT_CAMERA_FOCUS);
@@ -5451,7 +6225,7 @@ public class CHLCompiler implements Compiler {
 				sys(GET_STORED_CAMERA_FOCUS);
 				return replace(start, "COORD_EXPR");
 			} else {
-				throw new ParseException("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
 			}
 		} else if (symbol.is("hand")) {
 			parse("hand position");
@@ -5507,12 +6281,12 @@ public class CHLCompiler implements Compiler {
 				sys(GET_TEMPLE_ENTRANCE_POSITION);
 				return replace(start, "COORD_EXPR");
 			} else {
-				throw new ParseException("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
+				throw new ParseDiagnostic("Unexpected token: "+symbol, file, symbol.token.line, symbol.token.col);
 			}
 		} else if (symbol.is("-")) {
 			parse("- COORD_EXPR");
 			//TODO: -COORD_EXPR
-			throw new ParseException("Statement not implemented", lastParseException, file, line, col);
+			throw new ParseDiagnostic("Statement not implemented", lastParseException, file, line, col);
 			//return replace(start, "COORD_EXPR");
 		} else if (symbol.is("(")) {
 			parse("( COORD_EXPR )");
@@ -5528,7 +6302,7 @@ public class CHLCompiler implements Compiler {
 				if (mode.is("*")) {
 					parseCoordExpr(true);
 					//TODO: EXPRESSION * COORD_EXPR
-					throw new ParseException("Statement not implemented", lastParseException, file, line, col);
+					throw new ParseDiagnostic("Statement not implemented", lastParseException, file, line, col);
 					//return replace(start, "COORD_EXPR");
 				}
 				revert(checkpoint, checkpointIp, checkpointPreserve);
@@ -5545,7 +6319,7 @@ public class CHLCompiler implements Compiler {
 		} else if (symbol.is("disable")) {
 			pushb(false);
 		} else {
-			throw new ParseException("Unexpected token: "+symbol+". Expected: enable|disable", lastParseException, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic(() -> "Unexpected token: "+symbol+". Expected: enable|disable", lastParseException, file, symbol.token.line, symbol.token.col);
 		}
 		return symbol;
 	}
@@ -5557,7 +6331,7 @@ public class CHLCompiler implements Compiler {
 		} else if (symbol.is("reverse")) {
 			pushb(false);
 		} else {
-			throw new ParseException("Unexpected token: "+symbol+". Expected: forward|reverse", lastParseException, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic(() -> "Unexpected token: "+symbol+". Expected: forward|reverse", lastParseException, file, symbol.token.line, symbol.token.col);
 		}
 		return symbol;
 	}
@@ -5569,7 +6343,7 @@ public class CHLCompiler implements Compiler {
 		} else if (symbol.is("close")) {
 			pushb(false);
 		} else {
-			throw new ParseException("Unexpected token: "+symbol+". Expected: open|close", lastParseException, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic(() -> "Unexpected token: "+symbol+". Expected: open|close", lastParseException, file, symbol.token.line, symbol.token.col);
 		}
 		return symbol;
 	}
@@ -5581,7 +6355,7 @@ public class CHLCompiler implements Compiler {
 		} else if (symbol.is("unpause")) {
 			pushb(false);
 		} else {
-			throw new ParseException("Unexpected token: "+symbol+". Expected: pause|unpause", lastParseException, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic(() -> "Unexpected token: "+symbol+". Expected: pause|unpause", lastParseException, file, symbol.token.line, symbol.token.col);
 		}
 		return symbol;
 	}
@@ -5593,7 +6367,7 @@ public class CHLCompiler implements Compiler {
 		} else if (symbol.is("challenge")) {
 			pushb(false);
 		} else {
-			throw new ParseException("Unexpected token: "+symbol+". Expected: quest|challenge", lastParseException, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic(() -> "Unexpected token: "+symbol+". Expected: quest|challenge", lastParseException, file, symbol.token.line, symbol.token.col);
 		}
 		return symbol;
 	}
@@ -5605,7 +6379,7 @@ public class CHLCompiler implements Compiler {
 		} else if (symbol.is("exit")) {
 			pushb(false);
 		} else {
-			throw new ParseException("Unexpected token: "+symbol+". Expected: enter|exit", lastParseException, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic(() -> "Unexpected token: "+symbol+". Expected: enter|exit", lastParseException, file, symbol.token.line, symbol.token.col);
 		}
 		return symbol;
 	}
@@ -5619,7 +6393,7 @@ public class CHLCompiler implements Compiler {
 		} else if (symbol.is("last")) {
 			pushi(3);
 		} else {
-			throw new ParseException("Unexpected token: "+symbol+". Expected: good|evil|last", lastParseException, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic(() -> "Unexpected token: "+symbol+". Expected: good|evil|last", lastParseException, file, symbol.token.line, symbol.token.col);
 		}
 		return symbol;
 	}
@@ -5627,11 +6401,11 @@ public class CHLCompiler implements Compiler {
 	private SymbolInstance parsePlayingSide() throws ParseException {
 		SymbolInstance symbol = next();
 		if (symbol.is("home")) {
-			throw new ParseException("PLAYING_SIDE not implemented", lastParseException, file, line, col);
+			throw new ParseDiagnostic("PLAYING_SIDE not implemented", lastParseException, file, line, col);
 		} else if (symbol.is("away")) {
-			throw new ParseException("PLAYING_SIDE not implemented", lastParseException, file, line, col);
+			throw new ParseDiagnostic("PLAYING_SIDE not implemented", lastParseException, file, line, col);
 		} else {
-			throw new ParseException("Unexpected token: "+symbol+". Expected: home|away", lastParseException, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic(() -> "Unexpected token: "+symbol+". Expected: home|away", lastParseException, file, symbol.token.line, symbol.token.col);
 		}
 		//return symbol;
 	}
@@ -5644,12 +6418,12 @@ public class CHLCompiler implements Compiler {
 	 */
 	private int getConstant(SymbolInstance symbol) throws ParseException {
 		if (symbol.is(TokenType.IDENTIFIER)) {
-			String name = symbol.token.value;
+			String name = symbol.token.getValue();
 			return getConstant(name);
 		} else if (symbol.is(TokenType.NUMBER)) {
 			return symbol.token.intVal();
 		} else {
-			throw new ParseException(symbol + " is not a valid constant", lastParseException, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic(symbol + " is not a valid constant", lastParseException, file, symbol.token.line, symbol.token.col);
 		}
 	}
 	
@@ -5661,10 +6435,10 @@ public class CHLCompiler implements Compiler {
 	private int getConstant(String name) throws ParseException {
 		Integer val = localConst.get(name);
 		if (val == null) {
-			val = constants.get(name);
+			val = getGlobalConstant(name);
 		}
 		if (val == null) {
-			lastParseException = new ParseException("Undefined constant: "+name, file, line, col);
+			lastParseException = new ParseDiagnostic("Undefined constant: "+name, file, line, col);
 			throw lastParseException;
 		} else {
 			lastParseException = null;
@@ -5672,6 +6446,14 @@ public class CHLCompiler implements Compiler {
 		return val;
 	}
 	
+	private Integer getGlobalConstant(String name) {
+		Integer val = constants.get(name);
+		if (val == null && constantsDatabase != null) {
+			val = constantsDatabase.get(name);
+		}
+		return val;
+	}
+	
 	private Var getVar(String name) throws ParseException {
 		Var var = localMap.get(name);
 		if (var != null) return var;
@@ -5689,7 +6471,7 @@ public class CHLCompiler implements Compiler {
 			var = globalMap.get(name);
 		}
 		if (var == null) {
-			lastParseException = new ParseException("Undefined variable: "+name, file, line, col);
+			lastParseException = new ParseDiagnostic("Undefined variable: "+name, file, line, col);
 			throw lastParseException;
 		}
 		lastParseException = null;
@@ -5710,6 +6492,7 @@ public class CHLCompiler implements Compiler {
 		if (r.token != null) {
 			line = r.token.line;
 			col = r.token.col;
+			positionUpdates++;
 		}
 		return r;
 	}
@@ -5719,47 +6502,44 @@ public class CHLCompiler implements Compiler {
 		if (r.token != null) {
 			line = r.token.line;
 			col = r.token.col;
+			positionUpdates++;
 		}
 		return r;
 	}
 	
 	private boolean checkAhead(String expression) {
 		final int start = it.nextIndex();
-		String[] symbols = expression.split(" ");
+		final ParsePattern pattern = ParsePattern.getLookahead(expression);
 		boolean match = true;
-		for (String symbol : symbols) {
-			if ("ANY".equals(symbol)) {
-				next();
-			} else if ("IDENTIFIER".equals(symbol) || "NUMBER".equals(symbol) || "STRING".equals(symbol)) {
-				SymbolInstance sInst = next();
-				TokenType type = TokenType.valueOf(symbol);
-				if (!sInst.is(type)) {
-					match = false;
+		for (int i = 0; i < pattern.length && match; i++) {
+			switch (pattern.ops[i]) {
+				case ANY:
+					next();
 					break;
-				}
-			} else if ("CONSTANT".equals(symbol)) {
-				SymbolInstance sInst = next();
-				if (!sInst.is(TokenType.IDENTIFIER) && !sInst.is(TokenType.NUMBER)) {
-					match = false;
+				case IDENTIFIER:
+					match = next().is(TokenType.IDENTIFIER);
 					break;
-				}
-			} else if ("EOL".equals(symbol)) {
-				SymbolInstance sInst = next(false);
-				if (!sInst.is(TokenType.EOL)) {
-					match = false;
+				case NUMBER:
+					match = next().is(TokenType.NUMBER);
 					break;
-				}
-			} else {
-				SymbolInstance sInst = next();
-				if (!sInst.is(symbol)) {
-					match = false;
+				case STRING:
+					match = next().is(TokenType.STRING);
+					break;
+				case CONSTANT: {
+					SymbolInstance sInst = next();
+					match = sInst.is(TokenType.IDENTIFIER) || sInst.is(TokenType.NUMBER);
 					break;
 				}
+				case EOL:
+					match = next(false).is(TokenType.EOL);
+					break;
+				default:
+					match = pattern.isKeyword(i, next());
 			}
 		}
-		while (it.nextIndex() > start) {
-			prev();
-		}
+		final int end = it.nextIndex();
+		it.seek(start);
+		updatePosition(start, end);
 		return match;
 	}
 	
@@ -5769,10 +6549,14 @@ public class CHLCompiler implements Compiler {
 	
 	private SymbolInstance peek(boolean skipEol) {
 		final int start = it.nextIndex();
-		SymbolInstance r = next(skipEol);
-		while (it.nextIndex() > start) {
-			prev();
+		int index = start;
+		SymbolInstance r = it.get(index);
+		if (skipEol) {
+			while (r.is(TokenType.EOL)) {
+				r = it.get(++index);
+			}
 		}
+		updatePosition(start, index + 1);
 		return r;
 	}
 	
@@ -5781,29 +6565,150 @@ public class CHLCompiler implements Compiler {
 		if (forward < 0) {
 			throw new IllegalArgumentException("Invalid peek offset: "+forward);
 		}
-		for (int i = 0; i < forward; i++) {
-			next();
-		}
-		SymbolInstance r = next();
-		while (it.nextIndex() > start) {
-			prev();
+		int index = start - 1;
+		SymbolInstance r = null;
+		for (int i = 0; i <= forward; i++) {
+			do {
+				r = it.get(++index);
+			} while (r.is(TokenType.EOL));
 		}
+		updatePosition(start, index + 1);
 		return r;
 	}
 	
 	private void seek(final int index) {
-		while (it.nextIndex() < index) {
-			it.next();
-		}
-		while (it.nextIndex() > index) {
-			prev();
+		final int end = it.nextIndex();
+		it.seek(index);
+		if (index < end) {
+			updatePosition(index, end);
 		}
 		peek();
 	}
 	
+	/**Starts an attempt of a backtracking parse function, unless it has already been made at the current
+	 * symbol and would have the same outcome: in that case the node it built is put back in place with
+	 * its instructions and saved in {@link #lastReplayed}, or the failure is repeated. The attempt must
+	 * restore the symbols and the instructions when it returns null; if it throws, the caller is
+	 * responsible for that. Attempts that made a change which isn't undone by backtracking aren't
+	 * remembered, so that they are repeated.
+	 * The lookup is done here rather than in a wrapper around the parse function, so that nested
+	 * expressions don't take more stack than without memoization.
+	 * @param nonterminal
+	 * @return the attempt to run, which must be ended with {@link #endAttempt(MemoAttempt, SymbolInstance)}
+	 *         or {@link #failAttempt(MemoAttempt, ParseException)}, or null if the outcome is already known
+	 * @throws ParseException
+	 */
+	private MemoAttempt beginAttempt(int nonterminal) throws ParseException {
+		final SymbolInstance startSymbol = peek();
+		if (!Syntax.canStart(ParseMemo.SYMBOLS[nonterminal], startSymbol.symbol)) {
+			//According to the syntax no alternative can start here, so don't try them one by one
+			lastReplayed = null;
+			return null;
+		}
+		final int startIp = getIp();
+		final boolean remember = attemptDepth >= MEMO_MIN_DEPTH;
+		if (remember) {
+			ParseMemo.Outcome outcome = memo.get(startSymbol, nonterminal);
+			if (outcome != null && outcome.matches(startIp, lastParseException, line, col)) {
+				if (outcome.moved) {
+					line = outcome.line;
+					col = outcome.col;
+					positionUpdates++;
+				}
+				if (outcome.thrown) throw outcome.exception;
+				lastParseException = outcome.exception;
+				if (outcome.node != null) {
+					it.skip(outcome.length);
+					it.add(outcome.node);
+					instructions.addAll(outcome.instructions);
+				}
+				lastReplayed = outcome.node;
+				return null;
+			}
+		}
+		if (attemptDepth == attempts.length) {
+			attempts = Arrays.copyOf(attempts, Math.max(16, attemptDepth * 2));
+		}
+		MemoAttempt attempt = attempts[attemptDepth];
+		if (attempt == null) {
+			attempt = new MemoAttempt();
+			attempts[attemptDepth] = attempt;
+		}
+		attemptDepth++;
+		attempt.nonterminal = nonterminal;
+		attempt.remember = remember;
+		attempt.start = it.nextIndex();
+		attempt.startIp = startIp;
+		attempt.startSymbol = startSymbol;
+		attempt.entryException = lastParseException;
+		attempt.entryLine = line;
+		attempt.entryCol = col;
+		attempt.entryEffects = sideEffects;
+		attempt.entryUpdates = positionUpdates;
+		attempt.entrySize = it.size();
+		return attempt;
+	}
+	
+	/**Ends an attempt which returned, remembering its outcome if possible.
+	 * @param attempt
+	 * @param r the node built by the attempt, or null if it failed
+	 * @return the given node
+	 */
+	private SymbolInstance endAttempt(MemoAttempt attempt, SymbolInstance r) {
+		attemptDepth--;
+		if (attempt.remember && sideEffects == attempt.entryEffects) {
+			ParseMemo.Outcome outcome = null;
+			if (r == null) {
+				outcome = new ParseMemo.Outcome(attempt.startIp, attempt.entryException, attempt.entryLine, attempt.entryCol,
+						null, 0, null, lastParseException, false, positionUpdates != attempt.entryUpdates, line, col);
+			} else if (r != attempt.startSymbol && it.nextIndex() == attempt.start + 1 && it.get(attempt.start) == r) {
+				List<Instruction> fragment = new ArrayList<>(instructions.subList(attempt.startIp, getIp()));
+				outcome = new ParseMemo.Outcome(attempt.startIp, attempt.entryException, attempt.entryLine, attempt.entryCol,
+						r, attempt.entrySize - it.size() + 1, fragment,
+						lastParseException, false, positionUpdates != attempt.entryUpdates, line, col);
+			}
+			if (outcome != null) {
+				memo.put(attempt.startSymbol, attempt.nonterminal, outcome);
+			}
+		}
+		return r;
+	}
+	
+	/**Ends an attempt which threw an exception, remembering its outcome if possible.
+	 * @param attempt
+	 * @param e
+	 * @return the given exception, to be thrown by the caller
+	 */
+	private ParseException failAttempt(MemoAttempt attempt, ParseException e) {
+		attemptDepth--;
+		if (attempt.remember && sideEffects == attempt.entryEffects) {
+			ParseMemo.Outcome outcome = new ParseMemo.Outcome(attempt.startIp, attempt.entryException,
+					attempt.entryLine, attempt.entryCol, null, 0, null,
+					e, true, positionUpdates != attempt.entryUpdates, line, col);
+			memo.put(attempt.startSymbol, attempt.nonterminal, outcome);
+		}
+		return e;
+	}
+	
+	/**Sets the current position to the one of the first token in the given range of symbols, which
+	 * is where the cursor would be left by stepping back from the end of the range to its start.
+	 */
+	private void updatePosition(int start, int end) {
+		for (int i = start; i < end; i++) {
+			SymbolInstance symbol = it.get(i);
+			if (symbol.token != null) {
+				line = symbol.token.line;
+				col = symbol.token.col;
+				positionUpdates++;
+				return;
+			}
+		}
+	}
+	
 	private int storeStringData(String value) throws ParseError {
 		int strptr = strings.getOrDefault(value, -1);
 		if (!sharedStringsEnabled || strptr < 0) {
+			sideEffects++;
 			byte[] data = value.getBytes(ASCII);
 			if (dataBuffer.remaining() < data.length + 1) {
 				int capacity = dataBuffer.capacity() * 2;
@@ -5818,6 +6723,9 @@ public class CHLCompiler implements Compiler {
 			dataBuffer.put(data);
 			dataBuffer.put((byte)0);
 		}
+		if (object != null) {
+			object.addString(value, strptr);
+		}
 		return strptr;
 	}
 	
@@ -5838,171 +6746,204 @@ public class CHLCompiler implements Compiler {
 			String value = sInst.token.stringVal();
 			int strptr = storeStringData(value);
 			//STRING
-			strptrInstructions.add(getIp());
+			sideEffects++;
+		strptrInstructions.add(getIp());
 			pushi(strptr);
 		} else {
-			throw new ParseException("Unexpected token: "+sInst+". Expected: STRING", lastParseException, file, sInst.token.line, sInst.token.col);
+			throw new ParseDiagnostic(() -> "Unexpected token: "+sInst+". Expected: STRING", lastParseException, file, sInst.token.line, sInst.token.col);
 		}
 		return replace(start, "STRING");
 	}
 	
 	private SymbolInstance[] parse(String expression, Object... defaults) throws ParseException {
-		String[] symbols = expression.split(" ");
-		SymbolInstance[] r = new SymbolInstance[symbols.length];
+		final ParsePattern pattern = ParsePattern.get(expression);
+		SymbolInstance[] r = new SymbolInstance[pattern.length];
 		int defaultIndex = 0;
-		for (int i = 0; i < symbols.length; i++) {
-			String symbol = symbols[i];
-			if ("EXPRESSION".equals(symbol)) {
-				r[i] = parseExpression(true);
-			} else if ("COORD_EXPR".equals(symbol)) {
-				r[i] = parseCoordExpr(true);
-			} else if ("CONST_EXPR".equals(symbol)) {
-				r[i] = parseConstExpr(true);
-			} else if ("OBJECT".equals(symbol)) {
-				r[i] = parseObject(true);
-			} else if ("CONDITION".equals(symbol)) {
-				r[i] = parseCondition(true);
-			} else if ("IDENTIFIER".equals(symbol)) {
-				r[i] = accept(TokenType.IDENTIFIER);
-			} else if ("VARIABLE".equals(symbol)) {
-				r[i] = accept(TokenType.IDENTIFIER);
-				String name = r[i].token.value;
-				pushf(name);
-			} else if ("INTVAR".equals(symbol)) {
-				r[i] = accept(TokenType.IDENTIFIER);
-				String name = r[i].token.value;
-				pushiVar(name);
-			} else if ("CONSTANT".equals(symbol)) {
-				r[i] = acceptAny(TokenType.NUMBER, TokenType.IDENTIFIER);
-				int val = getConstant(r[i]);
-				pushi(val);
-			} else if ("STRING".equals(symbol)) {
-				r[i] = parseString();
-			} else if ("EOL".equals(symbol)) {
-				SymbolInstance sInst = next(false);
-				if (!sInst.is(TokenType.EOL)) {
-					lastParseException = new ParseException("Unexpected token: "+sInst+". Expected: EOL", lastParseException, file, sInst.token.line, sInst.token.col);
-					throw lastParseException;
+		for (int i = 0; i < pattern.length; i++) {
+			final String symbol = pattern.words[i];
+			if (pattern.groupEnds[i] > 0) {	//Optional expression
+				final int start = i;
+				final int end = pattern.groupEnds[i];
+				boolean match = true;
+				boolean flag = true;	//Tells if this optional expression must generate a boolean value (the other case is a default value)
+				for (; i < end; i++) {
+					final String expr = pattern.words[i];
+					switch (pattern.ops[i]) {
+						case EXPRESSION:
+							flag = false;
+							if (match) {
+								r[i] = parseExpression(true);
+							} else {
+								float def = defaultIndex < defaults.length ? asFloat(defaults[defaultIndex]) : 0;
+								pushf(def);
+							}
+							defaultIndex++;
+							break;
+						case CONST_EXPR:
+							flag = false;
+							if (match) {
+								r[i] = parseConstExpr(true);
+							} else {
+								int def = defaultIndex < defaults.length ? asInt(defaults[defaultIndex]) : 0;
+								pushi(def);
+							}
+							defaultIndex++;
+							break;
+						case COORD_EXPR:
+							flag = false;
+							if (match) {
+								r[i] = parseCoordExpr(true);
+								pushb(true);	//with position
+							} else {
+								pushc(0);
+								pushc(0);
+								pushc(0);
+								pushb(false);	//without position
+							}
+							defaultIndex++;
+							break;
+						case OBJECT:
+							flag = false;
+							if (match) {
+								r[i] = parseObject(false);
+								if (r[i] == null) {
+									pusho(0);
+								}
+							} else {
+								pusho(0);
+							}
+							defaultIndex++;
+							break;
+						default:
+							if (match) {
+								SymbolInstance sInst = peek(false);
+								if (pattern.ops[i] == ParsePattern.Op.EOL && sInst.is(TokenType.EOL)) {
+									accept(TokenType.EOL);
+								} else if (pattern.isKeyword(i, sInst)) {
+									accept(expr);
+								} else if (i > start) {
+									lastParseException = new ParseDiagnostic(() -> "Unexpected token: "+sInst+". Expected: "+expr, lastParseException, file, sInst.token.line, sInst.token.col);
+									throw lastParseException;
+								} else {
+									match = false;
+								}
+							}
+					}
+				}
+				i--;
+				if (flag) {
+					pushb(match);
+				}
+				continue;
+			}
+			switch (pattern.ops[i]) {
+				case EXPRESSION:
+					r[i] = parseExpression(true);
+					break;
+				case COORD_EXPR:
+					r[i] = parseCoordExpr(true);
+					break;
+				case CONST_EXPR:
+					r[i] = parseConstExpr(true);
+					break;
+				case OBJECT:
+					r[i] = parseObject(true);
+					break;
+				case CONDITION:
+					r[i] = parseCondition(true);
+					break;
+				case IDENTIFIER:
+					r[i] = accept(TokenType.IDENTIFIER);
+					break;
+				case VARIABLE: {
+					r[i] = accept(TokenType.IDENTIFIER);
+					String name = r[i].token.getValue();
+					pushf(name);
+					break;
+				}
+				case INTVAR: {
+					r[i] = accept(TokenType.IDENTIFIER);
+					String name = r[i].token.getValue();
+					pushiVar(name);
+					break;
+				}
+				case CONSTANT: {
+					r[i] = acceptAny(TokenType.NUMBER, TokenType.IDENTIFIER);
+					int val = getConstant(r[i]);
+					pushi(val);
+					break;
+				}
+				case STRING:
+					r[i] = parseString();
+					break;
+				case EOL: {
+					SymbolInstance sInst = next(false);
+					if (!sInst.is(TokenType.EOL)) {
+						lastParseException = new ParseDiagnostic(() -> "Unexpected token: "+sInst+". Expected: EOL", lastParseException, file, sInst.token.line, sInst.token.col);
+						throw lastParseException;
+					}
+					r[i] = sInst;
+					break;
 				}
-				r[i] = sInst;
-			} else if ("SPIRIT_TYPE".equals(symbol)) {
-				r[i] = parseSpiritType();
-			} else if ("PLAYING_SIDE".equals(symbol)) {
-				r[i] = parsePlayingSide();
-			} else if (symbol.indexOf("|") >= 0) {
-				if ("enable|disable".equals(symbol)) {
+				case SPIRIT_TYPE:
+					r[i] = parseSpiritType();
+					break;
+				case PLAYING_SIDE:
+					r[i] = parsePlayingSide();
+					break;
+				case ENABLE_DISABLE:
 					r[i] = parseEnableDisableKeyword();
-				} else if ("forward|reverse".equals(symbol)) {
+					break;
+				case FORWARD_REVERSE:
 					r[i] = parseForwardReverseKeyword();
-				} else if ("open|close".equals(symbol)) {
+					break;
+				case OPEN_CLOSE:
 					r[i] = parseOpenCloseKeyword();
-				} else if ("pause|unpause".equals(symbol)) {
+					break;
+				case PAUSE_UNPAUSE:
 					r[i] = parsePauseUnpauseKeyword();
-				} else if ("quest|challenge".equals(symbol)) {
+					break;
+				case QUEST_CHALLENGE:
 					r[i] = parseQuestChallengeKeyword();
-				} else if ("enter|exit".equals(symbol)) {
+					break;
+				case ENTER_EXIT:
 					r[i] = parseEnterExitKeyword();
-				} else if ("second|seconds".equals(symbol)) {
+					break;
+				case SECOND_SECONDS: {
 					SymbolInstance sInst = next();
 					if (!sInst.is("second") && !sInst.is("seconds")) {
-						lastParseException = new ParseException("Unexpected token: "+sInst+". Expected: second|seconds", lastParseException, file, sInst.token.line, sInst.token.col);
+						lastParseException = new ParseDiagnostic(() -> "Unexpected token: "+sInst+". Expected: second|seconds", lastParseException, file, sInst.token.line, sInst.token.col);
 						throw lastParseException;
 					}
 					r[i] = sInst;
-				} else if ("event|events".equals(symbol)) {
+					break;
+				}
+				case EVENT_EVENTS: {
 					SymbolInstance sInst = next();
 					if (!sInst.is("event") && !sInst.is("events")) {
-						lastParseException = new ParseException("Unexpected token: "+sInst+". Expected: event|events", lastParseException, file, sInst.token.line, sInst.token.col);
+						lastParseException = new ParseDiagnostic(() -> "Unexpected token: "+sInst+". Expected: event|events", lastParseException, file, sInst.token.line, sInst.token.col);
 						throw lastParseException;
 					}
 					r[i] = sInst;
-				} else if ("graphics|gfx".equals(symbol)) {
+					break;
+				}
+				case GRAPHICS_GFX: {
 					SymbolInstance sInst = next();
 					if (!sInst.is("graphics") && sInst.is("gfx")) {
-						lastParseException = new ParseException("Unexpected token: "+sInst+". Expected: graphics|gfx", lastParseException, file, sInst.token.line, sInst.token.col);
+						lastParseException = new ParseDiagnostic(() -> "Unexpected token: "+sInst+". Expected: graphics|gfx", lastParseException, file, sInst.token.line, sInst.token.col);
 						throw lastParseException;
 					}
 					r[i] = sInst;
-				} else {
-					throw new IllegalArgumentException("Unknown symbol: "+symbol);
+					break;
 				}
-			} else if (symbol.startsWith("[")) {	//Optional expression
-				boolean ended = false;
-				boolean match = true;
-				boolean flag = true;	//Tells if this optional expression must generate a boolean value (the other case is a default value)
-				symbols[i] = symbols[i].substring(1);
-				for (int start = i; i < symbols.length && !ended; i++) {
-					String expr = symbols[i];
-					if (expr.endsWith("]")) {
-						expr = expr.substring(0, expr.length() - 1);
-						ended = true;
-					}
-					if ("EXPRESSION".equals(expr)) {
-						flag = false;
-						if (match) {
-							r[i] = parseExpression(true);
-						} else {
-							float def = defaultIndex < defaults.length ? asFloat(defaults[defaultIndex]) : 0;
-							pushf(def);
-						}
-						defaultIndex++;
-					} else if ("CONST_EXPR".equals(expr)) {
-						flag = false;
-						if (match) {
-							r[i] = parseConstExpr(true);
-						} else {
-							int def = defaultIndex < defaults.length ? asInt(defaults[defaultIndex]) : 0;
-							pushi(def);
-						}
-						defaultIndex++;
-					} else if ("COORD_EXPR".equals(expr)) {
-						flag = false;
-						if (match) {
-							r[i] = parseCoordExpr(true);
-							pushb(true);	//with position
-						} else {
-							pushc(0);
-							pushc(0);
-							pushc(0);
-							pushb(false);	//without position
-						}
-						defaultIndex++;
-					} else if ("OBJECT".equals(expr)) {
-						flag = false;
-						if (match) {
-							r[i] = parseObject(false);
-							if (r[i] == null) {
-								pusho(0);
-							}
-						} else {
-							pusho(0);
-						}
-						defaultIndex++;
-					} else if (match) {
-						SymbolInstance sInst = peek(false);
-						if ("EOL".equals(expr) && sInst.is(TokenType.EOL)) {
-							accept(TokenType.EOL);
-						} else if (sInst.is(expr)) {
-							accept(expr);
-						} else if (i > start) {
-							lastParseException = new ParseException("Unexpected token: "+sInst+". Expected: "+expr, lastParseException, file, sInst.token.line, sInst.token.col);
-							throw lastParseException;
-						} else {
-							match = false;
-						}
+				default: {
+					SymbolInstance sInst = next();
+					if (!pattern.isKeyword(i, sInst)) {
+						lastParseException = new ParseDiagnostic(() -> "Unexpected token: "+sInst+". Expected: "+symbol, lastParseException, file, sInst.token.line, sInst.token.col);
+						throw lastParseException;
 					}
+					r[i] = sInst;
 				}
-				i--;
-				if (flag) {
-					pushb(match);
-				}
-			} else {
-				SymbolInstance sInst = next();
-				if (!sInst.is(symbol)) {
-					lastParseException = new ParseException("Unexpected token: "+sInst+". Expected: "+symbol, lastParseException, file, sInst.token.line, sInst.token.col);
-					throw lastParseException;
-				}
-				r[i] = sInst;
 			}
 		}
 		lastParseException = null;
@@ -6034,7 +6975,7 @@ public class CHLCompiler implements Compiler {
 	private SymbolInstance accept(String keyword) throws ParseException {
 		SymbolInstance symbol = next();
 		if (!symbol.is(keyword)) {
-			throw new ParseException("Unexpected token: "+symbol+". Expected: "+keyword, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic(() -> "Unexpected token: "+symbol+". Expected: "+keyword, file, symbol.token.line, symbol.token.col);
 		}
 		return symbol;
 	}
@@ -6046,24 +6987,32 @@ public class CHLCompiler implements Compiler {
 				return symbol;
 			}
 		}
-		throw new ParseException("Unexpected token: "+symbol+". Expected: "+join("|", types), file, symbol.token.line, symbol.token.col);
+		throw new ParseDiagnostic(() -> "Unexpected token: "+symbol+". Expected: "+join("|", types), file, symbol.token.line, symbol.token.col);
 	}
 	
 	private SymbolInstance accept(TokenType type) throws ParseException {
 		SymbolInstance symbol = next(type != TokenType.EOL);
 		if (symbol.token.type != type) {
-			throw new ParseException("Unexpected token: "+symbol+". Expected: "+type, file, symbol.token.line, symbol.token.col);
+			throw new ParseDiagnostic(() -> "Unexpected token: "+symbol+". Expected: "+type, file, symbol.token.line, symbol.token.col);
 		}
 		return symbol;
 	}
 	
 	private SymbolInstance replace(final int index, String symbol) {
-		SymbolInstance newInst = new SymbolInstance(Syntax.getSymbol(symbol));
-		while (it.nextIndex() > index) {
-			SymbolInstance sInst = prev();
-			it.remove();
-			newInst.expression.add(0, sInst);
+		final Symbol nodeSymbol = Syntax.getSymbol(symbol);
+		final SymbolInstance[] children = it.removeFrom(index);
+		//The position is left on the first token, as if the cursor had walked back over the children
+		for (SymbolInstance sInst : children) {
+			if (sInst.token != null) {
+				line = sInst.token.line;
+				col = sInst.token.col;
+				positionUpdates++;
+				break;
+			}
 		}
+		SymbolInstance newInst = !parseTreeEnabled && nodeSymbol != null && ELIDABLE[nodeSymbol.id]
+				? SymbolInstance.elided(nodeSymbol)
+				: SymbolInstance.node(nodeSymbol, children);
 		it.add(newInst);
 		return newInst;
 	}
@@ -6071,7 +7020,7 @@ public class CHLCompiler implements Compiler {
 	private void revert(final int index, final int instructionAddress, SymbolInstance preserve) {
 		while (it.nextIndex() > index) {
 			SymbolInstance sInst = prev();
-			if (sInst != preserve && sInst.expression != null) {
+			if (sInst != preserve && sInst.expression != null && !sInst.elided) {
 				it.remove();
 				for (SymbolInstance sym : sInst.expression) {
 					it.add(sym);
@@ -6081,9 +7030,12 @@ public class CHLCompiler implements Compiler {
 		while (instructions.size() > instructionAddress) {
 			instructions.remove(instructions.size() - 1);
 		}
+		while (!strptrInstructions.isEmpty() && strptrInstructions.get(strptrInstructions.size() - 1) >= instructionAddress) {
+			strptrInstructions.remove(strptrInstructions.size() - 1);
+		}
 	}
 	
-	private SymbolInstance toSymbol(Token token) throws ParseException {
+	private static SymbolInstance toSymbol(Token token, File file) throws ParseException {
 		SymbolInstance sInst = null;
 		switch (token.type) {
 			case EOL:
@@ -6102,13 +7054,17 @@ public class CHLCompiler implements Compiler {
 				sInst = new SymbolInstance(Syntax.CHAR, token);
 				break;
 			case KEYWORD:
-				sInst = new SymbolInstance(Syntax.getSymbol(token.value), token);
+				if (token.symbolId >= 0) {
+					sInst = new SymbolInstance(Syntax.getSymbol(token.symbolId), token);
+				} else {
+					sInst = new SymbolInstance(Syntax.getSymbol(token.getValue()), token);
+				}
 				break;
 			case ANNOTATION:
 				sInst = new SymbolInstance(Syntax.ANNOTATION, token);
 				break;
 			default:
-				throw new ParseException("Unrecognized symbol: "+token.value, file, token.line, token.col);
+				throw new ParseException("Unrecognized symbol: "+token.getValue(), file, token.line, token.col);
 		}
 		return sInst;
 	}
@@ -6519,6 +7475,7 @@ public class CHLCompiler implements Compiler {
 		instruction.lineNumber = line;
 		instructions.add(instruction);
 		ScriptToResolve call = new ScriptToResolve(file, line, ip, instruction, scriptname, argc);
+		sideEffects++;
 		calls.add(call);
 	}
 	
@@ -6528,6 +7485,7 @@ public class CHLCompiler implements Compiler {
 		instruction.lineNumber = line;
 		instructions.add(instruction);
 		ScriptToResolve call = new ScriptToResolve(file, line, ip, instruction, scriptname, argc);
+		sideEffects++;
 		calls.add(call);
 	}
 	
@@ -6592,7 +7550,7 @@ public class CHLCompiler implements Compiler {
 	private static class ScriptToResolve {
 		public final File file;
 		public final int line;
-		public final int ip;	//TODO use to compile to intermediate obj file
+		public final int ip;
 		public final Instruction instr;
 		public final String name;
 		public final int argc;
@@ -6606,4 +7564,53 @@ public class CHLCompiler implements Compiler {
 			this.argc = argc;
 		}
 	}
+	
+	/**The state of the compiler when a backtracking attempt started, needed to remember its outcome.
+	 * Instances are reused by the attempts made at the same nesting depth.*/
+	private static class MemoAttempt {
+		public int nonterminal;
+		public boolean remember;
+		public int start;
+		public int startIp;
+		public SymbolInstance startSymbol;
+		public ParseException entryException;
+		public int entryLine;
+		public int entryCol;
+		public int entryEffects;
+		public int entryUpdates;
+		public int entrySize;
+	}
+	
+	/**The symbols of a source file, together with the messages printed while reading it.
+	 * When the object of the file has been loaded, the symbols are not read.*/
+	private static class SourceSymbols {
+		public final List<SymbolInstance> symbols;
+		public final String log;
+		public final byte[] hash;
+		public final CHLObject object;
+		
+		public SourceSymbols(List<SymbolInstance> symbols, String log, byte[] hash, CHLObject object) {
+			this.symbols = symbols;
+			this.log = log;
+			this.hash = hash;
+			this.object = object;
+		}
+	}
+	
+	/**Carries the error raised while reading a source file, together with the messages printed before it.*/
+	private static class SourceException extends Exception {
+		private static final long serialVersionUID = 1L;
+		
+		public final String log;
+		
+		public SourceException(Exception cause, String log) {
+			super(cause);
+			this.log = log;
+		}
+	}
+	
+	@FunctionalInterface
+	private interface KeywordParser {
+		SymbolInstance parse() throws ParseException;
+	}
 }
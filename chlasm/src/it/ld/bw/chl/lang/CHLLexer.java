@@ -15,13 +15,19 @@
  */
 package it.ld.bw.chl.lang;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.PushbackReader;
-import java.util.LinkedList;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
 
 import it.ld.bw.chl.exceptions.ParseException;
@@ -35,7 +41,9 @@ public class CHLLexer {
 		DEFAULT, IDENTIFIER, NUMBER, STRING, CHAR, ANNOTATION, COMMENT, BLOCK_COMMENT, BLANK
 	}
 	
+	private final NameTable names = new NameTable();
 	private int tabSize = 4;
+	private PrintStream out = System.out;
 	
 	public int getTabSize() {
 		return tabSize;
@@ -45,6 +53,24 @@ public class CHLLexer {
 		this.tabSize = tabSize;
 	}
 	
+	public PrintStream getOut() {
+		return out;
+	}
+	
+	/**Sets the stream where warnings are printed.
+	 * @param out
+	 */
+	public void setOut(PrintStream out) {
+		this.out = out;
+	}
+	
+	/**Adds a keyword token spanning from the given offset to the current position of the reader.*/
+	private void addKeyword(List<Token> tokens, Reader str, int line, int col, int start) {
+		Token token = new Token(line, col, TokenType.KEYWORD);
+		token.setValue(names, names.intern(str.data(), start, str.position() - start));
+		tokens.add(token);
+	}
+	
 	private void add(List<Token> tokens, Token token) {
 		//if (token.type.important) {
 			tokens.add(token);
@@ -52,9 +78,11 @@ public class CHLLexer {
 	}
 	
 	public List<Token> tokenize(File file) throws FileNotFoundException, IOException, ParseException {
-		List<Token> tokens = new LinkedList<>();
+		final Reader str = new Reader(file);
+		List<Token> tokens = new ArrayList<>(str.length() / 4);
 		Status status = Status.DEFAULT;
-		StringBuffer buffer = new StringBuffer();
+		final char[] data = str.data();
+		final NameTable names = this.names;
 		boolean escape = false;
 		int depth = 0;
 		int numDots = 0;
@@ -62,313 +90,269 @@ public class CHLLexer {
 		int line = 1;
 		int col = 0;
 		Token token = null;
-		try (PushbackReader str = new PushbackReader(new BufferedReader(new FileReader(file)));) {
-			char c = (char) str.read();
-			col++;
-			while (true) {
-				switch (status) {
-					case DEFAULT:
-						if (c == '\n') {
-							add(tokens, new Token(line, col, TokenType.EOL, System.lineSeparator()));
-							line++;
-							col = 0;
-						} else if (c == '"') {
-							status = Status.STRING;
-							token = new Token(line, col, TokenType.STRING);
-							buffer.append(c);
-						} else if (c == '\'') {
-							status = Status.CHAR;
-							token = new Token(line, col, TokenType.CHAR);
-							buffer.append(c);
-						} else if (c == '+') {
-							char c2 = (char) str.read();
-							if (c2 == '+') {
-								add(tokens, new Token(line, col, TokenType.KEYWORD, "++"));
-								col++;
-							} else if (c2 == '=') {
-								add(tokens, new Token(line, col, TokenType.KEYWORD, "+="));
-								col++;
-							} else {
-								str.unread(c2);
-								add(tokens, new Token(line, col, TokenType.KEYWORD, c));
-							}
-						} else if (c == '-') {
-							char c2 = (char) str.read();
-							if (c2 == '-') {
-								add(tokens, new Token(line, col, TokenType.KEYWORD, "--"));
-								col++;
-							} else if (c2 == '=') {
-								add(tokens, new Token(line, col, TokenType.KEYWORD, "-="));
-								col++;
-							} else {
-								str.unread(c2);
-								add(tokens, new Token(line, col, TokenType.KEYWORD, c));
-							}
-						} else if (c == '*') {
-							char c2 = (char) str.read();
-							if (c2 == '=') {
-								add(tokens, new Token(line, col, TokenType.KEYWORD, "*="));
-								col++;
-							} else {
-								str.unread(c2);
-								add(tokens, new Token(line, col, TokenType.KEYWORD, c));
-							}
-						} else if (c == '/') {
-							char c2 = (char) str.read();
-							if (c2 == '=') {
-								add(tokens, new Token(line, col, TokenType.KEYWORD, "/="));
-								col++;
-							} else if (c2 == '/') {
-								col++;
-								char c3 = (char) str.read();
-								if (c3 == '@') {
-									status = Status.ANNOTATION;
-									token = new Token(line, col, TokenType.ANNOTATION);
-									buffer.append("//@");
-								} else {
-									str.unread(c3);
-									status = Status.COMMENT;
-									token = new Token(line, col, TokenType.COMMENT);
-									buffer.append("//");
-								}
-							} else if (c2 == '*') {
-								status = Status.BLOCK_COMMENT;
-								depth++;
-								token = new Token(line, col, TokenType.BLOCK_COMMENT);
-								col++;
-								buffer.append("/*");
-								//System.out.println(">BLOCK_COMMENT at "+line+":"+(col-1));
-							} else {
-								str.unread(c2);
-								add(tokens, new Token(line, col, TokenType.KEYWORD, c));
-							}
-						} else if (c == '%') {
-							char c2 = (char) str.read();
-							if (c2 == '=') {
-								add(tokens, new Token(line, col, TokenType.KEYWORD, "%="));
-								col++;
-							} else {
-								str.unread(c2);
-								add(tokens, new Token(line, col, TokenType.KEYWORD, c));
-							}
-						} else if (c == '=') {
-							char c2 = (char) str.read();
-							if (c2 == '=') {
-								add(tokens, new Token(line, col, TokenType.KEYWORD, "=="));
-								col++;
-							} else {
-								str.unread(c2);
-								add(tokens, new Token(line, col, TokenType.KEYWORD, c));
-							}
-						} else if (c == '<' || c == '>') {
-							char c2 = (char) str.read();
-							if (c2 == '=') {
-								add(tokens, new Token(line, col, TokenType.KEYWORD, c+"="));
-								col++;
-							} else {
-								str.unread(c2);
-								add(tokens, new Token(line, col, TokenType.KEYWORD, c));
-							}
-						} else if (c == '!') {
-							char c2 = (char) str.read();
-							if (c2 == '=') {
-								add(tokens, new Token(line, col, TokenType.KEYWORD, c+"="));
-								col++;
-							} else {
-								throw new ParseException("Expected '=' after '!'", file, line, col);
-							}
-						} else if (c == ',') {
-							add(tokens, new Token(line, col, TokenType.KEYWORD, c));
-							buffer.setLength(0);
-						} else if (c == '(') {
-							add(tokens, new Token(line, col, TokenType.KEYWORD, c));
-							buffer.setLength(0);
-						} else if (c == ')') {
-							add(tokens, new Token(line, col, TokenType.KEYWORD, c));
-							buffer.setLength(0);
-						} else if (c == '[') {
-							add(tokens, new Token(line, col, TokenType.KEYWORD, c));
-							buffer.setLength(0);
-						} else if (c == ']') {
-							add(tokens, new Token(line, col, TokenType.KEYWORD, c));
-							buffer.setLength(0);
-						} else if (c == '.') {
-							char c2 = (char) str.read();
-							char c3 = (char) str.read();
-							if (c2 == '.' && c3 == '.') {
-								add(tokens, new Token(line, col, TokenType.KEYWORD, "..."));
-								col += 2;
-							} else {
-								throw new ParseException("Expected '..' after '.'", file, line, col);
-							}
-						} else if (Character.isJavaIdentifierStart(c)) {
-							status = Status.IDENTIFIER;
-							token = new Token(line, col, TokenType.IDENTIFIER);
-							buffer.append(c);
-						} else if (Character.isDigit(c)) {
-							status = Status.NUMBER;
-							token = new Token(line, col, TokenType.NUMBER);
-							numDots = 0;
-							numX = 0;
-							buffer.append(c);
-						} else if (c == ' ') {
-							status = Status.BLANK;
-							token = new Token(line, col, TokenType.BLANK);
-							buffer.append(c);
-						} else if (c == '\t') {
-							status = Status.BLANK;
-							token = new Token(line, col, TokenType.BLANK);
-							buffer.append(c);
-							col += tabSize - (col - 1) % tabSize - 1;
-						} else if (c == '\r') {
-							//NOP
-						} else if (c == EOF) {
-							//NOP
+		int start = 0;
+		char c = str.read();
+		col++;
+		while (true) {
+			switch (status) {
+				case DEFAULT:
+					start = str.position() - 1;
+					if (c == '\n') {
+						add(tokens, new Token(line, col, TokenType.EOL, System.lineSeparator()));
+						line++;
+						col = 0;
+					} else if (c == '"') {
+						status = Status.STRING;
+						token = new Token(line, col, TokenType.STRING);
+					} else if (c == '\'') {
+						status = Status.CHAR;
+						token = new Token(line, col, TokenType.CHAR);
+					} else if (c == '+') {
+						char c2 = str.read();
+						if (c2 == '+') {
+							addKeyword(tokens, str, line, col, start);
+							col++;
+						} else if (c2 == '=') {
+							addKeyword(tokens, str, line, col, start);
+							col++;
+						} else {
+							str.unread();
+							addKeyword(tokens, str, line, col, start);
+						}
+					} else if (c == '-') {
+						char c2 = str.read();
+						if (c2 == '-') {
+							addKeyword(tokens, str, line, col, start);
+							col++;
+						} else if (c2 == '=') {
+							addKeyword(tokens, str, line, col, start);
+							col++;
 						} else {
-							throw new ParseException("Unexpected '"+String.valueOf(c)+"' character", file, line, col);
+							str.unread();
+							addKeyword(tokens, str, line, col, start);
 						}
-						break;
-					case COMMENT:
-					case ANNOTATION:
-						if (c == '\n') {
-							add(tokens, token.setValue(buffer.toString()));
-							buffer.setLength(0);
-							status = Status.DEFAULT;
-							add(tokens, new Token(line, col, TokenType.EOL, System.lineSeparator()));
-							line++;
-							col = 0;
+					} else if (c == '*') {
+						char c2 = str.read();
+						if (c2 == '=') {
+							addKeyword(tokens, str, line, col, start);
+							col++;
 						} else {
-							buffer.append(c);
+							str.unread();
+							addKeyword(tokens, str, line, col, start);
 						}
-						break;
-					case BLOCK_COMMENT:
-						if (c == '\n') {
-							line++;
-							col = 0;
-							buffer.append(c);
-						} else if (c == '/') {
-							buffer.append(c);
-							char c2 = (char) str.read();
+					} else if (c == '/') {
+						char c2 = str.read();
+						if (c2 == '=') {
+							addKeyword(tokens, str, line, col, start);
 							col++;
-							buffer.append(c2);
-							if (c2 == '*') depth++;
-						} else if (c == '*') {
-							buffer.append(c);
-							char c2 = (char) str.read();
-							if (c2 == '/') {
-								col++;
-								buffer.append(c2);
-								depth--;
-								if (depth == 0) {
-									add(tokens, token.setValue(buffer.toString()));
-									buffer.setLength(0);
-									status = Status.DEFAULT;
-									//System.out.println("<BLOCK_COMMENT at "+line+":"+(col-1));
-								}
+						} else if (c2 == '/') {
+							col++;
+							char c3 = str.read();
+							if (c3 == '@') {
+								status = Status.ANNOTATION;
+								token = new Token(line, col, TokenType.ANNOTATION);
 							} else {
-								str.unread(c2);
+								str.unread();
+								status = Status.COMMENT;
+								token = new Token(line, col, TokenType.COMMENT);
 							}
+						} else if (c2 == '*') {
+							status = Status.BLOCK_COMMENT;
+							depth++;
+							token = new Token(line, col, TokenType.BLOCK_COMMENT);
+							col++;
+							//System.out.println(">BLOCK_COMMENT at "+line+":"+(col-1));
 						} else {
-							buffer.append(c);
+							str.unread();
+							addKeyword(tokens, str, line, col, start);
 						}
-						break;
-					case IDENTIFIER:
-						if (Character.isJavaIdentifierPart(c)) {
-							buffer.append(c);
+					} else if (c == '%') {
+						char c2 = str.read();
+						if (c2 == '=') {
+							addKeyword(tokens, str, line, col, start);
+							col++;
 						} else {
-							str.unread(c);
-							col--;
-							add(tokens, token.setValue(buffer.toString()));
-							if (Syntax.isKeyword(token.value)) {
-								token.type = TokenType.KEYWORD;
-							} else {
-								String lower = token.value.toLowerCase();
-								if ("if".equals(lower) || "else".equals(lower) || "while".equals(lower) || "end".equals(lower)) {
-									System.out.println("Warning: identifier matches a keyword with bad capitals. Did you mean '"+lower+"'? At "+file.getName()+":"+line+":"+(col-1));
-								}
-							}
-							buffer.setLength(0);
-							status = Status.DEFAULT;
+							str.unread();
+							addKeyword(tokens, str, line, col, start);
 						}
-						break;
-					case NUMBER:
-						if (Character.isDigit(c) || c == '.' || c == 'x' || (numX > 0 && isHexDigit(c))) {
-							if (c == '.') {
-								numDots++;
-								if (numDots > 1) throw new ParseException("Invalid number", file, line, col);
-							} else if (c == 'x') {
-								numX++;
-								if (numX > 1) throw new ParseException("Invalid number", file, line, col);
-							}
-							buffer.append(c);
-						} else if (Character.isJavaIdentifierPart(c)) {	//This is required to handle keywords starting with numbers such as "3d"
-							token.type = TokenType.IDENTIFIER;
-							buffer.append(c);
-							status = Status.IDENTIFIER;
+					} else if (c == '=') {
+						char c2 = str.read();
+						if (c2 == '=') {
+							addKeyword(tokens, str, line, col, start);
+							col++;
 						} else {
-							str.unread(c);
-							col--;
-							add(tokens, token.setValue(buffer.toString()));
-							buffer.setLength(0);
-							status = Status.DEFAULT;
+							str.unread();
+							addKeyword(tokens, str, line, col, start);
 						}
-						break;
-					case STRING:
-						if (escape) {
-							buffer.append(c);
-							escape = false;
-						} else if (c == '\\') {
-							escape = true;
-							buffer.append(c);
-						} else if (c == '"') {
-							buffer.append(c);
-							add(tokens, token.setValue(buffer.toString()));
-							buffer.setLength(0);
-							status = Status.DEFAULT;
+					} else if (c == '<' || c == '>') {
+						char c2 = str.read();
+						if (c2 == '=') {
+							addKeyword(tokens, str, line, col, start);
+							col++;
+						} else {
+							str.unread();
+							addKeyword(tokens, str, line, col, start);
+						}
+					} else if (c == '!') {
+						char c2 = str.read();
+						if (c2 == '=') {
+							addKeyword(tokens, str, line, col, start);
+							col++;
 						} else {
-							buffer.append(c);
+							throw new ParseException("Expected '=' after '!'", file, line, col);
 						}
-						break;
-					case CHAR:
-						if (escape) {
-							buffer.append(c);
-							escape = false;
-						} else if (c == '\\') {
-							escape = true;
-							buffer.append(c);
-						} else if (c == '\'') {
-							buffer.append(c);
-							add(tokens, token.setValue(buffer.toString()));
-							buffer.setLength(0);
-							status = Status.DEFAULT;
+					} else if (c == ',') {
+						addKeyword(tokens, str, line, col, start);
+					} else if (c == '(') {
+						addKeyword(tokens, str, line, col, start);
+					} else if (c == ')') {
+						addKeyword(tokens, str, line, col, start);
+					} else if (c == '[') {
+						addKeyword(tokens, str, line, col, start);
+					} else if (c == ']') {
+						addKeyword(tokens, str, line, col, start);
+					} else if (c == '.') {
+						char c2 = str.read();
+						char c3 = str.read();
+						if (c2 == '.' && c3 == '.') {
+							addKeyword(tokens, str, line, col, start);
+							col += 2;
 						} else {
-							buffer.append(c);
+							throw new ParseException("Expected '..' after '.'", file, line, col);
 						}
-						break;
-					case BLANK:
-						if (c == ' ' || c == '\t') {
-							buffer.append(c);
-							if (c == '\t') {
-								col += tabSize - (col - 1) % tabSize - 1;
+					} else if (Character.isJavaIdentifierStart(c)) {
+						status = Status.IDENTIFIER;
+						token = new Token(line, col, TokenType.IDENTIFIER);
+					} else if (Character.isDigit(c)) {
+						status = Status.NUMBER;
+						token = new Token(line, col, TokenType.NUMBER);
+						numDots = 0;
+						numX = 0;
+					} else if (c == ' ') {
+						status = Status.BLANK;
+						token = new Token(line, col, TokenType.BLANK);
+					} else if (c == '\t') {
+						status = Status.BLANK;
+						token = new Token(line, col, TokenType.BLANK);
+						col += tabSize - (col - 1) % tabSize - 1;
+					} else if (c == '\r') {
+						//NOP
+					} else if (c == EOF) {
+						//NOP
+					} else {
+						throw new ParseException("Unexpected '"+String.valueOf(c)+"' character", file, line, col);
+					}
+					break;
+				case COMMENT:
+				case ANNOTATION:
+					if (c == '\n') {
+						add(tokens, token.setValue(data, start, str.position() - 1 - start));
+						status = Status.DEFAULT;
+						add(tokens, new Token(line, col, TokenType.EOL, System.lineSeparator()));
+						line++;
+						col = 0;
+					}
+					break;
+				case BLOCK_COMMENT:
+					if (c == '\n') {
+						line++;
+						col = 0;
+					} else if (c == '/') {
+						char c2 = str.read();
+						col++;
+						if (c2 == '*') depth++;
+					} else if (c == '*') {
+						char c2 = str.read();
+						if (c2 == '/') {
+							col++;
+							depth--;
+							if (depth == 0) {
+								add(tokens, token.setValue(data, start, str.position() - start));
+								status = Status.DEFAULT;
+								//System.out.println("<BLOCK_COMMENT at "+line+":"+(col-1));
 							}
 						} else {
-							str.unread(c);
-							col--;
-							add(tokens, token.setValue(buffer.toString()));
-							buffer.setLength(0);
-							status = Status.DEFAULT;
+							str.unread();
+						}
+					}
+					break;
+				case IDENTIFIER:
+					if (!Character.isJavaIdentifierPart(c)) {
+						str.unread();
+						col--;
+						int id = names.intern(data, start, str.position() - start);
+						add(tokens, token.setValue(names, id));
+						if (names.isKeyword(id)) {
+							token.type = TokenType.KEYWORD;
+						} else {
+							String lower = token.getValue().toLowerCase();
+							if ("if".equals(lower) || "else".equals(lower) || "while".equals(lower) || "end".equals(lower)) {
+								out.println("Warning: identifier matches a keyword with bad capitals. Did you mean '"+lower+"'? At "+file.getName()+":"+line+":"+(col-1));
+							}
+						}
+						status = Status.DEFAULT;
+					}
+					break;
+				case NUMBER:
+					if (Character.isDigit(c) || c == '.' || c == 'x' || (numX > 0 && isHexDigit(c))) {
+						if (c == '.') {
+							numDots++;
+							if (numDots > 1) throw new ParseException("Invalid number", file, line, col);
+						} else if (c == 'x') {
+							numX++;
+							if (numX > 1) throw new ParseException("Invalid number", file, line, col);
 						}
-						break;
-				}
-				if (c == EOF) {
+					} else if (Character.isJavaIdentifierPart(c)) {	//This is required to handle keywords starting with numbers such as "3d"
+						token.type = TokenType.IDENTIFIER;
+						status = Status.IDENTIFIER;
+					} else {
+						str.unread();
+						col--;
+						add(tokens, token.setValue(data, start, str.position() - start));
+						status = Status.DEFAULT;
+					}
+					break;
+				case STRING:
+					if (escape) {
+						escape = false;
+					} else if (c == '\\') {
+						escape = true;
+					} else if (c == '"') {
+						add(tokens, token.setValue(data, start, str.position() - start));
+						status = Status.DEFAULT;
+					}
+					break;
+				case CHAR:
+					if (escape) {
+						escape = false;
+					} else if (c == '\\') {
+						escape = true;
+					} else if (c == '\'') {
+						add(tokens, token.setValue(data, start, str.position() - start));
+						status = Status.DEFAULT;
+					}
 					break;
-				}
-				c = (char) str.read();
-				col++;
+				case BLANK:
+					if (c == ' ' || c == '\t') {
+						if (c == '\t') {
+							col += tabSize - (col - 1) % tabSize - 1;
+						}
+					} else {
+						str.unread();
+						col--;
+						add(tokens, token.setValue(data, start, str.position() - start));
+						status = Status.DEFAULT;
+					}
+					break;
+			}
+			if (c == EOF) {
+				break;
 			}
+			c = str.read();
+			col++;
 		}
 		if (status == Status.BLANK || status == Status.COMMENT) {
-			add(tokens, token.setValue(buffer.toString()));
+			add(tokens, token.setValue(data, start, str.length() - start));
 		} else if (status != Status.DEFAULT) {
 			String msg = "Unexpected end of file while parsing "+status;
 			if (token != null) {
@@ -379,6 +363,53 @@ public class CHLLexer {
 		return tokens;
 	}
 	
+	/**Provides the characters of a whole file, read at once. After the end of the file
+	 * it returns EOF, like a Reader whose result is cast to char.
+	 */
+	private static class Reader {
+		private final char[] data;
+		private final int length;
+		private int pos = 0;
+		
+		public Reader(File file) throws IOException {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);) {
+				ByteBuffer bytes = channel.map(MapMode.READ_ONLY, 0, channel.size());
+				CharBuffer chars = Charset.defaultCharset().newDecoder()
+						.onMalformedInput(CodingErrorAction.REPLACE)
+						.onUnmappableCharacter(CodingErrorAction.REPLACE)
+						.decode(bytes);
+				data = chars.array();
+				length = chars.limit();
+			} catch (NoSuchFileException e) {
+				throw new FileNotFoundException(file.getPath());
+			}
+		}
+		
+		public int length() {
+			return length;
+		}
+		
+		public char[] data() {
+			return data;
+		}
+		
+		/**Returns the index of the next character to be read.*/
+		public int position() {
+			return pos;
+		}
+		
+		public char read() {
+			if (pos < length) return data[pos++];
+			pos++;	//Keep track of reads past the end, so that unread works as expected
+			return EOF;
+		}
+		
+		/**Moves back by one character.*/
+		public void unread() {
+			pos--;
+		}
+	}
+	
 	private static boolean isHexDigit(char c) {
 		if (Character.isDigit(c)) return true;
 		if ('a' <= c && c <= 'f') return true;
@@ -0,0 +1,496 @@
+/* Copyright (c) 2023-2024 Daniele Lombardi / Daniels118
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.ld.bw.chl.lang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import it.ld.bw.chl.model.DataType;
+import it.ld.bw.chl.model.Instruction;
+import it.ld.bw.chl.model.Script;
+import it.ld.bw.chl.model.ScriptType;
+import it.ld.utils.EndianDataOutputStream;
+
+/**The compiled form of a single source file, which can be linked into a CHL file without parsing
+ * the source again.
+ * 
+ * The way a file is parsed depends on the names declared by the files before it, so an object is
+ * only valid in the environment it was compiled in. The environment is a hash chained from the
+ * compiler options, the initial state of the compiler and the exports of the preceding files.
+ * 
+ * Instructions are stored with relocations, so that they don't depend on the code and data of the
+ * other files:
+ * - jump and exception handler addresses are relative to the first instruction of the file;
+ * - string pointers are indexes in the list of strings stored by the file;
+ * - CALL and START instructions refer to the script names, and are resolved when sealing;
+ * - script ids are assigned when linking.
+ * Global variable ids are not relocated, since the global variables are part of the environment.
+ */
+class CHLObject {
+	private static final int MAGIC = 0x4F4C4843;	//"CHLO"
+	private static final int FORMAT_VERSION = 2;
+	private static final Charset UTF8 = StandardCharsets.UTF_8;
+	
+	public static final String EXTENSION = ".obj";
+	
+	/**The operand is an instruction address relative to the first instruction of the file.*/
+	public static final int RELOC_IP = 0;
+	/**The operand is the index of a string in the list of strings stored by the file.*/
+	public static final int RELOC_STRING = 1;
+	
+	public final byte[] sourceHash;
+	/**The path of the source file, which appears in the messages and in the error positions.*/
+	public final String sourcePath;
+	public final byte[] environment;
+	/**Messages printed by the lexer while reading the source file.*/
+	public String lexerLog = "";
+	/**Warnings and notices printed by the compiler while parsing the source file.*/
+	public final List<Message> messages = new ArrayList<>();
+	public final Exports exports = new Exports();
+	public final List<Instruction> code = new ArrayList<>();
+	public final List<Relocation> relocations = new ArrayList<>();
+	/**The values passed to storeStringData, in order. Replaying them rebuilds the data section.*/
+	public final List<String> strings = new ArrayList<>();
+	public final List<Call> calls = new ArrayList<>();
+	public final List<Script> scripts = new ArrayList<>();
+	
+	private byte[] exportData;
+	/**Maps the pointers returned by storeStringData while compiling to the index of the string.*/
+	private final Map<Integer, Integer> stringIndexes = new HashMap<>();
+	
+	public CHLObject(byte[] sourceHash, String sourcePath, byte[] environment) {
+		this.sourceHash = sourceHash;
+		this.sourcePath = sourcePath;
+		this.environment = environment;
+	}
+	
+	/**Returns the serialized exports, which identify the environment of the next file.
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] getExportData() throws IOException {
+		if (exportData == null) {
+			exportData = exports.toBytes();
+		}
+		return exportData;
+	}
+	
+	/**Records a string stored while compiling the source file.
+	 * @param value
+	 * @param strptr the pointer to the string in the data section
+	 */
+	public void addString(String value, int strptr) {
+		stringIndexes.putIfAbsent(strptr, strings.size());
+		strings.add(value);
+	}
+	
+	/**Returns the index of the string stored at the given pointer while compiling the source file.
+	 * @param strptr
+	 * @return
+	 */
+	public int getStringIndex(int strptr) {
+		return stringIndexes.get(strptr);
+	}
+	
+	/**Loads the object from a file.
+	 * @param file
+	 * @param sourceHash
+	 * @return the object, or null if the file doesn't exist, isn't valid or has been compiled from a different source
+	 */
+	public static CHLObject load(File file, byte[] sourceHash) {
+		if (!file.isFile()) return null;
+		try {
+			//The object is read into memory rather than mapped, so that it can be replaced if not valid
+			ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) return null;
+			byte[] hash = getBytes(buffer);
+			if (!Arrays.equals(hash, sourceHash)) return null;
+			CHLObject obj = new CHLObject(hash, getString(buffer), getBytes(buffer));
+			obj.read(buffer);
+			if (buffer.hasRemaining()) return null;
+			return obj;
+		} catch (Exception e) {
+			//The object is not valid, it will be replaced
+			return null;
+		}
+	}
+	
+	private void read(ByteBuffer buffer) throws Exception {
+		lexerLog = getString(buffer);
+		int count = buffer.getInt();
+		for (int i = 0; i < count; i++) {
+			boolean notice = buffer.get() != 0;
+			messages.add(new Message(notice, getString(buffer)));
+		}
+		exportData = getBytes(buffer);
+		exports.read(ByteBuffer.wrap(exportData).order(ByteOrder.LITTLE_ENDIAN));
+		count = buffer.getInt();
+		for (int i = 0; i < count; i++) {
+			Instruction instr = new Instruction();
+			instr.read(buffer);
+			instr.lineNumber = buffer.getInt();
+			code.add(instr);
+		}
+		count = buffer.getInt();
+		for (int i = 0; i < count; i++) {
+			relocations.add(new Relocation(buffer.getInt(), buffer.getInt()));
+		}
+		count = buffer.getInt();
+		for (int i = 0; i < count; i++) {
+			strings.add(getString(buffer));
+		}
+		count = buffer.getInt();
+		for (int i = 0; i < count; i++) {
+			calls.add(Call.read(buffer));
+		}
+		count = buffer.getInt();
+		for (int i = 0; i < count; i++) {
+			Script script = new Script();
+			script.read(buffer);
+			scripts.add(script);
+		}
+	}
+	
+	/**Saves the object to a file. The object is written to a temporary file first, so that a
+	 * partially written object is never loaded.
+	 * @param file
+	 * @throws Exception
+	 */
+	public void save(File file) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(code.size() * (Instruction.LENGTH + 4) + 1024);
+		EndianDataOutputStream str = new EndianDataOutputStream(bytes);
+		str.order(ByteOrder.LITTLE_ENDIAN);
+		str.writeInt(MAGIC);
+		str.writeInt(FORMAT_VERSION);
+		putBytes(str, sourceHash);
+		putString(str, sourcePath);
+		putBytes(str, environment);
+		putString(str, lexerLog);
+		str.writeInt(messages.size());
+		for (Message message : messages) {
+			str.writeByte(message.notice ? 1 : 0);
+			putString(str, message.text);
+		}
+		putBytes(str, getExportData());
+		str.writeInt(code.size());
+		for (Instruction instr : code) {
+			instr.write(str);
+			str.writeInt(instr.lineNumber);
+		}
+		str.writeInt(relocations.size());
+		for (Relocation relocation : relocations) {
+			str.writeInt(relocation.kind);
+			str.writeInt(relocation.ip);
+		}
+		str.writeInt(strings.size());
+		for (String value : strings) {
+			putString(str, value);
+		}
+		str.writeInt(calls.size());
+		for (Call call : calls) {
+			call.write(str);
+		}
+		str.writeInt(scripts.size());
+		for (Script script : scripts) {
+			script.write(str);
+		}
+		str.flush();
+		Path dir = file.getAbsoluteFile().getParentFile().toPath();
+		Files.createDirectories(dir);
+		Path tmp = Files.createTempFile(dir, "chl", ".tmp");
+		try {
+			Files.write(tmp, bytes.toByteArray());
+			Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+	
+	/**Returns the SHA-256 hash of the content of a file.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] hash(File file) throws IOException {
+		//The file isn't mapped, so that it can be saved by an editor while the compiler is running
+		return newDigest().digest(Files.readAllBytes(file.toPath()));
+	}
+	
+	/**Returns the environment that follows the given one after adding the given data.
+	 * @param environment
+	 * @param data
+	 * @return
+	 */
+	public static byte[] chain(byte[] environment, byte[] data) {
+		MessageDigest digest = newDigest();
+		digest.update(environment);
+		digest.update(data);
+		return digest.digest();
+	}
+	
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**Returns the name of the object file for the given source file. Objects are named after the
+	 * source file and the hash of its path, so that files with the same name don't collide.
+	 * @param dir
+	 * @param source
+	 * @return
+	 */
+	public static File getObjectFile(File dir, File source) {
+		String path = source.getAbsolutePath();
+		return new File(dir, source.getName() + "." + String.format("%08x", path.hashCode()) + EXTENSION);
+	}
+	
+	/**Returns the folder of a build cache which holds the objects compiled from a source content.
+	 * @param dir
+	 * @param sourceHash
+	 * @return
+	 */
+	public static File getCacheDir(File dir, byte[] sourceHash) {
+		return new File(dir, toHex(sourceHash));
+	}
+	
+	/**Returns the file of a build cache which holds the object compiled from a source content at the
+	 * given path and in the given environment. Objects of the same content compiled at different paths
+	 * or in different environments coexist.
+	 * @param dir
+	 * @param sourceHash
+	 * @param sourcePath
+	 * @param environment
+	 * @return
+	 */
+	public static File getCacheFile(File dir, byte[] sourceHash, String sourcePath, byte[] environment) {
+		byte[] key = chain(environment, sourcePath.getBytes(UTF8));
+		return new File(getCacheDir(dir, sourceHash), toHex(key) + EXTENSION);
+	}
+	
+	private static String toHex(byte[] data) {
+		StringBuilder s = new StringBuilder(data.length * 2);
+		for (byte b : data) {
+			s.append(String.format("%02x", b));
+		}
+		return s.toString();
+	}
+	
+	public static Instruction copyOf(Instruction instr) {
+		Instruction r = new Instruction();
+		r.opcode = instr.opcode;
+		r.flags = instr.flags;
+		r.dataType = instr.dataType;
+		r.intVal = instr.intVal;
+		r.floatVal = instr.floatVal;
+		r.boolVal = instr.boolVal;
+		r.lineNumber = instr.lineNumber;
+		return r;
+	}
+	
+	private static void putBytes(EndianDataOutputStream str, byte[] data) throws IOException {
+		str.writeInt(data.length);
+		str.write(data);
+	}
+	
+	private static byte[] getBytes(ByteBuffer buffer) {
+		byte[] data = new byte[buffer.getInt()];
+		buffer.get(data);
+		return data;
+	}
+	
+	private static void putString(EndianDataOutputStream str, String s) throws IOException {
+		putBytes(str, s.getBytes(UTF8));
+	}
+	
+	private static String getString(ByteBuffer buffer) {
+		return new String(getBytes(buffer), UTF8);
+	}
+	
+	private static void putType(EndianDataOutputStream str, DataType type) throws IOException {
+		str.writeInt(type != null ? type.ordinal() : -1);
+	}
+	
+	private static DataType getType(ByteBuffer buffer) {
+		int v = buffer.getInt();
+		return v >= 0 ? DataType.values()[v] : null;
+	}
+	
+	/**The changes made by a file to the state that the files after it can see.*/
+	public static class Exports {
+		public final List<String> constantNames = new ArrayList<>();
+		public final List<Integer> constantValues = new ArrayList<>();
+		public final List<Var> globals = new ArrayList<>();
+		public final List<Script> definitions = new ArrayList<>();
+		public final List<String> infoNames = new ArrayList<>();
+		public final List<ScriptInfo> infos = new ArrayList<>();
+		public final List<Call> autoruns = new ArrayList<>();
+		public boolean intMath;
+		public boolean noYield;
+		
+		public void addConstant(String name, int value) {
+			constantNames.add(name);
+			constantValues.add(value);
+		}
+		
+		public void addInfo(String name, ScriptInfo info) {
+			infoNames.add(name);
+			infos.add(info);
+		}
+		
+		public byte[] toBytes() throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			EndianDataOutputStream str = new EndianDataOutputStream(bytes);
+			str.order(ByteOrder.LITTLE_ENDIAN);
+			str.writeInt(constantNames.size());
+			for (int i = 0; i < constantNames.size(); i++) {
+				putString(str, constantNames.get(i));
+				str.writeInt(constantValues.get(i));
+			}
+			str.writeInt(globals.size());
+			for (Var var : globals) {
+				putString(str, var.name);
+				putType(str, var.type);
+			}
+			str.writeInt(definitions.size());
+			for (Script def : definitions) {
+				putString(str, def.getName());
+				str.writeInt(def.getScriptType().code);
+				str.writeInt(def.getParameterCount());
+			}
+			str.writeInt(infoNames.size());
+			for (int i = 0; i < infoNames.size(); i++) {
+				ScriptInfo info = infos.get(i);
+				putString(str, infoNames.get(i));
+				str.writeByte(info.varargs ? 1 : 0);
+				str.writeInt(info.vars.size());
+				for (Var var : info.vars) {
+					putString(str, var.name);
+					putType(str, var.type);
+					str.writeByte(var.varargs ? 1 : 0);
+				}
+			}
+			str.writeInt(autoruns.size());
+			for (Call call : autoruns) {
+				call.write(str);
+			}
+			str.writeByte(intMath ? 1 : 0);
+			str.writeByte(noYield ? 1 : 0);
+			str.flush();
+			return bytes.toByteArray();
+		}
+		
+		private void read(ByteBuffer buffer) throws Exception {
+			int count = buffer.getInt();
+			for (int i = 0; i < count; i++) {
+				addConstant(getString(buffer), buffer.getInt());
+			}
+			count = buffer.getInt();
+			for (int i = 0; i < count; i++) {
+				globals.add(new Var(getString(buffer), -1, getType(buffer), false));
+			}
+			count = buffer.getInt();
+			for (int i = 0; i < count; i++) {
+				Script def = new Script();
+				def.setName(getString(buffer));
+				def.setScriptType(ScriptType.fromCode(buffer.getInt()));
+				def.setParameterCount(buffer.getInt());
+				definitions.add(def);
+			}
+			count = buffer.getInt();
+			for (int i = 0; i < count; i++) {
+				String name = getString(buffer);
+				ScriptInfo info = new ScriptInfo();
+				info.varargs = buffer.get() != 0;
+				int varCount = buffer.getInt();
+				for (int j = 0; j < varCount; j++) {
+					info.vars.add(new Var(getString(buffer), -1, getType(buffer), buffer.get() != 0));
+				}
+				addInfo(name, info);
+			}
+			count = buffer.getInt();
+			for (int i = 0; i < count; i++) {
+				autoruns.add(Call.read(buffer));
+			}
+			intMath = buffer.get() != 0;
+			noYield = buffer.get() != 0;
+		}
+	}
+	
+	public static class Message {
+		public final boolean notice;
+		public final String text;
+		
+		public Message(boolean notice, String text) {
+			this.notice = notice;
+			this.text = text;
+		}
+	}
+	
+	public static class Relocation {
+		public final int kind;
+		public final int ip;
+		
+		public Relocation(int kind, int ip) {
+			this.kind = kind;
+			this.ip = ip;
+		}
+	}
+	
+	/**A reference to a script by name. The address is relative to the first instruction of the file,
+	 * or -1 if the instruction isn't part of the code (e.g. for autorun scripts).*/
+	public static class Call {
+		public final int line;
+		public final int ip;
+		public final String name;
+		public final int argc;
+		
+		public Call(int line, int ip, String name, int argc) {
+			this.line = line;
+			this.ip = ip;
+			this.name = name;
+			this.argc = argc;
+		}
+		
+		private void write(EndianDataOutputStream str) throws IOException {
+			str.writeInt(line);
+			str.writeInt(ip);
+			putString(str, name);
+			str.writeInt(argc);
+		}
+		
+		private static Call read(ByteBuffer buffer) {
+			return new Call(buffer.getInt(), buffer.getInt(), getString(buffer), buffer.getInt());
+		}
+	}
+}
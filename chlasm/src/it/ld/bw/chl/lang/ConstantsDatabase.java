@@ -0,0 +1,280 @@
+/* Copyright (c) 2023-2024 Daniele Lombardi / Daniels118
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.ld.bw.chl.lang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import it.ld.bw.chl.exceptions.ParseException;
+import it.ld.utils.EndianDataOutputStream;
+
+/**The constants defined by a set of C headers and info files, precompiled into a binary file which
+ * is memory mapped instead of parsing the headers again. The file is rebuilt whenever the set of
+ * files changes, or one of them has a different size or modification time.
+ * 
+ * The file contains the list of the source files, followed by a table of names sorted in byte order
+ * and their values, so that the constants are looked up with a binary search on the mapped file.
+ */
+class ConstantsDatabase {
+	private static final int MAGIC = 0x44434843;	//"CHCD"
+	private static final int FORMAT_VERSION = 1;
+	private static final Charset UTF8 = StandardCharsets.UTF_8;
+	
+	private static final int HEADER = 0;
+	private static final int INFO = 1;
+	
+	private final ByteBuffer buffer;
+	private final int count;
+	private final int offsetsPos;
+	private final int valuesPos;
+	private final int namesPos;
+	private final int namesLength;
+	
+	/**Creates a database from a buffer positioned at the start of the table.*/
+	private ConstantsDatabase(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		count = buffer.getInt();
+		offsetsPos = buffer.position();
+		valuesPos = offsetsPos + count * 4;
+		namesPos = valuesPos + count * 4;
+		buffer.position(namesPos);
+		namesLength = buffer.getInt();
+		if (count < 0 || namesLength < 0 || buffer.remaining() != namesLength) {
+			throw new IOException("Invalid constants database");
+		}
+	}
+	
+	/**Opens the database of the given headers and info files, building it if it doesn't exist or
+	 * if any of the files has changed.
+	 * @param file the database file
+	 * @param headers
+	 * @param infoFiles
+	 * @param threads the number of threads used to parse the files when the database is built
+	 * @return the database
+	 * @throws IOException if a header or info file cannot be read
+	 * @throws ParseException if the headers or info files contain errors
+	 */
+	public static ConstantsDatabase open(File file, List<File> headers, List<File> infoFiles, int threads) throws IOException, ParseException {
+		if (file.isFile()) {
+			//The list of sources is checked with a heap read, so that a stale database is never mapped
+			//and can be replaced. Only the table of a valid database is mapped.
+			int headerLength = getHeaderLength(headers, infoFiles);
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);) {
+				if (channel.size() > headerLength) {
+					ByteBuffer header = ByteBuffer.allocate(headerLength).order(ByteOrder.LITTLE_ENDIAN);
+					while (header.hasRemaining() && channel.read(header) >= 0);
+					header.flip();
+					if (header.getInt() == MAGIC && header.getInt() == FORMAT_VERSION
+							&& checkSources(header, headers, infoFiles)) {
+						ByteBuffer buffer = channel.map(MapMode.READ_ONLY, headerLength, channel.size() - headerLength);
+						return new ConstantsDatabase(buffer.order(ByteOrder.LITTLE_ENDIAN));
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				//The database is not valid, it will be replaced
+			}
+		}
+		byte[] data = build(headers, infoFiles, threads);
+		try {
+			save(file, data);
+		} catch (IOException e) {
+			//The database can still be used from memory
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.getInt();
+		buffer.getInt();
+		checkSources(buffer, headers, infoFiles);
+		return new ConstantsDatabase(buffer);
+	}
+	
+	/**Returns the length of the part of the file which precedes the table, containing the list of
+	 * the given sources.
+	 * @param headers
+	 * @param infoFiles
+	 * @return
+	 */
+	private static int getHeaderLength(List<File> headers, List<File> infoFiles) {
+		int length = 12;
+		for (File file : headers) {
+			length += 24 + file.getAbsolutePath().getBytes(UTF8).length;
+		}
+		for (File file : infoFiles) {
+			length += 24 + file.getAbsolutePath().getBytes(UTF8).length;
+		}
+		return length;
+	}
+	
+	private static boolean checkSources(ByteBuffer buffer, List<File> headers, List<File> infoFiles) {
+		if (buffer.getInt() != headers.size() + infoFiles.size()) return false;
+		boolean valid = true;
+		for (File file : headers) {
+			valid &= checkSource(buffer, HEADER, file);
+		}
+		for (File file : infoFiles) {
+			valid &= checkSource(buffer, INFO, file);
+		}
+		return valid;
+	}
+	
+	private static boolean checkSource(ByteBuffer buffer, int kind, File file) {
+		int srcKind = buffer.getInt();
+		byte[] path = new byte[buffer.getInt()];
+		buffer.get(path);
+		long size = buffer.getLong();
+		long lastModified = buffer.getLong();
+		return srcKind == kind
+				&& Arrays.equals(path, file.getAbsolutePath().getBytes(UTF8))
+				&& size == file.length()
+				&& lastModified == file.lastModified();
+	}
+	
+	private static byte[] build(List<File> headers, List<File> infoFiles, int threads) throws IOException, ParseException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+		EndianDataOutputStream str = new EndianDataOutputStream(bytes);
+		str.order(ByteOrder.LITTLE_ENDIAN);
+		str.writeInt(MAGIC);
+		str.writeInt(FORMAT_VERSION);
+		str.writeInt(headers.size() + infoFiles.size());
+		for (File file : headers) {
+			writeSource(str, HEADER, file);
+		}
+		for (File file : infoFiles) {
+			writeSource(str, INFO, file);
+		}
+		//The files are checked before being parsed, so that a change made meanwhile will be detected
+		Map<String, Integer> constants = new HashMap<>();
+		ConstantsLoader.load(headers, infoFiles, constants, threads, file -> {});
+		byte[][] names = new byte[constants.size()][];
+		int i = 0;
+		for (String name : constants.keySet()) {
+			names[i++] = name.getBytes(UTF8);
+		}
+		Arrays.sort(names, ConstantsDatabase::compare);
+		str.writeInt(names.length);
+		int offset = 0;
+		for (byte[] name : names) {
+			str.writeInt(offset);
+			offset += name.length;
+		}
+		for (byte[] name : names) {
+			str.writeInt(constants.get(new String(name, UTF8)));
+		}
+		str.writeInt(offset);
+		for (byte[] name : names) {
+			str.write(name);
+		}
+		str.flush();
+		return bytes.toByteArray();
+	}
+	
+	private static void writeSource(EndianDataOutputStream str, int kind, File file) throws IOException {
+		byte[] path = file.getAbsolutePath().getBytes(UTF8);
+		str.writeInt(kind);
+		str.writeInt(path.length);
+		str.write(path);
+		str.writeLong(file.length());
+		str.writeLong(file.lastModified());
+	}
+	
+	private static void save(File file, byte[] data) throws IOException {
+		Path dir = file.getAbsoluteFile().getParentFile().toPath();
+		Files.createDirectories(dir);
+		Path tmp = Files.createTempFile(dir, "chl", ".tmp");
+		try {
+			Files.write(tmp, data);
+			Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+	
+	private static int compare(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			int d = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (d != 0) return d;
+		}
+		return a.length - b.length;
+	}
+	
+	/**Returns the number of constants.*/
+	public int size() {
+		return count;
+	}
+	
+	/**Returns the value of a constant, or null if it isn't defined.*/
+	public Integer get(String name) {
+		byte[] key = name.getBytes(UTF8);
+		int lo = 0;
+		int hi = count - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int d = compareName(mid, key);
+			if (d < 0) {
+				lo = mid + 1;
+			} else if (d > 0) {
+				hi = mid - 1;
+			} else {
+				return buffer.getInt(valuesPos + mid * 4);
+			}
+		}
+		return null;
+	}
+	
+	/**Compares the name at the given index with a key.*/
+	private int compareName(int index, byte[] key) {
+		int start = buffer.getInt(offsetsPos + index * 4);
+		int end = index + 1 < count ? buffer.getInt(offsetsPos + (index + 1) * 4) : namesLength;
+		int pos = namesPos + 4 + start;
+		int length = end - start;
+		int n = Math.min(length, key.length);
+		for (int i = 0; i < n; i++) {
+			int d = (buffer.get(pos + i) & 0xFF) - (key[i] & 0xFF);
+			if (d != 0) return d;
+		}
+		return length - key.length;
+	}
+	
+	/**Tells whether the given constants have the same values of the constants with the same names
+	 * in this database, so that they can be merged.
+	 * @param constants
+	 * @return true if there are no conflicts
+	 */
+	public boolean agrees(Map<String, Integer> constants) {
+		for (Map.Entry<String, Integer> entry : constants.entrySet()) {
+			Integer val = get(entry.getKey());
+			if (val != null && !val.equals(entry.getValue())) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
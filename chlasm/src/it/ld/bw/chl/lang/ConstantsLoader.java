@@ -0,0 +1,120 @@
+/* Copyright (c) 2023-2024 Daniele Lombardi / Daniels118
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.ld.bw.chl.lang;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import it.ld.bw.chl.exceptions.ParseException;
+
+/**Loads the constants defined by C headers and info files. The files are parsed concurrently, each
+ * into its own map, then the maps are merged in the order of the files.
+ * 
+ * When a file cannot be parsed, or it redefines a constant with a different value, it's parsed again
+ * into the merged constants, so that the first error is reported with the same file and line as if
+ * the files had been loaded one by one.
+ */
+class ConstantsLoader {
+	/**Loads the constants of the given files into a map.
+	 * @param headers
+	 * @param infoFiles
+	 * @param dst the map where the constants are added
+	 * @param threads the number of threads used to parse the files
+	 * @param listener notified when each file is loaded, in order
+	 * @throws IOException
+	 * @throws ParseException
+	 */
+	public static void load(List<File> headers, List<File> infoFiles, Map<String, Integer> dst, int threads,
+			Consumer<File> listener) throws IOException, ParseException {
+		final int count = headers.size() + infoFiles.size();
+		if (threads <= 1 || count <= 1) {
+			for (int i = 0; i < count; i++) {
+				File file = getFile(headers, infoFiles, i);
+				listener.accept(file);
+				parse(file, i < headers.size(), dst);
+			}
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, count));
+		try {
+			List<Future<Map<String, Integer>>> tasks = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				final File file = getFile(headers, infoFiles, i);
+				final boolean header = i < headers.size();
+				tasks.add(executor.submit(() -> {
+					Map<String, Integer> constants = new HashMap<>();
+					parse(file, header, constants);
+					return constants;
+				}));
+			}
+			for (int i = 0; i < count; i++) {
+				File file = getFile(headers, infoFiles, i);
+				listener.accept(file);
+				Map<String, Integer> constants = getResult(tasks.get(i));
+				if (constants == null || conflicts(constants, dst)) {
+					parse(file, i < headers.size(), dst);
+				} else {
+					dst.putAll(constants);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	private static File getFile(List<File> headers, List<File> infoFiles, int index) {
+		return index < headers.size() ? headers.get(index) : infoFiles.get(index - headers.size());
+	}
+	
+	private static void parse(File file, boolean header, Map<String, Integer> dst) throws IOException, ParseException {
+		if (header) {
+			new CHeaderParser().parse(file, dst);
+		} else {
+			new InfoParser2().parse(file, dst);
+		}
+	}
+	
+	/**Tells whether any of the given constants is already defined with a different value.*/
+	private static boolean conflicts(Map<String, Integer> constants, Map<String, Integer> dst) {
+		for (Map.Entry<String, Integer> entry : constants.entrySet()) {
+			Integer oldVal = dst.get(entry.getKey());
+			if (oldVal != null && !oldVal.equals(entry.getValue())) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**Returns the constants parsed by a task, or null if the file couldn't be parsed.*/
+	private static Map<String, Integer> getResult(Future<Map<String, Integer>> task) throws IOException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/* Copyright (c) 2023 Daniele Lombardi / Daniels118
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.ld.bw.chl.lang;
+
+import java.util.Arrays;
+
+/**Interns the names found in the sources. Each distinct name gets a dense id and a single
+ * String instance, which is created only the first time the name is seen. Lookups work
+ * directly on the source buffer, so repeated names don't allocate anything.
+ * This class is not thread safe.
+ */
+class NameTable {
+	private static final int INITIAL_CAPACITY = 1024;
+	
+	private String[] names = new String[INITIAL_CAPACITY / 2];
+	private int[] symbolIds = new int[INITIAL_CAPACITY / 2];
+	private int[] slots = new int[INITIAL_CAPACITY];	//Holds id + 1, 0 means empty
+	private int[] hashes = new int[INITIAL_CAPACITY];
+	private int size = 0;
+	
+	public int size() {
+		return size;
+	}
+	
+	public String get(int id) {
+		return names[id];
+	}
+	
+	public boolean isKeyword(int id) {
+		return symbolIds[id] >= 0;
+	}
+	
+	/**Returns the id of the keyword symbol having the given name, or -1 if the name isn't a keyword.*/
+	public int getSymbolId(int id) {
+		return symbolIds[id];
+	}
+	
+	public int intern(String name) {
+		return intern(name.toCharArray(), 0, name.length());
+	}
+	
+	public int intern(char[] buf, int offset, int length) {
+		int hash = 0;
+		for (int i = 0; i < length; i++) {
+			hash = 31 * hash + buf[offset + i];
+		}
+		int mask = slots.length - 1;
+		int slot = hash & mask;
+		while (slots[slot] != 0) {
+			int id = slots[slot] - 1;
+			if (hashes[slot] == hash && equals(names[id], buf, offset, length)) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		String name = new String(buf, offset, length);
+		int id = size++;
+		if (id == names.length) {
+			names = Arrays.copyOf(names, id * 2);
+			symbolIds = Arrays.copyOf(symbolIds, id * 2);
+		}
+		names[id] = name;
+		Symbol symbol = Syntax.isKeyword(name) ? Syntax.getSymbol(name) : null;
+		symbolIds[id] = symbol != null ? symbol.id : -1;
+		slots[slot] = id + 1;
+		hashes[slot] = hash;
+		if (size * 2 > slots.length) {
+			rehash();
+		}
+		return id;
+	}
+	
+	private void rehash() {
+		int[] newSlots = new int[slots.length * 2];
+		int[] newHashes = new int[newSlots.length];
+		int mask = newSlots.length - 1;
+		for (int i = 0; i < slots.length; i++) {
+			if (slots[i] != 0) {
+				int slot = hashes[i] & mask;
+				while (newSlots[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				newSlots[slot] = slots[i];
+				newHashes[slot] = hashes[i];
+			}
+		}
+		slots = newSlots;
+		hashes = newHashes;
+	}
+	
+	private static boolean equals(String name, char[] buf, int offset, int length) {
+		if (name.length() != length) return false;
+		for (int i = 0; i < length; i++) {
+			if (name.charAt(i) != buf[offset + i]) return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,98 @@
+/* Copyright (c) 2023 Daniele Lombardi / Daniels118
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.ld.bw.chl.lang;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import it.ld.bw.chl.exceptions.ParseException;
+
+/**A lightweight ParseException used on speculative parse paths. It doesn't fill in the stack trace,
+ * unless {@link CHLCompiler#stackTraceEnabled} is set, and builds its message only when requested.
+ * Diagnostics that escape the compiler are converted to plain ParseExceptions by
+ * {@link #toParseException(ParseException)}, which keep the stack trace of the diagnostic if any.
+ */
+class ParseDiagnostic extends ParseException {
+	private static final long serialVersionUID = 1L;
+	
+	private final String msg;
+	private final Supplier<String> supplier;
+	private String message;
+	
+	public ParseDiagnostic(String msg, File file, int lineno, int col) {
+		this(msg, null, file, lineno, col);
+	}
+	
+	public ParseDiagnostic(String msg, Exception parent, File file, int lineno, int col) {
+		super(parent, file, lineno, col, CHLCompiler.stackTraceEnabled);
+		this.msg = msg;
+		this.supplier = null;
+	}
+	
+	public ParseDiagnostic(Supplier<String> supplier, File file, int lineno, int col) {
+		this(supplier, null, file, lineno, col);
+	}
+	
+	public ParseDiagnostic(Supplier<String> supplier, Exception parent, File file, int lineno, int col) {
+		super(parent, file, lineno, col, CHLCompiler.stackTraceEnabled);
+		this.msg = null;
+		this.supplier = supplier;
+	}
+	
+	/**Returns the message without position information.
+	 * @return
+	 */
+	public String getText() {
+		return msg != null ? msg : supplier.get();
+	}
+	
+	@Override
+	public String getMessage() {
+		if (message == null) {
+			message = makeMsg(getText(), getSourceFile(), getLineno(), getColumn());
+		}
+		return message;
+	}
+	
+	/**Converts a chain of diagnostics to a chain of regular ParseExceptions having the same messages.
+	 * The conversion stops at the first cause which isn't a diagnostic.
+	 * @param e
+	 * @return
+	 */
+	public static ParseException toParseException(ParseException e) {
+		List<ParseDiagnostic> chain = new ArrayList<>();
+		Throwable t = e;
+		while (t instanceof ParseDiagnostic) {
+			chain.add((ParseDiagnostic) t);
+			t = t.getCause();
+		}
+		if (chain.isEmpty()) {
+			return e;
+		}
+		Exception cause = (Exception) t;
+		for (int i = chain.size() - 1; i >= 0; i--) {
+			ParseDiagnostic d = chain.get(i);
+			cause = new ParseException(d.getText(), cause, d.getSourceFile(), d.getLineno(), d.getColumn());
+			if (d.getStackTrace().length > 0) {
+				//Report where the diagnostic has been raised rather than where it has been converted
+				cause.setStackTrace(d.getStackTrace());
+			}
+		}
+		return (ParseException) cause;
+	}
+}
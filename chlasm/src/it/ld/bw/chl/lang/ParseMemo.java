@@ -0,0 +1,146 @@
+/* Copyright (c) 2023 Daniele Lombardi / Daniels118
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.ld.bw.chl.lang;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import it.ld.bw.chl.exceptions.ParseException;
+import it.ld.bw.chl.model.Instruction;
+
+/**Remembers the outcome of the attempts of the backtracking parse functions at a given symbol, so that
+ * the compiler doesn't repeat them when it backtracks over the same input. Without this, each level of
+ * nested parentheses in a condition reparses the whole content with every alternative.
+ * The symbols are compared by identity: a built node is a new instance, so it never matches an outcome
+ * recorded for the tokens it replaced, while a token is found again after a node containing it has been
+ * reverted.
+ */
+class ParseMemo {
+	public static final int EXPRESSION = 0;
+	public static final int CONDITION = 1;
+	public static final int CONST_EXPR = 2;
+	public static final int COORD_EXPR = 3;
+	
+	private static final int COUNT = 4;
+	
+	/**Symbols of the memoized nonterminals, indexed by the constants above.*/
+	public static final Symbol[] SYMBOLS = {
+		Syntax.getSymbol("EXPRESSION"), Syntax.getSymbol("CONDITION"),
+		Syntax.getSymbol("CONST_EXPR"), Syntax.getSymbol("COORD_EXPR")
+	};
+	
+	private final Map<SymbolInstance, Outcome[]> outcomes = new IdentityHashMap<>();
+	
+	public Outcome get(SymbolInstance symbol, int nonterminal) {
+		Outcome[] r = outcomes.get(symbol);
+		return r == null ? null : r[nonterminal];
+	}
+	
+	public void put(SymbolInstance symbol, int nonterminal, Outcome outcome) {
+		outcomes.computeIfAbsent(symbol, k -> new Outcome[COUNT])[nonterminal] = outcome;
+	}
+	
+	public void clear() {
+		outcomes.clear();
+	}
+	
+	private static Throwable getRoot(Throwable e) {
+		if (e == null) return null;
+		Throwable cause = e.getCause();
+		while (cause != null && cause != e) {
+			e = cause;
+			cause = e.getCause();
+		}
+		return e;
+	}
+	
+	private static boolean chains(Throwable e, Throwable cause) {
+		while (e != null) {
+			if (e == cause) return true;
+			if (e.getCause() == e) return false;
+			e = e.getCause();
+		}
+		return false;
+	}
+	
+	/**The outcome of an attempt: either the node it built, with the instructions it emitted, or a failure.
+	 * A failed attempt returned null leaving the given exception as the last one, or threw it.
+	 * Only the root of the exception chain is reported to the user, so the outcome can be replayed if
+	 * the attempt would end up with the same root.
+	 */
+	public static class Outcome {
+		/**The node built by the attempt, or null if it failed.*/
+		public final SymbolInstance node;
+		/**The number of symbols replaced by the node.*/
+		public final int length;
+		public final List<Instruction> instructions;
+		public final ParseException exception;
+		public final boolean thrown;
+		private final int entryIp;
+		private final ParseException entryException;
+		private final Throwable entryRoot;
+		/**True if the exception is built on top of the one that was pending when the attempt started.*/
+		private final boolean chained;
+		private final int entryLine;
+		private final int entryCol;
+		/**True if the attempt moved the current position, in which case it must be restored.*/
+		public final boolean moved;
+		public final int line;
+		public final int col;
+		
+		public Outcome(int entryIp, ParseException entryException, int entryLine, int entryCol,
+				SymbolInstance node, int length, List<Instruction> instructions,
+				ParseException exception, boolean thrown, boolean moved, int line, int col) {
+			this.entryIp = entryIp;
+			this.entryException = entryException;
+			this.entryRoot = getRoot(entryException);
+			this.entryLine = entryLine;
+			this.entryCol = entryCol;
+			this.node = node;
+			this.length = length;
+			this.instructions = instructions;
+			this.exception = exception;
+			this.thrown = thrown;
+			this.chained = entryException != null && chains(exception, entryException);
+			this.moved = moved;
+			this.line = line;
+			this.col = col;
+		}
+		
+		/**Tells whether the attempt would have the same outcome if repeated now.
+		 * @param ip the current instruction address
+		 * @param current the exception currently pending
+		 * @param line the current line
+		 * @param col the current column
+		 * @return
+		 */
+		public boolean matches(int ip, ParseException current, int line, int col) {
+			if (node != null && (ip != entryIp || line != entryLine)) {
+				//The instructions carry the line number and, if any, the address of jumps
+				return false;
+			} else if (chained) {
+				//Exceptions created by the attempt aren't the root, their position doesn't matter
+				return current == entryException || current != null && getRoot(current) == entryRoot;
+			} else if (exception != null && (line != entryLine || col != entryCol)) {
+				return false;
+			} else {
+				//Either the attempt discarded the pending exception, or there was none
+				return entryException != null || current == null;
+			}
+		}
+	}
+}
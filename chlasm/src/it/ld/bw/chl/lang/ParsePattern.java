@@ -0,0 +1,109 @@
+/* Copyright (c) 2023 Daniele Lombardi / Daniels118
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.ld.bw.chl.lang;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**A pattern used by the compiler to match a sequence of symbols, such as "at COORD_EXPR [radius EXPRESSION]".
+ * Patterns are compiled once and cached, so that matching doesn't have to split and compare strings.
+ * Each word of the pattern is translated to an operation; words that aren't recognized are keywords.
+ * Optional groups are delimited by square brackets, and are resolved at compile time too.
+ */
+class ParsePattern {
+	public enum Op {
+		KEYWORD, ANY, EXPRESSION, COORD_EXPR, CONST_EXPR, OBJECT, CONDITION, IDENTIFIER, NUMBER, VARIABLE,
+		INTVAR, CONSTANT, STRING, EOL, SPIRIT_TYPE, PLAYING_SIDE, ENABLE_DISABLE, FORWARD_REVERSE, OPEN_CLOSE,
+		PAUSE_UNPAUSE, QUEST_CHALLENGE, ENTER_EXIT, SECOND_SECONDS, EVENT_EVENTS, GRAPHICS_GFX
+	}
+	
+	private static final Map<String, Op> OPS = new HashMap<>();
+	private static final Map<String, ParsePattern> patterns = new ConcurrentHashMap<>();
+	private static final Map<String, ParsePattern> lookaheads = new ConcurrentHashMap<>();
+	
+	static {
+		for (Op op : Op.values()) {
+			OPS.put(op.name(), op);
+		}
+		OPS.remove(Op.KEYWORD.name());
+		OPS.put("enable|disable", Op.ENABLE_DISABLE);
+		OPS.put("forward|reverse", Op.FORWARD_REVERSE);
+		OPS.put("open|close", Op.OPEN_CLOSE);
+		OPS.put("pause|unpause", Op.PAUSE_UNPAUSE);
+		OPS.put("quest|challenge", Op.QUEST_CHALLENGE);
+		OPS.put("enter|exit", Op.ENTER_EXIT);
+		OPS.put("second|seconds", Op.SECOND_SECONDS);
+		OPS.put("event|events", Op.EVENT_EVENTS);
+		OPS.put("graphics|gfx", Op.GRAPHICS_GFX);
+	}
+	
+	/**Number of words, which is also the number of symbols returned by a match.*/
+	public final int length;
+	public final Op[] ops;
+	/**The words, without brackets.*/
+	public final String[] words;
+	/**For the first word of an optional group, the index of the word after the group; otherwise 0.*/
+	public final int[] groupEnds;
+	private final int[] keywordIds;
+	
+	private ParsePattern(String expression, boolean groups) {
+		words = expression.split(" ");
+		length = words.length;
+		ops = new Op[length];
+		groupEnds = new int[length];
+		keywordIds = new int[length];
+		int groupStart = -1;
+		for (int i = 0; i < length; i++) {
+			String word = words[i];
+			if (groups && groupStart < 0 && word.indexOf('|') >= 0 && !OPS.containsKey(word)) {
+				throw new IllegalArgumentException("Unknown symbol: "+word);
+			}
+			if (groups) {
+				if (groupStart < 0 && word.startsWith("[")) {
+					word = word.substring(1);
+					groupStart = i;
+					groupEnds[groupStart] = length;
+				}
+				if (groupStart >= 0 && word.endsWith("]")) {
+					word = word.substring(0, word.length() - 1);
+					groupEnds[groupStart] = i + 1;
+					groupStart = -1;
+				}
+			}
+			words[i] = word;
+			ops[i] = OPS.getOrDefault(word, Op.KEYWORD);
+			Symbol symbol = Syntax.getSymbol(word);
+			keywordIds[i] = symbol != null ? symbol.id : -1;
+		}
+	}
+	
+	/**Returns the compiled pattern used to parse the given expression, which may contain optional groups.*/
+	public static ParsePattern get(String expression) {
+		return patterns.computeIfAbsent(expression, e -> new ParsePattern(e, true));
+	}
+	
+	/**Returns the compiled pattern used to look ahead, where square brackets have no special meaning.*/
+	public static ParsePattern getLookahead(String expression) {
+		return lookaheads.computeIfAbsent(expression, e -> new ParsePattern(e, false));
+	}
+	
+	/**Tells if the given symbol is the keyword at the given position.*/
+	public boolean isKeyword(int index, SymbolInstance symbol) {
+		final int id = keywordIds[index];
+		return id >= 0 ? symbol.getKeywordId() == id : symbol.is(words[index]);
+	}
+}
@@ -15,11 +15,15 @@
  */
 package it.ld.bw.chl.lang;
 
+import java.util.BitSet;
+
 class Symbol {
 	public enum TerminalType {
 		EOF, EOL, KEYWORD, IDENTIFIER, NUMBER, STRING, CHAR, DIRECTIVE
 	}
 	
+	/**Dense id assigned by {@link Syntax}, can be used to index arrays.*/
+	public final int id;
 	public String keyword;
 	public boolean terminal;
 	public TerminalType terminalType;
@@ -29,8 +33,13 @@ class Symbol {
 	public Symbol[] expression;
 	public boolean implicit;
 	public boolean root;
+	/**True if the symbol can match an empty sequence.*/
+	public boolean nullable;
+	/**Ids of the symbols that can appear first when this symbol is matched, including the symbol itself.*/
+	public BitSet first;
 	
-	public Symbol(String keyword, TerminalType terminalType, boolean implicit, boolean root) {
+	public Symbol(int id, String keyword, TerminalType terminalType, boolean implicit, boolean root) {
+		this.id = id;
 		this.keyword = keyword;
 		this.terminal = terminalType != null;
 		this.terminalType = terminalType;
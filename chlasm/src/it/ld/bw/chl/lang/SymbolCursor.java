@@ -0,0 +1,168 @@
+/* Copyright (c) 2023 Daniele Lombardi / Daniels118
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.ld.bw.chl.lang;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**A bidirectional cursor over the symbols being parsed, with the same semantics as a ListIterator.
+ * The symbols are kept in a gap buffer: a single array holding the symbols before the cursor at its
+ * start, and the symbols after the cursor at its end. The symbols before the cursor act as the
+ * reduction stack, where built nodes replace the symbols they are made of. Inserting and removing at
+ * the cursor is O(1), and any symbol can be accessed by index without moving the cursor.
+ * Moving the cursor by n symbols is O(n), since they are moved across the gap, but they are moved in
+ * bulk with a single copy.
+ */
+class SymbolCursor {
+	private static final int NEXT = 1;
+	private static final int PREVIOUS = 2;
+	
+	private SymbolInstance[] buffer;
+	/**Index of the first free slot, which is also the number of symbols before the cursor.*/
+	private int gapStart = 0;
+	/**Index of the first symbol after the cursor, or the length of the buffer if there is none.*/
+	private int gapEnd;
+	private int lastReturned = 0;
+	
+	public SymbolCursor(List<SymbolInstance> symbols) {
+		buffer = new SymbolInstance[Math.max(16, symbols.size() * 2)];
+		gapEnd = buffer.length - symbols.size();
+		int i = gapEnd;
+		for (SymbolInstance symbol : symbols) {
+			buffer[i++] = symbol;
+		}
+	}
+	
+	public int size() {
+		return gapStart + buffer.length - gapEnd;
+	}
+	
+	public int nextIndex() {
+		return gapStart;
+	}
+	
+	public boolean hasNext() {
+		return gapEnd < buffer.length;
+	}
+	
+	public boolean hasPrevious() {
+		return gapStart > 0;
+	}
+	
+	/**Returns the symbol at the given index, without moving the cursor.*/
+	public SymbolInstance get(int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size());
+		}
+		return index < gapStart ? buffer[index] : buffer[gapEnd + index - gapStart];
+	}
+	
+	public SymbolInstance next() {
+		if (gapEnd == buffer.length) throw new NoSuchElementException();
+		SymbolInstance r = buffer[gapEnd];
+		buffer[gapEnd++] = null;
+		buffer[gapStart++] = r;
+		lastReturned = NEXT;
+		return r;
+	}
+	
+	public SymbolInstance previous() {
+		if (gapStart == 0) throw new NoSuchElementException();
+		SymbolInstance r = buffer[--gapStart];
+		buffer[gapStart] = null;
+		buffer[--gapEnd] = r;
+		lastReturned = PREVIOUS;
+		return r;
+	}
+	
+	/**Removes the symbol that was last returned by next() or previous().*/
+	public void remove() {
+		if (lastReturned == NEXT) {
+			buffer[--gapStart] = null;
+		} else if (lastReturned == PREVIOUS) {
+			buffer[gapEnd++] = null;
+		} else {
+			throw new IllegalStateException();
+		}
+		lastReturned = 0;
+	}
+	
+	/**Inserts a symbol before the cursor.*/
+	public void add(SymbolInstance symbol) {
+		if (gapStart == gapEnd) {
+			grow(1);
+		}
+		buffer[gapStart++] = symbol;
+		lastReturned = 0;
+	}
+	
+	/**Removes the given number of symbols after the cursor, in bulk.*/
+	public void skip(int count) {
+		if (count < 0 || count > buffer.length - gapEnd) {
+			throw new IndexOutOfBoundsException("Count: "+count+", Remaining: "+(buffer.length - gapEnd));
+		}
+		Arrays.fill(buffer, gapEnd, gapEnd + count, null);
+		gapEnd += count;
+		lastReturned = 0;
+	}
+	
+	/**Removes the symbols between the given index and the cursor, in bulk.
+	 * @param index
+	 * @return the removed symbols, in order
+	 */
+	public SymbolInstance[] removeFrom(int index) {
+		if (index < 0 || index > gapStart) {
+			throw new IndexOutOfBoundsException("Index: "+index+", Cursor: "+gapStart);
+		}
+		SymbolInstance[] r = Arrays.copyOfRange(buffer, index, gapStart);
+		Arrays.fill(buffer, index, gapStart, null);
+		gapStart = index;
+		lastReturned = 0;
+		return r;
+	}
+	
+	/**Moves the cursor to the given index, copying the symbols in between across the gap at once.*/
+	public void seek(int index) {
+		if (index < 0 || index > size()) {
+			throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size());
+		}
+		if (gapStart < index) {
+			int n = index - gapStart;
+			System.arraycopy(buffer, gapEnd, buffer, gapStart, n);
+			//Clear the slots left behind, except those that have just been overwritten
+			Arrays.fill(buffer, Math.max(gapEnd, index), gapEnd + n, null);
+			gapStart = index;
+			gapEnd += n;
+		} else if (gapStart > index) {
+			int n = gapStart - index;
+			System.arraycopy(buffer, index, buffer, gapEnd - n, n);
+			Arrays.fill(buffer, index, Math.min(gapStart, gapEnd - n), null);
+			gapStart = index;
+			gapEnd -= n;
+		}
+		lastReturned = 0;
+	}
+	
+	private void grow(int min) {
+		int after = buffer.length - gapEnd;
+		SymbolInstance[] r = new SymbolInstance[Math.max(buffer.length * 2, buffer.length + min)];
+		System.arraycopy(buffer, 0, r, 0, gapStart);
+		System.arraycopy(buffer, gapEnd, r, r.length - after, after);
+		buffer = r;
+		gapEnd = r.length - after;
+	}
+}
@@ -1,5 +1,7 @@
 package it.ld.bw.chl.lang;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -9,25 +11,52 @@ class SymbolInstance {
 	public Symbol symbol;
 	public final Token token;
 	public final List<SymbolInstance> expression;
+	/**True if this is a node whose children have been discarded after parsing.*/
+	public final boolean elided;
 	
 	public SymbolInstance(Symbol symbol) {
-		this.symbol = symbol;
-		this.token = null;
-		this.expression = new LinkedList<>();
+		this(symbol, null, new LinkedList<>(), false);
 	}
 	
 	public SymbolInstance(Symbol symbol, Token token) {
+		this(symbol, token, null, false);
+	}
+	
+	private SymbolInstance(Symbol symbol, Token token, List<SymbolInstance> expression, boolean elided) {
 		this.symbol = symbol;
 		this.token = token;
-		this.expression = null;
+		this.expression = expression;
+		this.elided = elided;
+	}
+	
+	/**Creates a node made of the given children.
+	 * @param symbol
+	 * @param children the array is used as is, without copying it
+	 * @return
+	 */
+	public static SymbolInstance node(Symbol symbol, SymbolInstance[] children) {
+		return new SymbolInstance(symbol, null, Arrays.asList(children), false);
+	}
+	
+	/**Creates a node which doesn't keep track of its children.
+	 * @param symbol
+	 * @return
+	 */
+	public static SymbolInstance elided(Symbol symbol) {
+		return new SymbolInstance(symbol, null, Collections.emptyList(), true);
 	}
 	
 	public boolean is(TokenType type) {
 		return token != null && token.type == type;
 	}
 	
+	/**Returns the id of the keyword symbol, or -1 if this isn't a keyword.*/
+	public int getKeywordId() {
+		return token != null && token.type == TokenType.KEYWORD && symbol != null ? symbol.id : -1;
+	}
+	
 	public boolean is(String keyword) {
-		return token != null && token.type == TokenType.KEYWORD && keyword.equals(token.value);
+		return token != null && token.type == TokenType.KEYWORD && keyword.equals(token.getValue());
 	}
 	
 	public boolean isInt() {
@@ -45,7 +74,9 @@ class SymbolInstance {
 		if (this == EOF) {
 			return "EOF";
 		} else if (token != null) {
-			return token.type == TokenType.EOL ? "EOL" : token.value;
+			return token.type == TokenType.EOL ? "EOL" : token.getValue();
+		} else if (elided) {
+			return symbol.keyword;
 		} else if (expression.isEmpty()) {
 			return "<not initialized>";
 		} else {
@@ -59,7 +90,9 @@ class SymbolInstance {
 	
 	public String toStringBlocks() {
 		if (token != null) {
-			return token.value;
+			return token.getValue();
+		} else if (elided) {
+			return symbol.keyword;
 		} else if (expression.isEmpty()) {
 			return "<not initialized>";
 		} else if (expression.size() == 1) {
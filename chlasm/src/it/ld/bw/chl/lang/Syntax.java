@@ -17,6 +17,8 @@ package it.ld.bw.chl.lang;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -63,6 +65,8 @@ public class Syntax {
 	
 	/**Map of all symbols indexed by name. The name of implicit symbols is equivalent to their expression.*/
 	private static final Map<String, Symbol> symbols = new LinkedHashMap<>();
+	/**List of all symbols indexed by id.*/
+	private static final List<Symbol> symbolsById = new ArrayList<>();
 	
 	private static final Set<String> keywords = new HashSet<>();
 	
@@ -75,12 +79,22 @@ public class Syntax {
 		CHAR = addSymbol("CHAR", TerminalType.CHAR, true, true);
 		ANNOTATION = addSymbol("ANNOTATION", TerminalType.DIRECTIVE, true, true);
 		load();
+		computeFirstSets();
 	}
 	
 	public static Symbol getSymbol(String keyword) {
 		return symbols.get(keyword);
 	}
 	
+	public static Symbol getSymbol(int id) {
+		return symbolsById.get(id);
+	}
+	
+	/**Returns the number of symbols, which is also the upper bound of their ids.*/
+	public static int getSymbolCount() {
+		return symbolsById.size();
+	}
+	
 	public static void printSymbols() {
 		for (Symbol symbol : symbols.values()) {
 			if (symbol.root) {
@@ -137,13 +151,24 @@ public class Syntax {
 		}
 	}
 	
+	/**Tells if the given symbol can appear first when the target symbol is matched. Since the compiler
+	 * replaces the parsed symbols with nodes, the symbol may be either a terminal or a non-terminal.
+	 * @param target
+	 * @param symbol the next symbol, may be null if it isn't part of the syntax
+	 * @return false only if the target can't be matched starting with the given symbol
+	 */
+	public static boolean canStart(Symbol target, Symbol symbol) {
+		return symbol == null || target.nullable || target.first.get(symbol.id);
+	}
+	
 	public static boolean isKeyword(String s) {
 		return keywords.contains(s);
 	}
 	
 	private static Symbol addSymbol(String keyword, TerminalType terminalType, boolean implicit, boolean root) {
-		Symbol symbol = new Symbol(keyword, terminalType, implicit, root);
+		Symbol symbol = new Symbol(symbolsById.size(), keyword, terminalType, implicit, root);
 		symbols.put(keyword, symbol);
+		symbolsById.add(symbol);
 		return symbol;
 	}
 	
@@ -236,6 +261,44 @@ public class Syntax {
 		}
 	}
 	
+	/**Computes the nullable flag and the FIRST set of each symbol, iterating until a fixed point is reached.*/
+	private static void computeFirstSets() {
+		for (Symbol sym : symbolsById) {
+			sym.nullable = sym.optional;
+			sym.first = new BitSet(symbolsById.size());
+			sym.first.set(sym.id);
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Symbol sym : symbolsById) {
+				if (sym.terminal) continue;
+				final int cardinality = sym.first.cardinality();
+				boolean nullable = sym.nullable;
+				if (sym.alternatives != null) {
+					for (Symbol alt : sym.alternatives) {
+						sym.first.or(alt.first);
+						nullable |= alt.nullable;
+					}
+				} else if (sym.expression != null) {
+					boolean allNullable = true;
+					for (Symbol item : sym.expression) {
+						sym.first.or(item.first);
+						if (!item.nullable) {
+							allNullable = false;
+							break;
+						}
+					}
+					nullable |= allNullable;
+				}
+				if (nullable != sym.nullable || sym.first.cardinality() != cardinality) {
+					sym.nullable = nullable;
+					changed = true;
+				}
+			}
+		}
+	}
+	
 	private static Symbol parseExpression(String keyword, String expr) {
 		String[] tokens = splitExpression(expr);
 		return parseExpression(keyword, tokens, 0, tokens.length);
@@ -24,7 +24,15 @@ public class Token {
 	public int col;
 	public TokenType type;
 	public ValueType valueType;
-	public String value;
+	/**Id of the name in the lexer's {@link NameTable}, or -1 if this token is not a name.*/
+	public int id = -1;
+	/**Id of the keyword symbol in {@link Syntax}, or -1 if this token is not a known keyword.*/
+	public int symbolId = -1;
+	private String value;
+	/**When not null, the value is the given span of the source and is materialized on demand.*/
+	private char[] source;
+	private int offset;
+	private int length;
 	
 	public Token(int line, int col, TokenType type) {
 		this(line, col, type, null);
@@ -43,15 +51,43 @@ public class Token {
 	
 	public Token setValue(String value) {
 		this.value = value;
+		this.source = null;
 		return this;
 	}
 	
+	/**Sets the value as a span of the source buffer, without creating a string.*/
+	Token setValue(char[] source, int offset, int length) {
+		this.value = null;
+		this.source = source;
+		this.offset = offset;
+		this.length = length;
+		return this;
+	}
+	
+	/**Sets the value as an interned name.*/
+	Token setValue(NameTable names, int id) {
+		this.value = names.get(id);
+		this.source = null;
+		this.id = id;
+		this.symbolId = names.getSymbolId(id);
+		return this;
+	}
+	
+	public String getValue() {
+		if (value == null && source != null) {
+			value = new String(source, offset, length);
+			source = null;
+		}
+		return value;
+	}
+	
 	@Override
 	public String toString() {
-		return value;
+		return getValue();
 	}
 	
 	public int intVal() {
+		final String value = getValue();
 		if (type == TokenType.NUMBER) {
 			if (value.startsWith("0x")) {
 				return Integer.parseInt(value.substring(2), 16);
@@ -67,14 +103,14 @@ public class Token {
 	
 	public float floatVal() {
 		if (type == TokenType.NUMBER) {
-			return Float.parseFloat(value);
+			return Float.parseFloat(getValue());
 		} else {
 			throw new RuntimeException(type + " cannot be converted to float");
 		}
 	}
 	
 	public String stringVal() {
-		String s = value;
+		String s = getValue();
 		s = s.substring(1, s.length() - 1);
 		s = s.replace("\\\\", "\\");
 		s = s.replace("\\\"", "\"");
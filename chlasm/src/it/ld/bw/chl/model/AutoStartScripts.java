@@ -15,6 +15,7 @@
  */
 package it.ld.bw.chl.model;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -49,6 +50,16 @@ public class AutoStartScripts extends Section {
 		}
 	}
 
+	@Override
+	public void read(ByteBuffer buffer) {
+		int count = buffer.getInt();
+		scripts = new ArrayList<Integer>(count);
+		for (int i = 0; i < count; i++) {
+			int id = buffer.getInt();
+			scripts.add(id);
+		}
+	}
+	
 	@Override
 	public void write(EndianDataOutputStream str) throws Exception {
 		str.writeInt(scripts.size());
@@ -57,6 +68,14 @@ public class AutoStartScripts extends Section {
 		}
 	}
 	
+	@Override
+	public void write(ByteBuffer buffer) {
+		buffer.putInt(scripts.size());
+		for (Integer id : scripts) {
+			buffer.putInt(id);
+		}
+	}
+	
 	@Override
 	public String toString() {
 		return scripts.toString();
@@ -16,22 +16,32 @@
 package it.ld.bw.chl.model;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import it.ld.bw.chl.exceptions.InvalidChlError;
 import it.ld.utils.EndianDataInputStream;
-import it.ld.utils.EndianDataOutputStream;
 
 
 public class CHLFile {
 	public static boolean traceEnabled = false;
+	/**If enabled, files are read through a memory mapped buffer instead of a stream.*/
+	public static boolean mappedReadEnabled = true;
 	
 	private Header header = new Header();
 	private GlobalVariables globalVariables = new GlobalVariables();
@@ -89,6 +99,162 @@ public class CHLFile {
 	}
 	
 	public void read(File file) throws Exception {
+		if (mappedReadEnabled) {
+			readMapped(file);
+		} else {
+			readStream(file);
+		}
+	}
+	
+	/**Reads the file by mapping it in memory and decoding all the sections directly from the mapped buffer.
+	 * @param file
+	 * @throws Exception
+	 */
+	private void readMapped(File file) throws Exception {
+		//# Profiler.start();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);) {
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			read(buffer);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new EOFException("Unexpected end of file "+file.getName());
+		} finally {
+			//# Profiler.end();
+			//# Profiler.printReport();
+		}
+	}
+	
+	/**Reads all the sections from a little-endian buffer, starting at the current position.
+	 * @param buffer
+	 * @throws Exception
+	 */
+	public void read(ByteBuffer buffer) throws Exception {
+		if (traceEnabled) System.out.println("Reading header...");
+		header.setOffset(buffer.position());
+		header.read(buffer);
+		//
+		if (traceEnabled) System.out.println("Reading global vars...");
+		globalVariables.setOffset(buffer.position());
+		globalVariables.read(buffer);
+		//
+		if (traceEnabled) {
+			System.out.println("Reading of code section postponed to empower tracing!");
+			final int codeOffset = buffer.position();
+			final int codeSize = buffer.getInt() * Instruction.LENGTH;
+			if (codeSize < 0 || codeSize > buffer.remaining()) throw new IOException("Unexpected end of code section");
+			buffer.position(buffer.position() + codeSize);
+			//
+			System.out.println("Reading autostart scripts...");
+			autoStartScripts.setOffset(buffer.position());
+			autoStartScripts.read(buffer);
+			//
+			System.out.println("Reading scripts...");
+			scriptsSection.setOffset(buffer.position());
+			scriptsSection.read(buffer);
+			//
+			System.out.println("Reading data...");
+			data.setOffset(buffer.position());
+			data.read(buffer);
+			//
+			final int endOffset = buffer.position();
+			//
+			System.out.println("Now reading code...");
+			buffer.position(codeOffset);
+			code.setOffset(codeOffset);
+			code.read(buffer);
+			//
+			buffer.position(endOffset);
+		} else {
+			code.setOffset(buffer.position());
+			code.read(buffer);
+			//
+			autoStartScripts.setOffset(buffer.position());
+			autoStartScripts.read(buffer);
+			//
+			scriptsSection.setOffset(buffer.position());
+			scriptsSection.read(buffer);
+			//
+			data.setOffset(buffer.position());
+			data.read(buffer);
+		}
+		//
+		if (buffer.hasRemaining()) throw new IOException("There are "+buffer.remaining()+" bytes after the last section");
+	}
+	
+	/**Opens the file in lazy mode: the header, global variables, autostart scripts and scripts sections
+	 * are read immediately, while each script's code is decoded and validated the first time it is
+	 * accessed, and the data is copied only when requested. This is convenient to query large files.
+	 * If mapped read is disabled, tracing is enabled, or {@link Code#packedEnabled} is set, this falls back
+	 * to {@link #read(File)}. Instructions which can't be decoded are reported when accessed, with an
+	 * {@link InvalidChlError}.
+	 * @param file
+	 * @throws Exception
+	 */
+	public void readLazy(File file) throws Exception {
+		readLazy(file, true);
+	}
+	
+	/**Opens the file in streaming mode. This is the same as {@link #readLazy(File)}, but only the code of
+	 * the last accessed script is kept in memory, so that the file can be scanned script by script with
+	 * bounded memory usage regardless of its size.
+	 * If mapped read is disabled or tracing is enabled, this falls back to {@link #read(File)}.
+	 * @param file
+	 * @throws Exception
+	 */
+	public void readStreaming(File file) throws Exception {
+		readLazy(file, false);
+	}
+	
+	private void readLazy(File file, boolean retainCode) throws Exception {
+		//The decoded code can't be retained in packed form, so it's read in full
+		if (!mappedReadEnabled || traceEnabled || (retainCode && Code.packedEnabled)) {
+			read(file);
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);) {
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			readLazy(buffer, retainCode);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new EOFException("Unexpected end of file "+file.getName());
+		}
+	}
+	
+	/**Reads the file in lazy mode from a little-endian buffer, starting at the current position.
+	 * The buffer must stay valid as long as this object is in use.
+	 * @param buffer
+	 * @param retainCode whether to keep the decoded code in memory or only the last accessed script
+	 * @throws Exception
+	 * @see #readLazy(File)
+	 * @see #readStreaming(File)
+	 */
+	public void readLazy(ByteBuffer buffer, boolean retainCode) throws Exception {
+		header.setOffset(buffer.position());
+		header.read(buffer);
+		//
+		globalVariables.setOffset(buffer.position());
+		globalVariables.read(buffer);
+		//
+		code.setOffset(buffer.position());
+		code.readLazy(buffer, retainCode);
+		//
+		autoStartScripts.setOffset(buffer.position());
+		autoStartScripts.read(buffer);
+		//
+		scriptsSection.setOffset(buffer.position());
+		scriptsSection.read(buffer);
+		//
+		data.setOffset(buffer.position());
+		data.readLazy(buffer);
+		//
+		if (buffer.hasRemaining()) throw new IOException("There are "+buffer.remaining()+" bytes after the last section");
+	}
+	
+	/**Reads the file through a buffered stream.
+	 * @param file
+	 * @throws Exception
+	 */
+	private void readStream(File file) throws Exception {
 		//# Profiler.start();
 		try (EndianDataInputStream str = new EndianDataInputStream(new BufferedInputStream(new FileInputStream(file)));) {
 			str.order(ByteOrder.LITTLE_ENDIAN);
@@ -189,44 +355,34 @@ public class CHLFile {
 		}
 	}
 	
+	/**Writes the file. The length of each section is computed in advance, then all the sections are
+	 * encoded into direct buffers and written to the file with a gathering write.
+	 * @param file
+	 * @throws Exception
+	 */
 	public void write(File file) throws Exception {
 		//# Profiler.start();
-		try (EndianDataOutputStream str = new EndianDataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));) {
-			str.order(ByteOrder.LITTLE_ENDIAN);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);) {
+			final Section[] sections = {header, globalVariables, code, autoStartScripts, scriptsSection, data};
+			final ByteBuffer[] buffers = new ByteBuffer[sections.length];
 			int offset = 0;
-			//# Profiler.start(ProfilerSections.PF_HEADER);
-			header.write(str);
-			//# Profiler.end(ProfilerSections.PF_HEADER);
-			offset += header.getLength();
-			//
-			//# Profiler.start(ProfilerSections.PF_GLOBALS);
-			globalVariables.setOffset(offset);
-			globalVariables.write(str);
-			//# Profiler.end(ProfilerSections.PF_GLOBALS);
-			offset += globalVariables.getLength();
-			//
-			//# Profiler.start(ProfilerSections.PF_CODE);
-			code.setOffset(offset);
-			code.write(str);
-			//# Profiler.end(ProfilerSections.PF_CODE);
-			offset += code.getLength();
-			//
-			//# Profiler.start(ProfilerSections.PF_AUTOSTART);
-			autoStartScripts.setOffset(offset);
-			autoStartScripts.write(str);
-			//# Profiler.end(ProfilerSections.PF_AUTOSTART);
-			offset += autoStartScripts.getLength();
-			//
-			//# Profiler.start(ProfilerSections.PF_SCRIPTS);
-			scriptsSection.setOffset(offset);
-			scriptsSection.write(str);
-			//# Profiler.end(ProfilerSections.PF_SCRIPTS);
-			offset += scriptsSection.getLength();
-			//
-			//# Profiler.start(ProfilerSections.PF_DATA);
-			data.setOffset(offset);
-			data.write(str);
-			//# Profiler.end(ProfilerSections.PF_DATA);
+			for (int i = 0; i < sections.length; i++) {
+				Section section = sections[i];
+				final int length = section.getLength();
+				section.setOffset(offset);
+				ByteBuffer buffer = ByteBuffer.allocateDirect(length).order(ByteOrder.LITTLE_ENDIAN);
+				section.write(buffer);
+				if (buffer.hasRemaining()) {
+					throw new IllegalStateException("Section "+section.getClass().getSimpleName()+" wrote "+buffer.position()+" bytes instead of "+length);
+				}
+				buffer.flip();
+				buffers[i] = buffer;
+				offset += length;
+			}
+			long remaining = offset;
+			while (remaining > 0) {
+				remaining -= channel.write(buffers);
+			}
 		} finally {
 			//# Profiler.end();
 			//# Profiler.printReport();
@@ -234,25 +390,51 @@ public class CHLFile {
 	}
 	
 	public boolean validate(PrintStream out) {
+		return validate(out, false);
+	}
+	
+	/**Validates all the scripts, and optionally checks the code coverage in the same pass.
+	 * Scripts are validated in parallel, and messages are printed in the order of the scripts.
+	 * If the coverage check is enabled, coverage warnings are printed before validation messages.
+	 * @param out
+	 * @param checkCoverage
+	 * @return true if the file is valid and, if requested, all the instructions are covered by scripts
+	 */
+	public boolean validate(PrintStream out, boolean checkCoverage) {
 		boolean res = true;
 		//Code
+		List<Script> scripts = scriptsSection.getItems();
+		ScriptReport[] reports = new ScriptReport[scripts.size()];
+		ValidationTask task = new ValidationTask(scripts, reports, 0, reports.length);
+		if (code.isStreamed()) {
+			task.compute();		//Only one script at a time is in memory, parallel access would thrash it
+		} else {
+			ForkJoinPool.commonPool().invoke(task);
+		}
+		//Coverage
+		if (checkCoverage) {
+			int index = 0;
+			for (int i = 0; i < reports.length; i++) {
+				Script script = scripts.get(i);
+				if (index >= 0 && index != script.getInstructionAddress()) {
+					out.println("WARNING: there are unused instructions before script "+script.getName());
+					res = false;
+				}
+				index = reports[i].end;
+			}
+			if (index >= 0 && index < code.getItems().size()) {
+				out.println("WARNING: there are unused instructions after last script");
+				res = false;
+			}
+		}
 		boolean landControlAllFound = false;
-		List<Instruction> instructions = code.getItems();
-		for (Script script : scriptsSection.getItems()) {
-			if ("LandControlAll".equals(script.getName())) {
+		for (int i = 0; i < reports.length; i++) {
+			if ("LandControlAll".equals(scripts.get(i).getName())) {
 				landControlAllFound = true;
 			}
-			for (int i = script.getInstructionAddress(); i < instructions.size(); i++) {
-				Instruction instr = instructions.get(i);
-				try {
-					instr.validate(this, script, i);
-				} catch (Exception e) {
-					res = false;
-					int offset = code.getOffset() + 4 + i * Instruction.LENGTH;
-					String fmt = "%1$s in %2$s at %3$s:%4$d (0x%5$08X)\r\n";
-					out.printf(fmt, e.getMessage(), script.getName(), script.getSourceFilename(), instr.lineNumber, offset);
-				}
-				if (instr.opcode == OPCode.END) break;
+			if (reports[i].messages != null) {
+				out.print(reports[i].messages);
+				res = false;
 			}
 		}
 		//Autostart scripts
@@ -270,6 +452,40 @@ public class CHLFile {
 		return res;
 	}
 	
+	/**Validates the instructions of a single script, up to the END instruction.
+	 * @param script
+	 * @return
+	 */
+	private ScriptReport validate(Script script) {
+		ScriptReport report = new ScriptReport();
+		int i = script.getInstructionAddress();
+		ListIterator<Instruction> it = code.getItems().listIterator(i);
+		while (it.hasNext()) {
+			Instruction instr;
+			try {
+				instr = it.next();
+			} catch (InvalidChlError e) {
+				//Code read lazily is decoded here, the rest of the script can't be checked
+				if (report.messages == null) report.messages = new StringBuilder();
+				report.messages.append(e.getException().getMessage() + " in " + script.getName() + "\r\n");
+				report.end = -1;
+				return report;
+			}
+			try {
+				instr.validate(this, script, i);
+			} catch (Exception e) {
+				if (report.messages == null) report.messages = new StringBuilder();
+				int offset = code.getOffset() + 4 + i * Instruction.LENGTH;
+				String fmt = "%1$s in %2$s at %3$s:%4$d (0x%5$08X)\r\n";
+				report.messages.append(String.format(fmt, e.getMessage(), script.getName(), script.getSourceFilename(), instr.lineNumber, offset));
+			}
+			i++;
+			if (instr.opcode == OPCode.END) break;
+		}
+		report.end = i;
+		return report;
+	}
+	
 	public boolean checkCodeCoverage(PrintStream out) {
 		boolean res = true;
 		List<Instruction> instructions = code.getItems();
@@ -280,7 +496,9 @@ public class CHLFile {
 				res = false;
 			}
 			index = script.getInstructionAddress();
-			while (instructions.get(index++).opcode != OPCode.END) {}
+			ListIterator<Instruction> it = instructions.listIterator(index);
+			while (it.next().opcode != OPCode.END) {}
+			index = it.nextIndex();
 		}
 		if (index < instructions.size()) {
 			out.println("WARNING: there are unused instructions after last script");
@@ -342,4 +560,42 @@ public class CHLFile {
 	public String toString() {
 		return header.toString();
 	}
+	
+	private static class ScriptReport {
+		/**Validation messages, or null if the script is valid.*/
+		public StringBuilder messages;
+		/**Index of the instruction after the end of the script, or -1 if the end could not be found.*/
+		public int end;
+	}
+	
+	/**Validates a range of scripts, splitting it until it's small enough.*/
+	private class ValidationTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private static final int THRESHOLD = 4;
+		
+		private final List<Script> scripts;
+		private final ScriptReport[] reports;
+		private final int start;
+		private final int end;
+		
+		public ValidationTask(List<Script> scripts, ScriptReport[] reports, int start, int end) {
+			this.scripts = scripts;
+			this.reports = reports;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected void compute() {
+			if (end - start <= THRESHOLD || code.isStreamed()) {
+				for (int i = start; i < end; i++) {
+					reports[i] = validate(scripts.get(i));
+				}
+			} else {
+				int mid = (start + end) >>> 1;
+				invokeAll(new ValidationTask(scripts, reports, start, mid),
+						new ValidationTask(scripts, reports, mid, end));
+			}
+		}
+	}
 }
@@ -0,0 +1,271 @@
+/* Copyright (c) 2023 Daniele Lombardi / Daniels118
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.ld.bw.chl.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**A cache of decoded CHL files, stored as snapshots in a folder. Snapshots are named after the
+ * SHA-256 hash of the CHL file content, so a changed file never matches an old snapshot.
+ * 
+ * A snapshot contains the sections of the file in the same format, preceded by their original
+ * offsets and followed by the index of the constants in the data section. Instructions are stored
+ * after being validated, so they are loaded in bulk without being validated again, and the data
+ * section doesn't need to be analyzed again. Snapshots are read into memory rather than mapped, so
+ * that an invalid snapshot can be replaced while the file is in use.
+ * 
+ * The meaning of the stored instructions depends on the opcode and data type tables, so a hash of the
+ * tables is saved in the snapshot, and snapshots saved with different tables are replaced.
+ * 
+ * Hashing the content requires reading the whole CHL file. To avoid this cost on every load, the hash
+ * is saved in a stamp file together with the path, size and modification time of the CHL file, and it
+ * is only computed again when one of them changes. Snapshots which can't be read are treated as a
+ * cache miss: the CHL file is read again and the snapshot is replaced.
+ */
+public class CHLSnapshotCache {
+	private static final int MAGIC = 0x4E534843;	//"CHSN"
+	private static final int FORMAT_VERSION = 2;
+	private static final String EXTENSION = ".snap";
+	private static final String STAMP_EXTENSION = ".stamp";
+	private static final int TABLES_HASH = getTablesHash();
+	
+	private final Path dir;
+	
+	public CHLSnapshotCache(File dir) throws IOException {
+		this.dir = dir.toPath();
+		Files.createDirectories(this.dir);
+	}
+	
+	/**Loads a CHL file from its snapshot, or reads the file and saves its snapshot if not in cache.
+	 * The code is stored in the same kind of list in both cases: a read-only {@link PackedInstructions}
+	 * list if {@link Code#packedEnabled} is set, a modifiable list otherwise.
+	 * @param file
+	 * @return
+	 * @throws Exception
+	 */
+	public CHLFile load(File file) throws Exception {
+		Path snapshot = dir.resolve(getContentHash(file) + EXTENSION);
+		CHLFile chl = new CHLFile();
+		if (Files.isRegularFile(snapshot)) {
+			try {
+				readSnapshot(chl, snapshot);
+				return chl;
+			} catch (Exception e) {
+				//The snapshot is not valid, replace it
+				chl = new CHLFile();
+			}
+		}
+		chl.read(file);
+		try {
+			writeSnapshot(chl, snapshot);
+		} catch (IOException e) {
+			//The file has been read anyway, the snapshot will be saved on the next load
+		}
+		return chl;
+	}
+	
+	/**Returns a hash of the opcode and data type tables, which define how the instructions are decoded.
+	 * @return
+	 */
+	private static int getTablesHash() {
+		StringBuilder s = new StringBuilder();
+		for (OPCode opcode : OPCode.values()) {
+			s.append(opcode.name()).append(',')
+				.append(opcode.hasArg).append(',')
+				.append(opcode.isIP).append(',')
+				.append(opcode.isJump).append(',')
+				.append(opcode.isScript).append(',')
+				.append(opcode.forceInt).append(',')
+				.append(opcode.varStack).append(',')
+				.append(opcode.pop).append(',')
+				.append(opcode.push).append(';');
+		}
+		for (DataType type : DataType.values()) {
+			s.append(type.name()).append(';');
+		}
+		return s.toString().hashCode();
+	}
+	
+	/**Returns the hash of the content of a CHL file, from its stamp if the file didn't change since
+	 * the stamp has been saved.
+	 * @param file
+	 * @return
+	 * @throws Exception
+	 */
+	private String getContentHash(File file) throws Exception {
+		Path path = file.toPath().toAbsolutePath();
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		String size = String.valueOf(attrs.size());
+		String mtime = String.valueOf(attrs.lastModifiedTime().to(TimeUnit.MICROSECONDS));
+		Path stamp = dir.resolve(file.getName() + "." + String.format("%08x", path.toString().hashCode()) + STAMP_EXTENSION);
+		if (Files.isRegularFile(stamp)) {
+			try {
+				List<String> lines = Files.readAllLines(stamp, StandardCharsets.UTF_8);
+				if (lines.size() == 4 && lines.get(0).equals(path.toString())
+						&& lines.get(1).equals(size) && lines.get(2).equals(mtime)) {
+					return lines.get(3);
+				}
+			} catch (IOException e) {
+				//The stamp is not valid, it will be replaced
+			}
+		}
+		String hash = hash(file);
+		String content = path + "\n" + size + "\n" + mtime + "\n" + hash + "\n";
+		try {
+			replace(Files.createTempFile(dir, "chl", ".tmp"), stamp, content.getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			//The hash will be computed again on the next load
+		}
+		return hash;
+	}
+	
+	private static String hash(File file) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);) {
+			digest.update(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+		}
+		StringBuilder s = new StringBuilder(64);
+		for (byte b : digest.digest()) {
+			s.append(String.format("%02x", b));
+		}
+		return s.toString();
+	}
+	
+	private static Section[] getSections(CHLFile chl) {
+		return new Section[] {
+			chl.getHeader(),
+			chl.getGlobalVariables(),
+			chl.getCode(),
+			chl.getAutoStartScripts(),
+			chl.getScriptsSection(),
+			chl.getDataSection()
+		};
+	}
+	
+	private static void readSnapshot(CHLFile chl, Path snapshot) throws Exception {
+		//The snapshot is read into memory rather than mapped, so that it can be replaced if not valid
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(snapshot)).order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION || buffer.getInt() != TABLES_HASH) {
+			throw new IOException("Invalid snapshot "+snapshot);
+		}
+		Section[] sections = getSections(chl);
+		for (Section section : sections) {
+			section.setOffset(buffer.getInt());
+		}
+		for (Section section : sections) {
+			if (section instanceof Code) {
+				//Instructions have been validated before saving the snapshot, only check that they are in range
+				int count = buffer.getInt();
+				if (count < 0 || count > buffer.remaining() / Instruction.LENGTH) {
+					throw new IOException("Invalid snapshot "+snapshot);
+				}
+				int[] data = new int[count * PackedInstructions.STRIDE];
+				IntBuffer records = buffer.asIntBuffer();
+				records.get(data);
+				buffer.position(buffer.position() + data.length * 4);
+				final int opcodes = OPCode.values().length;
+				final int types = DataType.values().length;
+				for (int i = 0; i < data.length; i += PackedInstructions.STRIDE) {
+					if (data[i] < 0 || data[i] >= opcodes || data[i + 2] < 0 || data[i + 2] >= types) {
+						throw new IOException("Invalid snapshot "+snapshot);
+					}
+				}
+				chl.getCode().setItems(toList(data, count));
+			} else {
+				section.read(buffer);
+			}
+		}
+		int offsetCount = buffer.getInt();
+		if (offsetCount < 0 || offsetCount > buffer.remaining() / 4) {
+			throw new IOException("Invalid snapshot "+snapshot);
+		}
+		int[] offsets = new int[offsetCount];
+		buffer.asIntBuffer().get(offsets);
+		buffer.position(buffer.position() + offsets.length * 4);
+		chl.getDataSection().setConstIndex(offsets);
+		if (buffer.hasRemaining()) throw new IOException("Invalid snapshot "+snapshot);
+	}
+	
+	/**Returns the instructions in the same kind of list that {@link Code} would create reading the file.
+	 * @param data
+	 * @param count
+	 * @return
+	 */
+	private static List<Instruction> toList(int[] data, int count) {
+		if (Code.packedEnabled) {
+			return new PackedInstructions(data, count);
+		}
+		List<Instruction> list = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			Instruction instr = new Instruction();
+			instr.unpack(data, i * PackedInstructions.STRIDE);
+			list.add(instr);
+		}
+		return list;
+	}
+	
+	private void writeSnapshot(CHLFile chl, Path snapshot) throws Exception {
+		Section[] sections = getSections(chl);
+		int[] offsets = chl.getDataSection().getConstIndex().getOffsets();
+		int length = 12 + sections.length * 4 + 4 + offsets.length * 4;
+		for (Section section : sections) {
+			length += section.getLength();
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC);
+		buffer.putInt(FORMAT_VERSION);
+		buffer.putInt(TABLES_HASH);
+		for (Section section : sections) {
+			buffer.putInt(section.getOffset());
+		}
+		for (Section section : sections) {
+			section.write(buffer);
+		}
+		buffer.putInt(offsets.length);
+		buffer.asIntBuffer().put(offsets);
+		replace(Files.createTempFile(dir, "chl", ".tmp"), snapshot, buffer.array());
+	}
+	
+	/**Writes a file through a temporary file, so that concurrent readers never see a partial file.
+	 * @param tmp
+	 * @param target
+	 * @param data
+	 * @throws IOException
+	 */
+	private static void replace(Path tmp, Path target, byte[] data) throws IOException {
+		try {
+			Files.write(tmp, data);
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+}
@@ -15,14 +15,30 @@
  */
 package it.ld.bw.chl.model;
 
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import it.ld.utils.EndianDataInputStream;
 
 public class Code extends StructArray<Instruction> {
 	public static boolean traceEnabled = false;
+	/**If enabled, the instructions read from file are stored in a {@link PackedInstructions} list
+	 * rather than as individual objects.*/
+	public static boolean packedEnabled = false;
+	
+	/**Number of instructions read at once from a stream.*/
+	private static final int CHUNK_SIZE = 4096;
 	
 	private final CHLFile chl;
 	
 	private Script script = null;
+	/**Number of instructions being decoded, or -1 if not reading.*/
+	private int readCount = -1;
 	
 	public Code(CHLFile chl) {
 		this.chl = chl;
@@ -33,37 +49,180 @@ public class Code extends StructArray<Instruction> {
 		return Instruction.class;
 	}
 	
+	/**Returns the number of instructions. While the section is being read, this returns the number of
+	 * instructions which are being read.
+	 * @return
+	 */
+	public int getInstructionCount() {
+		return readCount >= 0 ? readCount : items.size();
+	}
+	
+	/**Tells if the instructions are decoded on demand and only the last accessed script is kept in memory.
+	 * @return
+	 * @see CHLFile#readStreaming(java.io.File)
+	 */
+	public boolean isStreamed() {
+		return items instanceof LazyInstructions && !((LazyInstructions) items).isRetained();
+	}
+	
 	@Override
 	public int getLength() {
 		return 4 + items.size() * Instruction.LENGTH;
 	}
 	
+	/**Reads the code block in chunks and decodes it in bulk, avoiding the per-item overhead of the
+	 * generic implementation. The length of a stream isn't known in advance, so the memory for the
+	 * instructions is allocated as they are read rather than trusting the count in the file.
+	 */
 	@Override
-	protected Instruction readItem(EndianDataInputStream str, int index) throws Exception {
-		Instruction instr = super.readItem(str, index);
-		//
-		if (traceEnabled) {
-			if (script == null
-					|| index < script.getInstructionAddress()
-					|| index > script.getLastInstructionAddress()) {
-				if (script != null) {
-					System.out.println();
+	public void read(EndianDataInputStream str) throws Exception {
+		int count = str.readInt();
+		checkCount(count);
+		final int chunkSize = Math.min(count, CHUNK_SIZE);
+		byte[] raw = new byte[chunkSize * Instruction.LENGTH];
+		IntBuffer chunk = ByteBuffer.wrap(raw).order(str.order()).asIntBuffer();
+		readCount = count;
+		try {
+			Decoder decoder = new Decoder(count, chunkSize);
+			while (decoder.index < count) {
+				int n = Math.min(chunkSize, count - decoder.index);
+				str.readFully(raw, 0, n * Instruction.LENGTH);
+				chunk.clear();
+				decoder.decode(chunk, n);
+			}
+			items = decoder.getResult();
+		} finally {
+			readCount = -1;
+		}
+	}
+	
+	@Override
+	public void read(ByteBuffer buffer) throws Exception {
+		int count = buffer.getInt();
+		checkCount(count);
+		int len = count * Instruction.LENGTH;
+		if (buffer.remaining() < len) throw new BufferUnderflowException();
+		ByteBuffer block = buffer.slice().order(buffer.order());
+		block.limit(len);
+		decode(block.asIntBuffer(), count);
+		buffer.position(buffer.position() + len);
+	}
+	
+	/**Prepares the code to be decoded on demand from the given buffer, which must stay valid as long as
+	 * this section is in use.
+	 * @param buffer
+	 * @param retain whether to keep the decoded instructions in memory or only the last accessed script
+	 * @throws Exception
+	 * @see LazyInstructions
+	 */
+	public void readLazy(ByteBuffer buffer, boolean retain) throws Exception {
+		int count = buffer.getInt();
+		checkCount(count);
+		int len = count * Instruction.LENGTH;
+		if (buffer.remaining() < len) throw new BufferUnderflowException();
+		ByteBuffer block = buffer.slice().order(buffer.order());
+		block.limit(len);
+		items = new LazyInstructions(chl, block.asIntBuffer(), count, buffer.position(), retain);
+		buffer.position(buffer.position() + len);
+	}
+	
+	@Override
+	public void write(ByteBuffer buffer) throws Exception {
+		if (items instanceof PackedInstructions) {
+			buffer.putInt(items.size());
+			((PackedInstructions) items).write(buffer);
+		} else {
+			super.write(buffer);
+		}
+	}
+	
+	private static void checkCount(int count) throws IOException {
+		if (count < 0 || count > Integer.MAX_VALUE / Instruction.LENGTH) {
+			throw new IOException("Invalid instruction count: " + count);
+		}
+	}
+	
+	private void decode(IntBuffer buffer, int count) throws Exception {
+		readCount = count;
+		try {
+			Decoder decoder = new Decoder(count, count);
+			decoder.decode(buffer, count);
+			items = decoder.getResult();
+		} finally {
+			readCount = -1;
+		}
+	}
+	
+	/**Decodes the instructions into a list, or into a packed array if {@link #packedEnabled}.
+	 * The destination grows as the instructions are decoded.
+	 */
+	private class Decoder {
+		private final int count;
+		private List<Instruction> list;
+		private int[] data;
+		/**Reused to validate the packed records, since nothing keeps a reference to it.*/
+		private Instruction tmp;
+		/**Number of instructions decoded so far.*/
+		private int index = 0;
+		
+		public Decoder(int count, int capacity) {
+			this.count = count;
+			if (packedEnabled) {
+				data = new int[capacity * PackedInstructions.STRIDE];
+				tmp = new Instruction();
+			} else {
+				list = new ArrayList<Instruction>(capacity);
+			}
+		}
+		
+		public void decode(IntBuffer buffer, int n) throws Exception {
+			if (data != null) {
+				final int off = index * PackedInstructions.STRIDE;
+				final int len = n * PackedInstructions.STRIDE;
+				if (off + len > data.length) {
+					data = Arrays.copyOf(data, Math.min(count * PackedInstructions.STRIDE, Math.max(off + len, data.length * 2)));
+				}
+				buffer.get(data, off, len);
+				IntBuffer view = IntBuffer.wrap(data, off, len);
+				for (int i = 0; i < n; i++) {
+					tmp.decode(view);
+					if (traceEnabled) trace(tmp, index + i);
 				}
-				script = chl.getScriptsSection().getScriptFromInstruction(index);
-				System.out.println(script);
-				for (String name : script.getVariablesWithoutParameters()) {
-					System.out.println("local "+name);
+			} else {
+				for (int i = 0; i < n; i++) {
+					Instruction instr = new Instruction();
+					instr.decode(buffer);
+					list.add(instr);
+					if (traceEnabled) trace(instr, index + i);
 				}
 			}
-			System.out.print(instr.toString(chl, script, null));
-			if (instr.opcode == OPCode.SYS) {
-				NativeFunction f = NativeFunction.fromCode(instr.intVal);
-				System.out.print("\t//" + f.getInfoString());
+			index += n;
+		}
+		
+		public List<Instruction> getResult() {
+			return data != null ? new PackedInstructions(data, count) : list;
+		}
+	}
+	
+	private void trace(Instruction instr, int index) throws Exception {
+		if (script == null
+				|| index < script.getInstructionAddress()
+				|| index > script.getLastInstructionAddress()) {
+			if (script != null) {
+				System.out.println();
+			}
+			script = chl.getScriptsSection().getScriptFromInstruction(index);
+			System.out.println(script);
+			for (String name : script.getVariablesWithoutParameters()) {
+				System.out.println("local "+name);
 			}
-			System.out.println();
 		}
-		//
-		return instr;
+		System.out.print(instr.toString(chl, script, null));
+		if (instr.opcode == OPCode.SYS) {
+			NativeFunction f = NativeFunction.fromCode(instr.intVal);
+			System.out.print("\t//" + f.getInfoString());
+		}
+		System.out.println();
 	}
 	
 	@Override
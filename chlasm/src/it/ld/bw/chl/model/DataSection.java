@@ -16,8 +16,10 @@
 package it.ld.bw.chl.model;
 
 import java.io.EOFException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
 
 import it.ld.utils.EndianDataInputStream;
@@ -25,63 +27,164 @@ import it.ld.utils.EndianDataOutputStream;
 
 public class DataSection extends Section {
 	private byte[] data;
+	/**Buffer holding the data not copied yet, used when reading in lazy mode.*/
+	private ByteBuffer source;
+	private ConstIndex constIndex;
 	
 	public byte[] getData() {
+		if (data == null && source != null) {
+			data = new byte[source.remaining()];
+			source.duplicate().get(data);
+			source = null;
+		}
 		return data;
 	}
 	
 	public void setData(byte[] data) {
 		this.data = data;
+		this.source = null;
+		this.constIndex = null;
+	}
+	
+	/**Returns the number of bytes of data, without loading it.
+	 * @return
+	 */
+	public int getDataLength() {
+		return data == null && source != null ? source.remaining() : data.length;
 	}
 	
 	@Override
 	public int getLength() {
-		return 4 + data.length;
+		return 4 + getDataLength();
 	}
 	
 	@Override
 	public void read(EndianDataInputStream str) throws Exception {
 		int count = str.readInt();
 		data = str.readNBytes(count);
+		source = null;
+		constIndex = null;
 		if (data.length < count) {
 			throw new EOFException("Unexpected end of file while reading data section ("+data.length+" bytes read out of "+count+")");
 		}
 	}
 
+	@Override
+	public void read(ByteBuffer buffer) throws Exception {
+		int count = buffer.getInt();
+		if (buffer.remaining() < count) {
+			throw new EOFException("Unexpected end of file while reading data section ("+buffer.remaining()+" bytes read out of "+count+")");
+		}
+		data = new byte[count];
+		buffer.get(data);
+		source = null;
+		constIndex = null;
+	}
+	
+	/**Records the position of the data in the given buffer, deferring the copy to the first call
+	 * to {@link #getData()}. The buffer must stay valid as long as this section is in use.
+	 * @param buffer
+	 * @throws Exception
+	 */
+	public void readLazy(ByteBuffer buffer) throws Exception {
+		int count = buffer.getInt();
+		if (buffer.remaining() < count) {
+			throw new EOFException("Unexpected end of file while reading data section ("+buffer.remaining()+" bytes read out of "+count+")");
+		}
+		data = null;
+		constIndex = null;
+		source = buffer.slice();
+		source.limit(count);
+		buffer.position(buffer.position() + count);
+	}
+	
 	@Override
 	public void write(EndianDataOutputStream str) throws Exception {
+		byte[] data = getData();
 		str.writeInt(data.length);
 		str.write(data);
 	}
 	
+	@Override
+	public void write(ByteBuffer buffer) {
+		if (data == null && source != null) {
+			buffer.putInt(source.remaining());
+			buffer.put(source.duplicate());
+		} else {
+			buffer.putInt(data.length);
+			buffer.put(data);
+		}
+	}
+	
 	public List<Const> analyze() {
-		List<Const> res = new LinkedList<Const>();
+		ConstIndex index = getConstIndex();
+		List<Const> res = new ArrayList<Const>(index.size());
+		for (int i = 0; i < index.size(); i++) {
+			res.add(index.get(i));
+		}
+		return res;
+	}
+	
+	/**Returns an index of the constants found in the data. This finds the same constants returned by
+	 * {@link #analyze()}, but it only keeps their offsets and creates them on demand.
+	 * The index is built once and kept until the data is replaced.
+	 * @return
+	 */
+	public ConstIndex getConstIndex() {
+		if (constIndex == null) {
+			constIndex = buildConstIndex();
+		}
+		return constIndex;
+	}
+	
+	/**Sets the index of the constants, previously built with {@link #getConstIndex()} for the same data.
+	 * The offsets must be strictly ascending and within the data, since the index is searched by offset.
+	 * @param offsets
+	 */
+	void setConstIndex(int[] offsets) {
+		byte[] data = getData();
+		for (int i = 0; i < offsets.length; i++) {
+			if (offsets[i] < 0 || offsets[i] >= data.length || (i > 0 && offsets[i] <= offsets[i - 1])) {
+				throw new IllegalArgumentException("Invalid constant offset: "+offsets[i]);
+			}
+		}
+		constIndex = new ConstIndex(data, offsets);
+	}
+	
+	private ConstIndex buildConstIndex() {
+		byte[] data = getData();
+		int[] offsets = new int[Math.min(data.length, 1024)];
+		int count = 0;
 		int offset = 0;
 		while (offset < data.length) {
-			int n = getZString(data, offset);
-			if (n > 0) {
-				Const c = new Const(data, offset, n, ConstType.STRING);
-				res.add(c);
-				offset += n + 1;
-			} else {
-				n = 1;
-				Const c = new Const(data, offset, 1, ConstType.BYTE);
-				res.add(c);
-				offset += n;
+			if (count == offsets.length) {
+				offsets = Arrays.copyOf(offsets, count * 2);
 			}
+			offsets[count++] = offset;
+			int n = getZString(data, offset);
+			offset += n > 0 ? n + 1 : 1;
 		}
-		return res;
+		return new ConstIndex(data, Arrays.copyOf(offsets, count));
 	}
 	
 	@Override
 	public String toString() {
-		return "[" + data.length + " bytes of data]";
+		return "[" + getDataLength() + " bytes of data]";
 	}
 	
 	private static boolean isPrintable(char c) {
 		return c > 31 && c < 127;
 	}
 	
+	private static Const getConst(byte[] data, int offset) {
+		int n = getZString(data, offset);
+		if (n > 0) {
+			return new Const(data, offset, n, ConstType.STRING);
+		} else {
+			return new Const(data, offset, 1, ConstType.BYTE);
+		}
+	}
+	
 	private static int getZString(byte[] data, int offset) {
 		int n = 0;
 		while (data[offset] != 0) {
@@ -104,6 +207,45 @@ public class DataSection extends Section {
 		}
 	}
 	
+	/**Sorted index of the offsets of the constants in a data section.*/
+	public static class ConstIndex {
+		private final byte[] data;
+		private final int[] offsets;
+		
+		private ConstIndex(byte[] data, int[] offsets) {
+			this.data = data;
+			this.offsets = offsets;
+		}
+		
+		int[] getOffsets() {
+			return offsets;
+		}
+		
+		/**Returns the number of constants.
+		 * @return
+		 */
+		public int size() {
+			return offsets.length;
+		}
+		
+		/**Returns the constant at the given position in the index.
+		 * @param index
+		 * @return
+		 */
+		public Const get(int index) {
+			return getConst(data, offsets[index]);
+		}
+		
+		/**Returns the constant which starts at the given offset in the data section.
+		 * @param offset
+		 * @return the constant or null if there is no constant at the given offset
+		 */
+		public Const find(int offset) {
+			if (Arrays.binarySearch(offsets, offset) < 0) return null;
+			return getConst(data, offset);
+		}
+	}
+	
 	public static class Const {
 		private final byte[] data;
 		public final int offset;
@@ -126,6 +268,13 @@ public class DataSection extends Section {
 			return new String(data, offset, length, ASCII);
 		}
 		
+		/**Returns the offset of the first byte after this constant.
+		 * @return
+		 */
+		public int getEnd() {
+			return type == ConstType.STRING ? offset + length + 1 : offset + length;
+		}
+		
 		public String getDeclaration() {
 			return String.format("%1$s c%2$d = ", type.keyword, offset) + toString();
 		}
@@ -16,14 +16,15 @@
 package it.ld.bw.chl.model;
 
 import java.io.IOException;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 
 import it.ld.utils.EndianDataInputStream;
 import it.ld.utils.EndianDataOutputStream;
 
 public class GlobalVariables extends Section {
-	private List<String> names = new LinkedList<String>();
+	private List<String> names = new ArrayList<String>();
 	
 	@Override
 	public int getLength() {
@@ -39,11 +40,21 @@ public class GlobalVariables extends Section {
 		names = readZStringArray(str);
 	}
 
+	@Override
+	public void read(ByteBuffer buffer) {
+		names = readZStringArray(buffer);
+	}
+	
 	@Override
 	public void write(EndianDataOutputStream str) throws IOException {
 		writeZStringArray(str, names);
 	}
 	
+	@Override
+	public void write(ByteBuffer buffer) {
+		writeZStringArray(buffer, names);
+	}
+	
 	@Override
 	public String toString() {
 		return names.toString();
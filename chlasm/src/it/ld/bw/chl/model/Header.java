@@ -16,6 +16,7 @@
 package it.ld.bw.chl.model;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import it.ld.bw.chl.exceptions.InvalidChlException;
 import it.ld.bw.chl.exceptions.UnknownVersionException;
@@ -67,12 +68,26 @@ public class Header extends Section {
 		setVersion(str.readInt());
 	}
 	
+	@Override
+	public void read(ByteBuffer buffer) throws InvalidChlException, UnknownVersionException {
+		byte[] magic = new byte[4];
+		buffer.get(magic);
+		setMagic(new String(magic, ASCII));
+		setVersion(buffer.getInt());
+	}
+	
 	@Override
 	public void write(EndianDataOutputStream str) throws IOException, InvalidChlException, UnknownVersionException {
 		str.write(magic.getBytes(ASCII));
 		str.writeInt(version);
 	}
 	
+	@Override
+	public void write(ByteBuffer buffer) {
+		buffer.put(magic.getBytes(ASCII));
+		buffer.putInt(version);
+	}
+	
 	@Override
 	public String toString() {
 		return magic + " version " + version;
@@ -28,6 +28,8 @@ import it.ld.utils.EndianDataOutputStream;
 
 import static it.ld.bw.chl.model.OPCodeFlag.*;
 
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.HashMap;
@@ -38,13 +40,21 @@ public class Instruction extends Struct {
 	public static final int LENGTH = 5 * 4;	// 5 fields of 4 bytes
 	
 	private static final int SIGNIFICANT_DIGITS = 8;
-	private static final DecimalFormat decimalFormat = new DecimalFormat("0", DecimalFormatSymbols.getInstance(Locale.ENGLISH));
+	/**DecimalFormat is not thread safe, so each thread gets its own instance.*/
+	private static final ThreadLocal<DecimalFormat> decimalFormat = ThreadLocal.withInitial(() -> {
+		DecimalFormat format = new DecimalFormat("0", DecimalFormatSymbols.getInstance(Locale.ENGLISH));
+		format.setMinimumFractionDigits(1);
+		return format;
+	});
+	
+	/**Cached copies of the enum tables, since values() clones the array at each call.*/
+	private static final OPCode[] OPCODES = OPCode.values();
+	private static final DataType[] DATATYPES = DataType.values();
 	
 	/**This holds a mapping between mnemonics and sample instructions.*/
 	private static final Map<String, Instruction> model = new HashMap<>();
 	
 	static {
-		decimalFormat.setMinimumFractionDigits(1);
 		//Build the mapping between mnemonics and sample instructions
 		for (int iCode = 0; iCode < OPCode.keywords.length; iCode++) {
 			final String[][] t = OPCode.keywords[iCode];
@@ -56,9 +66,9 @@ public class Instruction extends Struct {
 							final String keyword = t2[iType];
 							if (keyword != null) {
 								Instruction instr = new Instruction();
-								instr.opcode = OPCode.values()[iCode];
+								instr.opcode = OPCODES[iCode];
 								instr.flags = flags;
-								instr.dataType = DataType.values()[iType];
+								instr.dataType = DATATYPES[iType];
 								model.putIfAbsent(keyword, instr);
 							}
 						}
@@ -85,8 +95,8 @@ public class Instruction extends Struct {
 	public void read(EndianDataInputStream str) throws Exception {
 		//# Profiler.start(ProfilerSections.PF_INSTR_OPCODE);
 		int v = str.readInt();
-		if (v < 0 || v >= OPCode.values().length) throw new InvalidOPCodeException(v);
-		opcode = OPCode.values()[v];
+		if (v < 0 || v >= OPCODES.length) throw new InvalidOPCodeException(v);
+		opcode = OPCODES[v];
 		//# Profiler.end(ProfilerSections.PF_INSTR_OPCODE);
 		//
 		//# Profiler.start(ProfilerSections.PF_INSTR_FLAGS);
@@ -95,8 +105,8 @@ public class Instruction extends Struct {
 		//
 		//# Profiler.start(ProfilerSections.PF_INSTR_DATATYPE);
 		v = str.readInt();
-		if (v < 0 || v >= DataType.values().length) throw new InvalidDataTypeException(v);
-		dataType = DataType.values()[v];
+		if (v < 0 || v >= DATATYPES.length) throw new InvalidDataTypeException(v);
+		dataType = DATATYPES[v];
 		//# Profiler.end(ProfilerSections.PF_INSTR_DATATYPE);
 		//
 		//# Profiler.start(ProfilerSections.PF_INSTR_OPERAND);
@@ -128,6 +138,79 @@ public class Instruction extends Struct {
 		}
 	}
 	
+	@Override
+	public void read(ByteBuffer buffer) throws Exception {
+		decode(buffer.asIntBuffer());
+		buffer.position(buffer.position() + LENGTH);
+	}
+	
+	/**Decodes this instruction from the next 5 ints of the given buffer. This is used by {@link Code}
+	 * to decode the whole code section in bulk.
+	 * @param buffer
+	 * @throws Exception
+	 */
+	void decode(IntBuffer buffer) throws Exception {
+		int v = buffer.get();
+		if (v < 0 || v >= OPCODES.length) throw new InvalidOPCodeException(v);
+		opcode = OPCODES[v];
+		flags = buffer.get();
+		v = buffer.get();
+		if (v < 0 || v >= DATATYPES.length) throw new InvalidDataTypeException(v);
+		dataType = DATATYPES[v];
+		v = buffer.get();
+		if (isReference() || opcode.forceInt) {
+			//Address of variables, system functions index and swap count are always int, regardless of the datatype
+			intVal = v;
+		} else {
+			switch (dataType) {
+				case FLOAT:
+					floatVal = Float.intBitsToFloat(v);
+					break;
+				case BOOLEAN:
+					if (v != 0 && v != 1) throw new InvalidBooleanException(v);
+					boolVal = v != 0;
+					break;
+				default:
+					intVal = v;
+			}
+		}
+		lineNumber = buffer.get();
+		if (opcode == OPCode.SYS) {
+			NativeFunction.fromCode(intVal);
+		}
+	}
+	
+	/**Loads this instruction from 5 consecutive ints of the given array, previously validated with
+	 * {@link #decode(IntBuffer)}. The operand fields not used by the record are cleared, so that the
+	 * same instance can be loaded again with another record.
+	 * @param data
+	 * @param off
+	 */
+	void unpack(int[] data, int off) {
+		opcode = OPCODES[data[off]];
+		flags = data[off + 1];
+		dataType = DATATYPES[data[off + 2]];
+		final int v = data[off + 3];
+		intVal = 0;
+		floatVal = 0;
+		boolVal = false;
+		if (isReference() || opcode.forceInt) {
+			intVal = v;
+		} else {
+			switch (dataType) {
+				case FLOAT:
+					floatVal = Float.intBitsToFloat(v);
+					break;
+				case BOOLEAN:
+					boolVal = v != 0;
+					break;
+				default:
+					intVal = v;
+			}
+		}
+		lineNumber = data[off + 4];
+	}
+	
 	@Override
 	public void write(EndianDataOutputStream str) throws Exception {
 		str.writeInt(opcode.ordinal());
@@ -150,6 +233,28 @@ public class Instruction extends Struct {
 		str.writeInt(lineNumber);
 	}
 	
+	@Override
+	public void write(ByteBuffer buffer) {
+		buffer.putInt(opcode.ordinal());
+		buffer.putInt(flags);
+		buffer.putInt(dataType.ordinal());
+		if (isReference() || opcode.forceInt) {
+			buffer.putInt(intVal);	//Address of variables, system functions index, and swap count are always int, regardless of the datatype
+		} else {
+			switch (dataType) {
+				case FLOAT:
+					buffer.putFloat(floatVal);
+					break;
+				case BOOLEAN:
+					buffer.putInt(boolVal ? 1 : 0);
+					break;
+				default:
+					buffer.putInt(intVal);
+			}
+		}
+		buffer.putInt(lineNumber);
+	}
+	
 	/**Gets the mnemonic used to code this instruction.
 	 * @return
 	 */
@@ -399,6 +504,7 @@ public class Instruction extends Struct {
 	 * @return
 	 */
 	private static String format(float v) {
+		final DecimalFormat decimalFormat = Instruction.decimalFormat.get();
 		decimalFormat.setMaximumFractionDigits(SIGNIFICANT_DIGITS - 1);
 		String r = decimalFormat.format(v);
 		int nInt = r.indexOf('.');	//Compute the number of int digits
@@ -0,0 +1,211 @@
+/* Copyright (c) 2023 Daniele Lombardi / Daniels118
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.ld.bw.chl.model;
+
+import java.nio.IntBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import it.ld.bw.chl.exceptions.InvalidChlError;
+import it.ld.bw.chl.exceptions.InvalidChlException;
+
+/**A list of instructions which are decoded on demand from the code section of a mapped file.
+ * When an instruction is accessed for the first time, the whole script containing it is decoded
+ * and validated, so the cost of loading is paid only for the scripts which are actually used.
+ * 
+ * If the decoded instructions are not retained, only the instructions of the last accessed script
+ * are kept in memory, so that the code can be scanned script by script with bounded memory usage.
+ * 
+ * Replacing instructions is allowed, while structural changes (add/remove) force all the
+ * instructions to be decoded into a regular list.
+ * 
+ * Since the list methods can't throw checked exceptions, invalid instructions are reported with an
+ * {@link InvalidChlError}, which wraps the {@link InvalidChlException} describing the problem.
+ * 
+ * Access is synchronized, so that the same file can be read by multiple threads. The lock is never held
+ * while looking up scripts, and the size can be read without it.
+ */
+class LazyInstructions extends AbstractList<Instruction> implements RandomAccess {
+	private final CHLFile chl;
+	private final int offset;
+	private IntBuffer source;
+	private final boolean retain;
+	private Instruction[] cache;
+	private int windowStart;
+	private final int size;
+	private volatile List<Instruction> loaded;
+	
+	/**
+	 * @param chl the file which owns the code section
+	 * @param source a buffer containing the instructions records, in the file format
+	 * @param count the number of instructions
+	 * @param offset the offset of the first instruction in the file, used for error messages
+	 * @param retain whether to keep all the decoded instructions or only the last accessed script
+	 */
+	LazyInstructions(CHLFile chl, IntBuffer source, int count, int offset, boolean retain) {
+		this.chl = chl;
+		this.source = source;
+		this.offset = offset;
+		this.size = count;
+		this.retain = retain;
+		this.cache = new Instruction[retain ? count : 0];
+	}
+	
+	@Override
+	public int size() {
+		List<Instruction> loaded = this.loaded;
+		return loaded != null ? loaded.size() : size;
+	}
+	
+	@Override
+	public Instruction get(int index) {
+		Instruction instr = getDecoded(index);
+		if (instr == null) {
+			/* The script is looked up without holding the lock, since the scripts section has its own
+			 * lock and calls back into this list to get the number of instructions. */
+			Script script = chl.getScriptsSection().getScriptFromInstruction(index);
+			instr = decodeScript(index, script);
+		}
+		return instr;
+	}
+	
+	@Override
+	public Instruction set(int index, Instruction instr) {
+		Instruction old = get(index);
+		synchronized (this) {
+			if (loaded == null && !retain) {
+				//Changes would be lost when the window moves
+				load();
+			}
+			if (loaded != null) return loaded.set(index, instr);
+			cache[index] = instr;
+			return old;
+		}
+	}
+	
+	@Override
+	public synchronized void add(int index, Instruction instr) {
+		load();
+		loaded.add(index, instr);
+		modCount++;
+	}
+	
+	@Override
+	public synchronized Instruction remove(int index) {
+		load();
+		modCount++;
+		return loaded.remove(index);
+	}
+	
+	/**Tells if the decoded instructions are kept in memory.
+	 * @return
+	 */
+	public synchronized boolean isRetained() {
+		return retain || loaded != null;
+	}
+	
+	/**Tells if all the instructions have been decoded.
+	 * @return
+	 */
+	public synchronized boolean isLoaded() {
+		return loaded != null;
+	}
+	
+	/**Decodes all the instructions not decoded yet and releases the source buffer.
+	 */
+	public synchronized void load() {
+		if (loaded == null) {
+			Instruction[] all = retain ? cache : new Instruction[size];
+			decode(0, size - 1, all, 0);
+			List<Instruction> list = new ArrayList<Instruction>(size + 16);
+			for (Instruction instr : all) {
+				list.add(instr);
+			}
+			cache = null;
+			source = null;
+			loaded = list;	//Published when complete, since the size is read without the lock
+		}
+	}
+	
+	/**Returns the instruction at the given index if it has already been decoded, otherwise null.
+	 * @param index
+	 * @return
+	 */
+	private synchronized Instruction getDecoded(int index) {
+		if (loaded != null) return loaded.get(index);
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		if (retain) {
+			return cache[index];
+		} else if (index >= windowStart && index < windowStart + cache.length) {
+			return cache[index - windowStart];
+		}
+		return null;
+	}
+	
+	/**Decodes the given script, which contains the given instruction. If the instructions are not retained,
+	 * the script replaces the window of decoded instructions.
+	 * @param index
+	 * @param script the script containing the instruction, or null to decode the instruction alone
+	 * @return the instruction at the given index
+	 */
+	private synchronized Instruction decodeScript(int index, Script script) {
+		if (loaded != null) return loaded.get(index);
+		int first = index;
+		int last = index;
+		if (script != null) {
+			first = script.getInstructionAddress();
+			last = script.getLastInstructionAddress();
+		}
+		if (retain) {
+			decode(first, last, cache, 0);
+			return cache[index];
+		}
+		Instruction[] window = new Instruction[last - first + 1];
+		decode(first, last, window, first);
+		cache = window;
+		windowStart = first;
+		return cache[index - windowStart];
+	}
+	
+	/**Decodes the instructions from first to last (inclusive) which haven't been decoded yet.
+	 * @param first
+	 * @param last
+	 * @param dst the destination array
+	 * @param base the index of the instruction which goes in the first element of the destination array
+	 */
+	private void decode(int first, int last, Instruction[] dst, int base) {
+		IntBuffer buffer = source.duplicate();
+		buffer.position(first * PackedInstructions.STRIDE);
+		for (int i = first; i <= last; i++) {
+			if (dst[i - base] == null) {
+				Instruction instr = new Instruction();
+				try {
+					instr.decode(buffer);
+				} catch (Exception e) {
+					String msg = String.format("%1$s at 0x%2$08X", e.getMessage(), offset + i * Instruction.LENGTH);
+					throw new InvalidChlError(new InvalidChlException(msg, e));
+				}
+				dst[i - base] = instr;
+			} else {
+				buffer.position(buffer.position() + PackedInstructions.STRIDE);
+			}
+		}
+	}
+}
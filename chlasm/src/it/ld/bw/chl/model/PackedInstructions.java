@@ -0,0 +1,183 @@
+/* Copyright (c) 2023 Daniele Lombardi / Daniels118
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.ld.bw.chl.model;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**A compact, read-only list of instructions, stored as a single int array with 5 ints per instruction
+ * (the same layout used in the binary file). This takes roughly the same memory as the code section on disk.
+ * 
+ * Instructions are not kept as objects: {@link #get(int)} decodes a new detached copy of the record at
+ * each call, while iterators are flyweight views which decode each record into a single instance owned
+ * by the iterator. The instance returned by an iterator is only valid until the iterator is moved again,
+ * so it must be copied with {@link #get(int)} to be kept. Since changes to the returned instances could
+ * not be stored back, the list can't be modified: all the methods which would change it throw
+ * {@link UnsupportedOperationException}. This is fine for read-only users (disassembler, comparator,
+ * validation), while the compilers keep using a plain ArrayList because they patch instructions after
+ * adding them.
+ */
+public class PackedInstructions extends AbstractList<Instruction> implements RandomAccess {
+	/**Number of ints per instruction.*/
+	public static final int STRIDE = Instruction.LENGTH / 4;
+	
+	private final int[] data;
+	private final int size;
+	
+	/**Wraps an array of packed instructions. The array is not copied.
+	 * @param data
+	 * @param size the number of instructions stored in the array
+	 */
+	PackedInstructions(int[] data, int size) {
+		this.data = data;
+		this.size = size;
+	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	/**Returns a copy of the instruction at the given index. Changes to the returned instance are not
+	 * reflected in this list.
+	 */
+	@Override
+	public Instruction get(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		Instruction instr = new Instruction();
+		instr.unpack(data, index * STRIDE);
+		return instr;
+	}
+	
+	@Override
+	public Iterator<Instruction> iterator() {
+		return new Cursor(0);
+	}
+	
+	@Override
+	public ListIterator<Instruction> listIterator() {
+		return new Cursor(0);
+	}
+	
+	/**Returns a flyweight iterator, which returns the same instance at each step.*/
+	@Override
+	public ListIterator<Instruction> listIterator(int index) {
+		if (index < 0 || index > size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		return new Cursor(index);
+	}
+	
+	/**Returns detached copies of the instructions, since the instance returned by the iterators is reused.*/
+	@Override
+	public Object[] toArray() {
+		Object[] r = new Object[size];
+		for (int i = 0; i < size; i++) {
+			r[i] = get(i);
+		}
+		return r;
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> T[] toArray(T[] a) {
+		if (a.length < size) {
+			a = (T[]) Array.newInstance(a.getClass().getComponentType(), size);
+		}
+		for (int i = 0; i < size; i++) {
+			a[i] = (T) get(i);
+		}
+		if (a.length > size) {
+			a[size] = null;
+		}
+		return a;
+	}
+	
+	/**Writes all the instructions to the given buffer, in the file format.
+	 * @param buffer
+	 */
+	void write(ByteBuffer buffer) {
+		final int len = size * STRIDE;
+		buffer.asIntBuffer().put(data, 0, len);
+		buffer.position(buffer.position() + len * 4);
+	}
+	
+	/**An iterator which decodes each record into the same instance.*/
+	private class Cursor implements ListIterator<Instruction> {
+		private final Instruction view = new Instruction();
+		private int cursor;
+		
+		private Cursor(int index) {
+			this.cursor = index;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return cursor < size;
+		}
+		
+		@Override
+		public Instruction next() {
+			if (cursor >= size) throw new NoSuchElementException();
+			view.unpack(data, cursor++ * STRIDE);
+			return view;
+		}
+		
+		@Override
+		public boolean hasPrevious() {
+			return cursor > 0;
+		}
+		
+		@Override
+		public Instruction previous() {
+			if (cursor <= 0) throw new NoSuchElementException();
+			view.unpack(data, --cursor * STRIDE);
+			return view;
+		}
+		
+		@Override
+		public int nextIndex() {
+			return cursor;
+		}
+		
+		@Override
+		public int previousIndex() {
+			return cursor - 1;
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+		@Override
+		public void set(Instruction e) {
+			throw new UnsupportedOperationException();
+		}
+		
+		@Override
+		public void add(Instruction e) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
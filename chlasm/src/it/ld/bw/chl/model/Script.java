@@ -15,10 +15,10 @@
  */
 package it.ld.bw.chl.model;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -34,7 +34,7 @@ public class Script extends Section {
 	/**The number of global variables defined so far. Values greater than this are mapped to local params/vars */
 	private int globalCount = 0;
 	/**Parameters + local variables*/
-	private List<String> variables = new LinkedList<>();
+	private List<String> variables = new ArrayList<>();
 	/**Index of the first instruction in the instructions array*/
 	private int instructionAddress;
 	/**How many local variables are parameters*/
@@ -42,6 +42,8 @@ public class Script extends Section {
 	private int scriptID;
 	
 	private Map<String, Integer> localsMap = null;
+	/**Number of variables when localsMap was built, used to detect changes.*/
+	private int localsMapSize = -1;
 	private int lastInstructionAddress = -1;
 	
 	public String getName() {
@@ -82,17 +84,21 @@ public class Script extends Section {
 	
 	public void setVariables(List<String> variables) {
 		this.variables = variables;
+		this.localsMap = null;
 	}
 	
 	public int getLocalVarIndex(String name) {
-		if (localsMap == null) {
-			localsMap = new HashMap<>();
+		if (localsMap == null || localsMapSize != variables.size()) {
+			//Variables are only appended, so a change in size means the map is stale
+			Map<String, Integer> map = new HashMap<>();
 			int i = 0;
 			Iterator<String> it = variables.iterator();
 			while (it.hasNext()) {
 				String tName = it.next();
-				localsMap.put(tName, i++);
+				map.put(tName, i++);
 			}
+			localsMap = map;
+			localsMapSize = variables.size();
 		}
 		return localsMap.getOrDefault(name, -1);
 	}
@@ -165,6 +171,18 @@ public class Script extends Section {
 		scriptID = str.readInt();
 	}
 	
+	@Override
+	public void read(ByteBuffer buffer) throws Exception {
+		name = readZString(buffer);
+		sourceFilename = readZString(buffer);
+		scriptType = ScriptType.fromCode(buffer.getInt());
+		globalCount = buffer.getInt();
+		variables = readZStringArray(buffer);
+		instructionAddress = buffer.getInt();
+		parameterCount = buffer.getInt();
+		scriptID = buffer.getInt();
+	}
+	
 	@Override
 	public void write(EndianDataOutputStream str) throws Exception {
 		writeZString(str, name);
@@ -177,6 +195,18 @@ public class Script extends Section {
 		str.writeInt(scriptID);
 	}
 	
+	@Override
+	public void write(ByteBuffer buffer) {
+		writeZString(buffer, name);
+		writeZString(buffer, sourceFilename);
+		buffer.putInt(scriptType.code);
+		buffer.putInt(globalCount);
+		writeZStringArray(buffer, variables);
+		buffer.putInt(instructionAddress);
+		buffer.putInt(parameterCount);
+		buffer.putInt(scriptID);
+	}
+	
 	public boolean isGlobalVar(int varId) {
 		return varId >= 1 && varId <= globalCount;
 	}
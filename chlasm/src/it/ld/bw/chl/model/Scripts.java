@@ -17,6 +17,7 @@ package it.ld.bw.chl.model;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import it.ld.bw.chl.exceptions.InvalidScriptIdException;
@@ -25,51 +26,66 @@ import it.ld.bw.chl.exceptions.ScriptNotFoundException;
 public class Scripts extends StructArray<Script> {
 	private final CHLFile chl;
 	
-	private boolean scriptsFinalized = false;
-	private Map<Integer, Script> entrypointScripts;
+	/* The indexes are rebuilt when the list of scripts changes, and replaced as a whole so that lookups
+	 * don't need any lock. Scripts must not change their id, name or instruction address after they
+	 * have been added to the list. */
+	private volatile Index index;
 	
 	public Scripts(CHLFile chl) {
 		this.chl = chl;
 	}
 	
+	@Override
+	protected List<Script> createList(int capacity) {
+		return new VersionedList<Script>(capacity);
+	}
+	
+	/**Sets the list of scripts. Changes to the list are tracked, so if it isn't a {@link VersionedList}
+	 * the scripts are copied into a new one.
+	 */
+	@Override
+	public void setItems(List<Script> items) {
+		super.setItems(items instanceof VersionedList ? items : new VersionedList<Script>(items));
+	}
+	
+	/**Sets the last instruction address of each script. This is done automatically when required,
+	 * and it's repeated only if scripts or instructions have been added.
+	 */
 	public void finalizeScripts() {
-		if (!scriptsFinalized) {
-			int[] entrypoints = new int[items.size()];
-			int i = 0;
-			for (Script script : items) {
-				entrypoints[i++] = script.getInstructionAddress();
+		finalizeScripts(getIndex());
+	}
+	
+	private void finalizeScripts(Index index) {
+		final int codeSize = chl.getCode().getInstructionCount();
+		if (index.finalizedCodeSize == codeSize) return;
+		synchronized (index) {
+			if (index.finalizedCodeSize == codeSize) return;
+			final int[] entrypoints = index.entrypoints;
+			final int n = entrypoints.length;
+			for (int i = 0; i < n - 1; i++) {
+				index.entrypointScripts[i].setLastInstructionAddress(entrypoints[i + 1] - 1);
 			}
-			Arrays.sort(entrypoints);
-			//
-			for (i = 0; i < entrypoints.length - 1; i++) {
-				int entrypoint = entrypoints[i];
-				int nextEntrypoint = entrypoints[i + 1];
-				Script script = getScriptFromEntrypoint(entrypoint);
-				script.setLastInstructionAddress(nextEntrypoint - 1);
+			if (n > 0) {
+				index.entrypointScripts[n - 1].setLastInstructionAddress(codeSize - 1);
 			}
-			Script script = getScriptFromEntrypoint(entrypoints[entrypoints.length - 1]);
-			script.setLastInstructionAddress(chl.getCode().getItems().size() - 1);
+			index.finalizedCodeSize = codeSize;
 		}
 	}
 	
 	public Script getScriptFromInstruction(int instruction) {
-		finalizeScripts();
-		for (Script script : items) {
-			if (instruction >= script.getInstructionAddress() && instruction <= script.getLastInstructionAddress()) {
-				return script;
-			}
-		}
-		return null;
+		Index index = getIndex();
+		finalizeScripts(index);
+		int i = Arrays.binarySearch(index.entrypoints, instruction);
+		if (i < 0) i = -i - 2;	//The last entrypoint before the instruction
+		if (i < 0) return null;
+		Script script = index.entrypointScripts[i];
+		return instruction <= script.getLastInstructionAddress() ? script : null;
 	}
 	
 	public Script getScriptFromEntrypoint(int ip) {
-		if (entrypointScripts == null) {
-			entrypointScripts = new HashMap<>();
-			for (Script script : items) {
-				entrypointScripts.put(script.getInstructionAddress(), script);
-			}
-		}
-		return entrypointScripts.get(ip);
+		Index index = getIndex();
+		int i = Arrays.binarySearch(index.entrypoints, ip);
+		return i >= 0 ? index.entrypointScripts[i] : null;
 	}
 	
 	@Override
@@ -78,17 +94,35 @@ public class Scripts extends StructArray<Script> {
 	}
 	
 	public Script getScript(int scriptID) throws InvalidScriptIdException {
-		for (Script script : items) {
-			if (script.getScriptID() == scriptID) return script;
-		}
-		throw new InvalidScriptIdException(scriptID);
+		Script script = getIndex().idIndex.get(scriptID);
+		if (script == null) throw new InvalidScriptIdException(scriptID);
+		return script;
 	}
 	
 	public Script getScript(String scriptName) throws ScriptNotFoundException {
-		for (Script script : items) {
-			if (scriptName.equals(script.getName())) return script;
+		Script script = getIndex().nameIndex.get(scriptName);
+		if (script == null) throw new ScriptNotFoundException(scriptName);
+		return script;
+	}
+	
+	/**Returns the indexes of the current list of scripts, rebuilding them if the list has changed.
+	 * @return
+	 */
+	private Index getIndex() {
+		Index index = this.index;
+		if (index == null || !index.isValidFor(items)) {
+			index = rebuildIndex();
+		}
+		return index;
+	}
+	
+	private synchronized Index rebuildIndex() {
+		Index index = this.index;
+		if (index == null || !index.isValidFor(items)) {
+			index = new Index((VersionedList<Script>) items);
+			this.index = index;
 		}
-		throw new ScriptNotFoundException(scriptName);
+		return index;
 	}
 	
 	@Override
@@ -99,4 +133,45 @@ public class Scripts extends StructArray<Script> {
 		}
 		return s.toString();
 	}
+	
+	
+	/**The indexes of a given version of the list of scripts. Once built they are never modified.*/
+	private static class Index {
+		public final VersionedList<Script> list;
+		public final int version;
+		public final Map<Integer, Script> idIndex = new HashMap<>();
+		public final Map<String, Script> nameIndex = new HashMap<>();
+		/**Sorted instruction addresses of the scripts.*/
+		public final int[] entrypoints;
+		/**The scripts at the corresponding entrypoints.*/
+		public final Script[] entrypointScripts;
+		/**Number of instructions at the time the scripts were finalized.*/
+		public volatile int finalizedCodeSize = -1;
+		
+		public Index(VersionedList<Script> list) {
+			this.list = list;
+			this.version = list.getVersion();
+			Map<Integer, Script> entrypointIndex = new HashMap<>();
+			for (Script script : list) {
+				//Lookups by id and name return the first match, while the last one wins for entrypoints
+				idIndex.putIfAbsent(script.getScriptID(), script);
+				nameIndex.putIfAbsent(script.getName(), script);
+				entrypointIndex.put(script.getInstructionAddress(), script);
+			}
+			entrypoints = new int[entrypointIndex.size()];
+			int i = 0;
+			for (Integer ip : entrypointIndex.keySet()) {
+				entrypoints[i++] = ip;
+			}
+			Arrays.sort(entrypoints);
+			entrypointScripts = new Script[entrypoints.length];
+			for (i = 0; i < entrypoints.length; i++) {
+				entrypointScripts[i] = entrypointIndex.get(entrypoints[i]);
+			}
+		}
+		
+		public boolean isValidFor(List<Script> items) {
+			return items == list && list.getVersion() == version;
+		}
+	}
 }
@@ -16,6 +16,7 @@
 package it.ld.bw.chl.model;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
@@ -40,12 +41,26 @@ public abstract class Struct {
 	 */
 	public abstract void read(EndianDataInputStream str) throws Exception;
 	
+	/**Read this struct from a buffer, starting at the current position of the buffer.
+	 * The buffer must be set to the proper byte order.
+	 * @param buffer
+	 * @throws Exception
+	 */
+	public abstract void read(ByteBuffer buffer) throws Exception;
+	
 	/**Write this struct to a stream.
 	 * @param str
 	 * @throws Exception
 	 */
 	public abstract void write(EndianDataOutputStream str) throws Exception;
 	
+	/**Write this struct to a buffer, starting at the current position of the buffer.
+	 * The buffer must be set to the proper byte order and must have at least {@link #getLength()} bytes remaining.
+	 * @param buffer
+	 * @throws Exception
+	 */
+	public abstract void write(ByteBuffer buffer) throws Exception;
+	
 	/**Reads a null-terminated ASCII string from a stream.
 	 * @param str
 	 * @return
@@ -63,6 +78,22 @@ public abstract class Struct {
 		return s;
 	}
 	
+	/**Reads a null-terminated ASCII string from a buffer.
+	 * @param buffer
+	 * @return
+	 */
+	protected static String readZString(ByteBuffer buffer) {
+		final int start = buffer.position();
+		int end = start;
+		while (buffer.get(end) != 0) {
+			end++;
+		}
+		byte[] buf = new byte[end - start];
+		buffer.get(buf);
+		buffer.get();	//Skip the terminator
+		return new String(buf, ASCII);
+	}
+	
 	/**Writes a null-terminated ASCII string to a stream.
 	 * @param str
 	 * @param s
@@ -74,6 +105,15 @@ public abstract class Struct {
 		str.writeByte(0);
 	}
 	
+	/**Writes a null-terminated ASCII string to a buffer.
+	 * @param buffer
+	 * @param s
+	 */
+	protected static void writeZString(ByteBuffer buffer, String s) {
+		buffer.put(s.getBytes(ASCII));
+		buffer.put((byte)0);
+	}
+	
 	/**Reads an array of null-terminated strings from a stream.
 	 * @param str
 	 * @return
@@ -89,6 +129,20 @@ public abstract class Struct {
 		return res;
 	}
 	
+	/**Reads an array of null-terminated strings from a buffer.
+	 * @param buffer
+	 * @return
+	 */
+	protected static List<String> readZStringArray(ByteBuffer buffer) {
+		int count = buffer.getInt();
+		List<String> res = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			String v = readZString(buffer);
+			res.add(v);
+		}
+		return res;
+	}
+	
 	/**Writes an array of null-terminated strings to a stream.
 	 * @param str
 	 * @param strings
@@ -101,6 +155,17 @@ public abstract class Struct {
 		}
 	}
 	
+	/**Writes an array of null-terminated strings to a buffer.
+	 * @param buffer
+	 * @param strings
+	 */
+	protected static void writeZStringArray(ByteBuffer buffer, List<String> strings) {
+		buffer.putInt(strings.size());
+		for (String s : strings) {
+			writeZString(buffer, s);
+		}
+	}
+	
 	/**Calculates the size in bytes of an array of null-terminated strings.
 	 * @param strings
 	 * @return
@@ -16,6 +16,7 @@
 package it.ld.bw.chl.model;
 
 import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -23,7 +24,7 @@ import it.ld.utils.EndianDataInputStream;
 import it.ld.utils.EndianDataOutputStream;
 
 public abstract class StructArray<E extends Struct> extends Section {
-	protected List<E> items = new ArrayList<E>();
+	protected List<E> items = createList(16);
 	private final Constructor<E> constructor;
 	
 	public StructArray() {
@@ -36,6 +37,15 @@ public abstract class StructArray<E extends Struct> extends Section {
 	
 	public abstract Class<E> getItemClass();
 	
+	/**Creates the list used to store the items read from file. Subclasses may override this to use
+	 * a different implementation.
+	 * @param capacity
+	 * @return
+	 */
+	protected List<E> createList(int capacity) {
+		return new ArrayList<E>(capacity);
+	}
+	
 	public List<E> getItems() {
 		return items;
 	}
@@ -63,11 +73,30 @@ public abstract class StructArray<E extends Struct> extends Section {
 		items = readStructArray(str);
 	}
 
+	@Override
+	public void read(ByteBuffer buffer) throws Exception {
+		int count = buffer.getInt();
+		List<E> res = createList(count);
+		for (int i = 0; i < count; i++) {
+			E e = readItem(buffer, i);
+			res.add(e);
+		}
+		items = res;
+	}
+	
 	@Override
 	public void write(EndianDataOutputStream str) throws Exception {
 		writeStructArray(str, items);
 	}
 	
+	@Override
+	public void write(ByteBuffer buffer) throws Exception {
+		buffer.putInt(items.size());
+		for (E item : items) {
+			item.write(buffer);
+		}
+	}
+	
 	/**Returns the classname of the items in this array followd by their quantity.
 	 *
 	 */
@@ -78,7 +107,7 @@ public abstract class StructArray<E extends Struct> extends Section {
 	
 	private List<E> readStructArray(EndianDataInputStream str) throws Exception {
 		int count = str.readInt();
-		List<E> res = new ArrayList<E>(count);
+		List<E> res = createList(count);
 		for (int i = 0; i < count; i++) {
 			E e = readItem(str, i);
 			res.add(e);
@@ -92,6 +121,12 @@ public abstract class StructArray<E extends Struct> extends Section {
 		return e;
 	}
 	
+	protected E readItem(ByteBuffer buffer, int index) throws Exception {
+		E e = constructor.newInstance();
+		e.read(buffer);
+		return e;
+	}
+	
 	private static void writeStructArray(EndianDataOutputStream str, List<? extends Struct> items) throws Exception {
 		str.writeInt(items.size());
 		for (Struct struct : items) {
@@ -0,0 +1,56 @@
+/* Copyright (c) 2023 Daniele Lombardi / Daniels118
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.ld.bw.chl.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**An ArrayList which keeps track of changes, so that indexes built on top of it can detect
+ * when they have to be rebuilt.
+ */
+public class VersionedList<E> extends ArrayList<E> {
+	private static final long serialVersionUID = 1L;
+	
+	/**Number of elements replaced with set(). This is not counted in modCount because iterators
+	 * would treat it as a concurrent modification.*/
+	private int replaced = 0;
+	
+	public VersionedList() {
+		super();
+	}
+	
+	public VersionedList(int initialCapacity) {
+		super(initialCapacity);
+	}
+	
+	public VersionedList(Collection<? extends E> c) {
+		super(c);
+	}
+	
+	@Override
+	public E set(int index, E element) {
+		E old = super.set(index, element);
+		replaced++;
+		return old;
+	}
+	
+	/**Returns a number which changes every time this list is modified.
+	 * @return
+	 */
+	public int getVersion() {
+		return modCount + replaced;
+	}
+}
@@ -36,6 +36,10 @@ public class EndianDataInputStream extends InputStream implements DataInput {
         return this;
     }
     
+    public ByteOrder order(){
+        return buffer.order();
+    }
+    
     @Override
     public int read(byte[] b) throws IOException {
         return dataIn.read(b);
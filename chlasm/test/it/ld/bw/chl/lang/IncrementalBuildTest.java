@@ -0,0 +1,164 @@
+/* Copyright (c) 2023-2024 Daniele Lombardi / Daniels118
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.ld.bw.chl.lang;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import it.ld.bw.chl.exceptions.ParseException;
+import it.ld.bw.chl.model.CHLFile;
+
+/**Checks that the object files, the build cache and the constants database don't change the result
+ * of the compilation. The sample projects are copied to a temporary folder and compiled without any
+ * cache, then with all the caches enabled, and the outputs must be byte-identical. This is repeated
+ * with cold and warm caches, after editing a source file, after touching a header without changing it
+ * and after editing a header.
+ */
+public class IncrementalBuildTest {
+	private static final PrintStream QUIET = new PrintStream(OutputStream.nullOutputStream());
+	
+	public static void main(String[] args) throws Exception {
+		Path base = Paths.get(args.length > 0 ? args[0] : ".");
+		Path work = Files.createTempDirectory("chlasm");
+		boolean ok = true;
+		try {
+			copy(base.resolve("headers"), work.resolve("headers"));
+			copy(base.resolve("samples"), work.resolve("samples"));
+			List<Path> projects = getProjects(work.resolve("samples"));
+			Path cache = work.resolve("cache");
+			Map<Path, byte[]> outputs = new LinkedHashMap<>();
+			ok &= check("cold", projects, cache, outputs, false);
+			ok &= check("warm", projects, cache, outputs, false);
+			edit(work.resolve("samples/bowling/sample1.txt"), "set fade in time 3", "set fade in time 4");
+			ok &= check("edited source", projects, cache, outputs, true);
+			Path header = work.resolve("headers/ScriptEnums.h");
+			Files.setLastModifiedTime(header, FileTime.fromMillis(Files.getLastModifiedTime(header).toMillis() + 60000));
+			ok &= check("touched header", projects, cache, outputs, false);
+			edit(header, "\tSCRIPT_OBJECT_TYPE_VILLAGER,", "\tSCRIPT_OBJECT_TYPE_TEST,\n\tSCRIPT_OBJECT_TYPE_VILLAGER,");
+			ok &= check("edited header", projects, cache, outputs, true);
+		} finally {
+			delete(work);
+		}
+		if (!ok) {
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+	
+	/**Compiles the projects with and without caches, and checks that the outputs are the same.
+	 * @param step
+	 * @param projects
+	 * @param cache
+	 * @param outputs the outputs of the previous step, updated with the outputs of this step
+	 * @param changed tells whether the outputs must be different from the previous step
+	 * @return true if the check passed
+	 */
+	private static boolean check(String step, List<Path> projects, Path cache, Map<Path, byte[]> outputs, boolean changed) throws Exception {
+		boolean ok = true;
+		boolean anyChanged = false;
+		for (Path project : projects) {
+			String name = project.getParent().getFileName().toString();
+			byte[] plain = compile(project, null);
+			byte[] cached = compile(project, cache);
+			if (!Arrays.equals(plain, cached)) {
+				System.out.println("FAILED: " + step + ": " + name + " compiled with caches differs from the plain compilation");
+				ok = false;
+			}
+			byte[] previous = outputs.put(project, plain);
+			anyChanged |= previous != null && !Arrays.equals(previous, plain);
+		}
+		if (anyChanged != changed) {
+			System.out.println("FAILED: " + step + ": the outputs " + (changed ? "didn't change" : "changed"));
+			ok = false;
+		}
+		System.out.println(step + ": " + (ok ? "same output" : "FAILED"));
+		return ok;
+	}
+	
+	private static byte[] compile(Path projectFile, Path cache) throws Exception {
+		CHLCompiler compiler = new CHLCompiler(QUIET);
+		compiler.setParseTreeEnabled(false);
+		String name = projectFile.getParent().getFileName().toString();
+		Path out = projectFile.resolveSibling(cache != null ? "_cached.chl" : "_plain.chl");
+		if (cache != null) {
+			compiler.setObjectDir(cache.resolve("obj").toFile());
+			compiler.setCacheDir(cache.resolve("build").toFile());
+			compiler.setConstantsDatabase(cache.resolve(name + ".cdb").toFile());
+		}
+		CHLFile chl = compiler.compile(Project.load(projectFile.toFile()));
+		chl.write(out.toFile());
+		return Files.readAllBytes(out);
+	}
+	
+	/**Returns the sample projects which can be loaded, skipping those which refer to missing files.*/
+	private static List<Path> getProjects(Path samples) throws Exception {
+		List<Path> res = new ArrayList<>();
+		try (Stream<Path> dirs = Files.list(samples)) {
+			for (Path dir : (Iterable<Path>) dirs.sorted()::iterator) {
+				Path projectFile = dir.resolve("_project.txt");
+				if (!Files.isRegularFile(projectFile)) continue;
+				try {
+					Project.load(projectFile.toFile());
+					res.add(projectFile);
+				} catch (ParseException e) {
+					System.out.println("SKIPPED: " + dir.getFileName() + ": " + e.getMessage());
+				}
+			}
+		}
+		if (res.isEmpty()) throw new AssertionError("No sample projects found in " + samples);
+		return res;
+	}
+	
+	private static void edit(Path file, String target, String replacement) throws IOException {
+		String text = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+		if (!text.contains(target)) throw new AssertionError("\"" + target + "\" not found in " + file);
+		Files.write(file, text.replace(target, replacement).getBytes(StandardCharsets.ISO_8859_1));
+	}
+	
+	private static void copy(Path src, Path dst) throws IOException {
+		try (Stream<Path> files = Files.walk(src)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				Path target = dst.resolve(src.relativize(file).toString());
+				if (Files.isDirectory(file)) {
+					Files.createDirectories(target);
+				} else {
+					Files.copy(file, target);
+				}
+			}
+		}
+	}
+	
+	private static void delete(Path dir) throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(file);
+			}
+		}
+	}
+}
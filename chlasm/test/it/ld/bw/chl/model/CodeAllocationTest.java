@@ -0,0 +1,188 @@
+/* Copyright (c) 2023-2024 Daniele Lombardi / Daniels118
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.ld.bw.chl.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import it.ld.utils.EndianDataInputStream;
+
+/**Checks that decoding the code section doesn't allocate anything per instruction, apart from the
+ * Instruction objects themselves. The allocation of the bulk decoder is compared with the allocation
+ * of an array filled with empty instructions, measured on the current thread. Iterating packed
+ * instructions must not allocate anything per instruction.
+ */
+public class CodeAllocationTest {
+	private static final int COUNT = 200000;
+	/**Bytes per instruction allowed on top of the reference, to absorb the noise of the measure.*/
+	private static final int SLACK = 2;
+	
+	private static final com.sun.management.ThreadMXBean THREADS =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	
+	public static void main(String[] args) throws Exception {
+		if (!THREADS.isThreadAllocatedMemorySupported()) {
+			System.out.println("SKIPPED: thread allocated memory is not supported by this JVM");
+			return;
+		}
+		THREADS.setThreadAllocatedMemoryEnabled(true);
+		byte[] data = createCodeSection(COUNT);
+		//Warm up, so that class loading and compilation don't count
+		for (int i = 0; i < 5; i++) {
+			reference(COUNT);
+			decodeBuffer(data);
+			decodeStream(data);
+		}
+		long reference = measure(() -> reference(COUNT));
+		long buffer = measure(() -> decodeBuffer(data));
+		long stream = measure(() -> decodeStream(data));
+		System.out.println("reference: " + reference / COUNT + " bytes per instruction");
+		System.out.println("buffer:    " + buffer / COUNT + " bytes per instruction");
+		System.out.println("stream:    " + stream / COUNT + " bytes per instruction");
+		boolean ok = true;
+		ok &= check("buffer", buffer, reference);
+		//The stream decoder doesn't trust the count, so it also grows the list while reading the chunks
+		ok &= check("stream", stream, reference + (long) COUNT * Instruction.LENGTH);
+		//A corrupt count must fail at the end of the data without allocating for the missing instructions
+		byte[] truncated = Arrays.copyOf(data, 4 + 1000 * Instruction.LENGTH);
+		ByteBuffer.wrap(truncated).order(ByteOrder.LITTLE_ENDIAN).putInt(0, Integer.MAX_VALUE / Instruction.LENGTH);
+		long corrupt = measure(() -> decodeTruncated(truncated));
+		System.out.println("corrupt:   " + corrupt + " bytes");
+		ok &= check("corrupt", corrupt, reference);
+		//Iterating packed instructions must reuse a single view instead of decoding a copy of each record
+		Code.packedEnabled = true;
+		Code packed = (Code) decodeBuffer(data);
+		Code.packedEnabled = false;
+		for (int i = 0; i < 5; i++) {
+			iterate(packed);
+		}
+		long iteration = measure(() -> iterate(packed));
+		System.out.println("iterate:   " + iteration + " bytes");
+		ok &= check("packed iterator", iteration, 0);
+		if (!ok) {
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+	
+	private static boolean check(String name, long allocated, long expected) {
+		long limit = expected + (long) COUNT * SLACK;
+		if (allocated > limit) {
+			System.out.println("FAILED: " + name + " decoder allocated " + allocated + " bytes, expected at most " + limit);
+			return false;
+		}
+		return true;
+	}
+	
+	/**Creates a code section with the given number of PUSH instructions of different data types.*/
+	private static byte[] createCodeSection(int count) {
+		ByteBuffer buffer = ByteBuffer.allocate(4 + count * Instruction.LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(count);
+		DataType[] types = {DataType.INT, DataType.FLOAT, DataType.BOOLEAN};
+		for (int i = 0; i < count; i++) {
+			DataType type = types[i % types.length];
+			buffer.putInt(OPCode.PUSH.ordinal());
+			buffer.putInt(0);
+			buffer.putInt(type.ordinal());
+			buffer.putInt(type == DataType.FLOAT ? Float.floatToIntBits(i) : (type == DataType.BOOLEAN ? i & 1 : i));
+			buffer.putInt(i);
+		}
+		return buffer.array();
+	}
+	
+	/**Allocates the minimum required to hold the decoded instructions.*/
+	private static Object reference(int count) {
+		Instruction[] instructions = new Instruction[count];
+		for (int i = 0; i < count; i++) {
+			instructions[i] = new Instruction();
+		}
+		return instructions;
+	}
+	
+	private static Object decodeBuffer(byte[] data) throws Exception {
+		Code code = new Code(null);
+		code.read(ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN));
+		check(code);
+		return code;
+	}
+	
+	private static Object decodeStream(byte[] data) throws Exception {
+		Code code = new Code(null);
+		EndianDataInputStream str = new EndianDataInputStream(new ByteArrayInputStream(data));
+		str.order(ByteOrder.LITTLE_ENDIAN);
+		code.read(str);
+		check(code);
+		return code;
+	}
+	
+	private static Object decodeTruncated(byte[] data) throws Exception {
+		Code code = new Code(null);
+		EndianDataInputStream str = new EndianDataInputStream(new ByteArrayInputStream(data));
+		str.order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			code.read(str);
+		} catch (EOFException e) {
+			return e;
+		}
+		throw new AssertionError("Truncated code section decoded without errors");
+	}
+	
+	/**Iterates the instructions, checking that each record is decoded with the right operand.*/
+	private static Object iterate(Code code) {
+		int i = 0;
+		for (Instruction instr : code.getItems()) {
+			boolean ok;
+			switch (instr.dataType) {
+				case FLOAT:
+					ok = instr.floatVal == i && instr.intVal == 0 && !instr.boolVal;
+					break;
+				case BOOLEAN:
+					ok = instr.boolVal == ((i & 1) != 0) && instr.intVal == 0 && instr.floatVal == 0;
+					break;
+				default:
+					ok = instr.intVal == i && instr.floatVal == 0 && !instr.boolVal;
+			}
+			if (!ok || instr.lineNumber != i) {
+				throw new AssertionError("Instruction " + i + " decoded as " + instr);
+			}
+			i++;
+		}
+		return code;
+	}
+	
+	private static void check(Code code) {
+		if (code.getItems().size() != COUNT) {
+			throw new AssertionError("Decoded " + code.getItems().size() + " instructions, expected " + COUNT);
+		}
+	}
+	
+	private static long measure(Task task) throws Exception {
+		long threadId = Thread.currentThread().getId();
+		long start = THREADS.getThreadAllocatedBytes(threadId);
+		Object result = task.run();
+		long allocated = THREADS.getThreadAllocatedBytes(threadId) - start;
+		if (result == null) throw new AssertionError();	//Keeps the result reachable
+		return allocated;
+	}
+	
+	private interface Task {
+		Object run() throws Exception;
+	}
+}